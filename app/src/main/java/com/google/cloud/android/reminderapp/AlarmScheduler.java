@@ -0,0 +1,102 @@
+package com.google.cloud.android.reminderapp;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+/**
+ * 녹음의 알람을 AlarmManager에 등록하고 취소한다.
+ * PendingIntent의 request code로 녹음의 _id를 그대로 쓰므로 파일 이름과 request code의 짝을
+ * 따로 저장할 필요가 없고, 취소할 때도 _id만 있으면 된다.
+ */
+final class AlarmScheduler {
+
+    static final String ACTION_ALARM_START = "com.google.cloud.android.reminderapp.ALARM_START";
+
+    //이전 버전에서 request code를 저장하던 SharedPreferences
+    private static final String LEGACY_REQUEST_CODE_PREF = "piPref";
+    private static final String LEGACY_ALARM_COUNT_PREF = "anPref";
+
+    private AlarmScheduler() {
+    }
+
+    /**
+     * 녹음의 알람을 등록한다. 같은 _id로 이미 등록된 알람이 있으면 새 시각으로 바뀐다.
+     *
+     * @param id       녹음의 _id, request code로 사용된다.
+     * @param fileName 알람이 울릴 때 재생할 녹음 파일의 이름
+     * @param alarmAt  알람 시각의 epoch millis
+     */
+    static void schedule(Context context, long id, String fileName, long alarmAt) {
+        Intent intent = new Intent(ACTION_ALARM_START);
+        intent.putExtra("filename", fileName);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(
+                context.getApplicationContext(), requestCode(id), intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setExact(AlarmManager.RTC_WAKEUP, alarmAt, pendingIntent);
+    }
+
+    /**
+     * 녹음에 등록된 알람이 있으면 취소한다.
+     *
+     * @param id 녹음의 _id
+     */
+    static void cancel(Context context, long id) {
+        cancelRequestCode(context, requestCode(id));
+    }
+
+    /**
+     * 이전 버전은 알람마다 anPref의 번호를 request code로 쓰고 piPref에 파일 이름 -> request code를 저장했다.
+     * 그 알람들을 취소한 뒤 _id를 request code로 다시 등록하고, 두 SharedPreferences를 비운다.
+     * 이전 번호와 _id는 같은 int 범위를 쓰므로, 다시 등록한 알람을 뒤에 오는 이전 번호의 취소가 지우지 않도록
+     * 먼저 이전 번호를 모두 취소한 다음에 다시 등록한다.
+     * piPref가 비어 있으면 아무것도 하지 않으므로 매번 불러도 된다. 디비를 읽으므로 백그라운드에서 불러야 한다.
+     */
+    static void migrateLegacyRequestCodes(Context context, DataBase db) {
+        SharedPreferences requestCodes = context.getSharedPreferences(LEGACY_REQUEST_CODE_PREF, Context.MODE_PRIVATE);
+        Map<String, ?> entries = requestCodes.getAll();
+        if (entries.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            if (entry.getValue() instanceof Integer) {
+                cancelRequestCode(context, (Integer) entry.getValue());
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            if (!(entry.getValue() instanceof Integer)) {
+                continue;
+            }
+            ReminderRecord record = db.getRecordByFileName(entry.getKey());
+            if (record != null && !record.isNote() && record.getAlarmAt() > now) {
+                schedule(context, record.getId(), record.getFileName(), record.getAlarmAt());
+            }
+        }
+        requestCodes.edit().clear().apply();
+        context.getSharedPreferences(LEGACY_ALARM_COUNT_PREF, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    private static void cancelRequestCode(Context context, int requestCode) {
+        Intent intent = new Intent(ACTION_ALARM_START);
+        PendingIntent sender = PendingIntent.getBroadcast(
+                context.getApplicationContext(), requestCode, intent, PendingIntent.FLAG_NO_CREATE);
+        if (sender != null) {
+            AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            alarmManager.cancel(sender);
+            sender.cancel();
+        }
+    }
+
+    /**
+     * _id는 1부터 하나씩 늘어나므로 int 범위를 넘을 일이 없다.
+     */
+    private static int requestCode(long id) {
+        return (int) id;
+    }
+}
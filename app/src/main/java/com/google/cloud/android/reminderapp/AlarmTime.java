@@ -0,0 +1,85 @@
+package com.google.cloud.android.reminderapp;
+
+import java.util.Calendar;
+
+/**
+ * TimeAnalysis가 돌려주는 yy:MM:dd:hh:mm 형식의 알람 문자열과
+ * 디비에 저장되는 epoch millis 값 사이를 변환해준다.
+ * 알람이 없는 일반 메모는 디비에서 null로 저장되고, 화면에는 NOTE 문자열로 표시된다.
+ */
+final class AlarmTime {
+
+    static final String NOTE = "일반 메모";
+
+    private AlarmTime() {
+    }
+
+    /**
+     * yy:MM:dd:hh:mm 형식의 알람 문자열을 epoch millis로 바꾼다.
+     * MainActivity에서 AlarmManager에 알람을 등록할 때와 같은 방식(기기 시간대)으로 계산한다.
+     *
+     * @param alarmTime yy:MM:dd:hh:mm 형식의 문자열. 일반 메모인 경우 "일반 메모" 혹은 "note"
+     * @return 알람 시각의 epoch millis. 일반 메모이거나 형식이 맞지 않으면 null
+     */
+    static Long parse(String alarmTime) {
+        if (alarmTime == null || alarmTime.equals(NOTE) || alarmTime.equals("note")) {
+            return null;
+        }
+        String[] words = alarmTime.split(":");
+        if (words.length < 5) {
+            return null;
+        }
+        try {
+            Calendar calendar = Calendar.getInstance();
+            calendar.clear();
+            calendar.set(2000 + Integer.parseInt(words[0]), Integer.parseInt(words[1]) - 1,
+                    Integer.parseInt(words[2]), Integer.parseInt(words[3]), Integer.parseInt(words[4]), 0);
+            return calendar.getTimeInMillis();
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * epoch millis를 TimeAnalysis와 같은 yy:MM:dd:hh:mm 형식으로 되돌린다.
+     * 일반 메모(null)는 "일반 메모"로 바꿔서 기존 화면 코드가 그대로 쓸 수 있게 한다.
+     *
+     * @param alarmAt 알람 시각의 epoch millis, 일반 메모인 경우 null
+     * @return yy:MM:dd:hh:mm 형식의 문자열 혹은 "일반 메모"
+     */
+    static String format(Long alarmAt) {
+        if (alarmAt == null) {
+            return NOTE;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(alarmAt);
+        return (calendar.get(Calendar.YEAR) % 100) + ":" + (calendar.get(Calendar.MONTH) + 1) + ":"
+                + calendar.get(Calendar.DAY_OF_MONTH) + ":" + calendar.get(Calendar.HOUR_OF_DAY) + ":"
+                + calendar.get(Calendar.MINUTE);
+    }
+
+    /**
+     * VoiceRecorder가 만드는 파일 이름(yy-MM-dd HH:mm:ss.pcm)에서 녹음 시각을 읽어온다.
+     *
+     * @param fileName 녹음 파일 이름
+     * @return 녹음 시각의 epoch millis. 형식이 맞지 않으면 현재 시각
+     */
+    static long parseFileName(String fileName) {
+        if (fileName != null && fileName.length() >= 17) {
+            try {
+                Calendar calendar = Calendar.getInstance();
+                calendar.clear();
+                calendar.set(2000 + Integer.parseInt(fileName.substring(0, 2)),
+                        Integer.parseInt(fileName.substring(3, 5)) - 1,
+                        Integer.parseInt(fileName.substring(6, 8)),
+                        Integer.parseInt(fileName.substring(9, 11)),
+                        Integer.parseInt(fileName.substring(12, 14)),
+                        Integer.parseInt(fileName.substring(15, 17)));
+                return calendar.getTimeInMillis();
+            } catch (NumberFormatException e) {
+                // 아래에서 현재 시각으로 대신한다.
+            }
+        }
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,100 @@
+package com.google.cloud.android.reminderapp;
+
+/**
+ * 녹음 스레드(생산자 하나)와 파일 쓰기 스레드(소비자 하나) 사이에서 음성 데이터를 넘겨주는 고정 크기 링 버퍼이다.
+ * 락을 쓰지 않고, 생산자만 바꾸는 head와 소비자만 바꾸는 tail을 volatile로 두어 서로 기다리지 않는다.
+ * 배열은 처음에 한 번만 만들며 크기는 2의 거듭제곱이어야 한다.
+ *
+ * 버퍼가 가득 차면 생산자는 기다리지 않고 그 조각을 버린 뒤 overrun으로 센다.
+ * 녹음 스레드가 파일 시스템 때문에 멈추면 AudioRecord 안에서 샘플이 사라지므로, 차라리 여기서 버리고 센다.
+ */
+final class AudioRingBuffer {
+
+    private final byte[] buffer;
+    private final int mask;
+
+    //지금까지 쓴 바이트 수(생산자만 바꾼다)
+    private volatile long head;
+    //지금까지 읽은 바이트 수(소비자만 바꾼다)
+    private volatile long tail;
+
+    private volatile int overruns;
+    private volatile long droppedBytes;
+    private volatile int highWaterMark;
+
+    /**
+     * @param capacity 버퍼 크기(바이트). 2의 거듭제곱
+     */
+    AudioRingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * 생산자 스레드에서만 부른다. 남은 공간이 부족하면 아무것도 쓰지 않고 false를 돌려준다.
+     */
+    boolean offer(byte[] src, int offset, int length) {
+        long h = head;
+        int used = (int) (h - tail);
+        if (length > buffer.length - used) {
+            overruns++;
+            droppedBytes += length;
+            return false;
+        }
+        int index = (int) (h & mask);
+        int first = Math.min(length, buffer.length - index);
+        System.arraycopy(src, offset, buffer, index, first);
+        System.arraycopy(src, offset + first, buffer, 0, length - first);
+        //데이터를 다 복사한 뒤에 head를 옮겨야 소비자가 덜 쓰인 데이터를 읽지 않는다.
+        head = h + length;
+        if (used + length > highWaterMark) {
+            highWaterMark = used + length;
+        }
+        return true;
+    }
+
+    /**
+     * 소비자 스레드에서만 부른다. 쌓인 데이터를 최대 length 바이트까지 꺼낸다.
+     *
+     * @return 꺼낸 바이트 수. 비어 있으면 0
+     */
+    int poll(byte[] dst, int offset, int length) {
+        long t = tail;
+        int available = (int) (head - t);
+        int n = Math.min(length, available);
+        if (n == 0) {
+            return 0;
+        }
+        int index = (int) (t & mask);
+        int first = Math.min(n, buffer.length - index);
+        System.arraycopy(buffer, index, dst, offset, first);
+        System.arraycopy(buffer, 0, dst, offset + first, n - first);
+        tail = t + n;
+        return n;
+    }
+
+    boolean isEmpty() {
+        return head == tail;
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+
+    /** 버퍼가 가득 차서 버린 조각 수 */
+    int getOverruns() {
+        return overruns;
+    }
+
+    long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /** 한 번에 가장 많이 쌓였던 바이트 수 */
+    int getHighWaterMark() {
+        return highWaterMark;
+    }
+}
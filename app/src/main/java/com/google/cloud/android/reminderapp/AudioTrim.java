@@ -0,0 +1,24 @@
+package com.google.cloud.android.reminderapp;
+
+/**
+ * 녹음 앞뒤의 조용한 부분을 잘라낸 결과이다.
+ * 원래 녹음에서 남긴 구간 [startMillis, endMillis)와 원래 길이를 밀리초로 가진다.
+ * 자르지 않았으면 startMillis는 0이고 endMillis는 originalMillis와 같다.
+ */
+final class AudioTrim {
+
+    final long startMillis;
+    final long endMillis;
+    final long originalMillis;
+
+    AudioTrim(long startMillis, long endMillis, long originalMillis) {
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.originalMillis = originalMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + startMillis + ", " + endMillis + ") / " + originalMillis + "ms";
+    }
+}
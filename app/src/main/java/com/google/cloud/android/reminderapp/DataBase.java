@@ -3,78 +3,632 @@ package com.google.cloud.android.reminderapp;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * record 테이블에 접근하는 클래스이다.
+ * 앱 전체에서 하나의 인스턴스(getInstance)와 하나의 SQLiteDatabase 연결을 같이 쓴다.
+ * write-ahead logging을 켜두었기 때문에 MainActivity에서 insert 하는 동안에도
+ * 다른 스레드의 조회가 막히지 않는다.
+ */
 public class DataBase {
-    SQLiteDatabase db;
-    MySQLiteOpenHelper helper;
+    private static DataBase sInstance;
+
+    private SQLiteDatabase db;
+    private final MySQLiteOpenHelper helper;
+    private SQLiteStatement insertStatement;
+    private SQLiteStatement deleteStatement;
+    private SQLiteStatement updateStatement;
+    private SQLiteStatement analysisStatement;
+    private SQLiteStatement markDeletedStatement;
+    private SQLiteStatement restoreStatement;
+    private SQLiteStatement purgeStatement;
+
+    private static final int CHANGE_INSERTED = 0;
+    private static final int CHANGE_DELETED = 1;
+    private static final int CHANGE_UPDATED = 2;
+    private final List<OnChangeListener> listeners = new CopyOnWriteArrayList<>();
+    //batch 중인 스레드에서 커밋 전까지 모아두는 변경 목록
+    private final ThreadLocal<List<long[]>> pendingChanges = new ThreadLocal<>();
 
     String dbName = "record.db";
     String tableName = "record";
 
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_FILE_NAME = "fileName";
+    public static final String COLUMN_ALARM_AT = "alarm_at";
+    public static final String COLUMN_TEXT = "text";
+    public static final String COLUMN_CONTENT_LABEL = "content_label";
+    public static final String COLUMN_TIME_LABEL = "time_label";
+    public static final String COLUMN_DELETED_AT = "deleted_at";
+
+    private static final String JOB_TABLE = "stt_job";
+    private static final String[] JOB_COLUMNS = {COLUMN_ID, COLUMN_FILE_NAME, "created_at", "attempts",
+            "trim_start_ms", "trim_end_ms", "original_ms"};
+    //삭제 표시(tombstone)가 되지 않은 행만 고르는 조건. 조회는 모두 이 조건을 붙인다.
+    private static final String ALIVE = "deleted_at IS NULL";
+    private static final String[] ALL_COLUMNS = {COLUMN_ID, COLUMN_FILE_NAME, COLUMN_ALARM_AT, COLUMN_TEXT,
+            COLUMN_CONTENT_LABEL, COLUMN_TIME_LABEL};
 
-    public DataBase(Context c)
+
+    private DataBase(Context c)
     {
-        helper = new MySQLiteOpenHelper(c, dbName, null, 1);
+        helper = new MySQLiteOpenHelper(c, dbName, null, MySQLiteOpenHelper.VERSION);
+        helper.setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * 앱 전체에서 같이 쓰는 DataBase 인스턴스를 돌려준다.
+     * Activity가 아닌 Application Context를 잡아두므로 Activity가 다시 만들어져도 누수가 없다.
+     */
+    public static synchronized DataBase getInstance(Context c) {
+        if (sInstance == null) {
+            sInstance = new DataBase(c.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * 처음 불릴 때 한 번만 연결을 열고, 이후에는 같은 연결을 돌려준다.
+     * WAL 모드에서는 이 연결 하나로 쓰기와 여러 스레드의 읽기를 같이 처리할 수 있다.
+     * 연결을 열 때 insert/delete/update 문을 미리 컴파일해두고 계속 재사용한다.
+     */
+    private synchronized SQLiteDatabase getDatabase() {
+        if (db == null || !db.isOpen()) {
+            db = helper.getWritableDatabase();
+            insertStatement = db.compileStatement(
+                    "INSERT INTO record (fileName, alarm_at, created_at, text, text_ngram, "
+                            + "content, content_label, time_label, analyzer_version, "
+                            + "trim_start_ms, trim_end_ms, original_ms) "
+                            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
+            deleteStatement = db.compileStatement("DELETE FROM record WHERE _id = ?;");
+            updateStatement = db.compileStatement("UPDATE record SET alarm_at = ?, text = ?, text_ngram = ?, "
+                    + "content = ?, content_label = ?, time_label = ?, analyzer_version = ? WHERE _id = ?;");
+            //분석한 뒤에 지워졌거나 text가 고쳐졌거나 이미 새 버전으로 저장된 행은 건드리지 않는다.
+            analysisStatement = db.compileStatement("UPDATE record SET alarm_at = ?, "
+                    + "content = ?, content_label = ?, time_label = ?, analyzer_version = ? "
+                    + "WHERE _id = ? AND deleted_at IS NULL AND analyzer_version < ? AND text IS ?;");
+            markDeletedStatement = db.compileStatement(
+                    "UPDATE record SET deleted_at = ? WHERE _id = ? AND deleted_at IS NULL;");
+            restoreStatement = db.compileStatement(
+                    "UPDATE record SET deleted_at = NULL WHERE _id = ? AND deleted_at IS NOT NULL;");
+            purgeStatement = db.compileStatement("DELETE FROM record WHERE _id = ? AND deleted_at IS NOT NULL;");
+        }
+        return db;
+    }
+
+    /**
+     * 연결과 미리 컴파일한 문을 닫는다. 이후에 getInstance를 부르면 새로 연결한다.
+     */
+    public static synchronized void close() {
+        if (sInstance != null) {
+            synchronized (sInstance) {
+                if (sInstance.db != null) {
+                    sInstance.insertStatement.close();
+                    sInstance.deleteStatement.close();
+                    sInstance.updateStatement.close();
+                    sInstance.analysisStatement.close();
+                    sInstance.markDeletedStatement.close();
+                    sInstance.restoreStatement.close();
+                    sInstance.purgeStatement.close();
+                }
+                sInstance.helper.close();
+                sInstance.db = null;
+            }
+            sInstance = null;
+        }
+    }
+
+    /**
+     * record 테이블의 변경을 행 단위로 알려받기 위한 리스너이다.
+     * 변경이 일어난 스레드(batch 안이라면 커밋 직후)에서 불린다.
+     */
+    public interface OnChangeListener {
+        void onInserted(long id);
+
+        void onDeleted(long id);
+
+        void onUpdated(long id);
+    }
+
+    public void addOnChangeListener(OnChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeOnChangeListener(OnChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 변경을 리스너에게 알린다. batch 안이라면 모아두었다가 커밋된 뒤에 한꺼번에 알린다.
+     */
+    private void notifyChange(int type, long id) {
+        List<long[]> pending = pendingChanges.get();
+        if (pending != null) {
+            pending.add(new long[]{type, id});
+        } else {
+            dispatchChange(type, id);
+        }
+    }
+
+    private void dispatchChange(int type, long id) {
+        for (OnChangeListener listener : listeners) {
+            switch (type) {
+                case CHANGE_INSERTED:
+                    listener.onInserted(id);
+                    break;
+                case CHANGE_DELETED:
+                    listener.onDeleted(id);
+                    break;
+                default:
+                    listener.onUpdated(id);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * batch 안에서 실행할 작업. 넘겨받은 DataBase의 insert, delete, update 등을 부르면
+     * 모두 하나의 트랜잭션으로 묶인다.
+     */
+    public interface Batch {
+        void run(DataBase db);
+    }
+
+    /**
+     * 여러 작업을 하나의 트랜잭션으로 묶어서 실행한다.
+     * 행마다 커밋(fsync)하지 않고 마지막에 한 번만 커밋하므로 가져오기, 여러 개 삭제, 재분석 같은
+     * 대량 작업에 사용한다. 작업 중 예외가 나면 전체가 롤백된다.
+     *
+     * @param batch 트랜잭션 안에서 실행할 작업
+     */
+    public void batch(Batch batch) {
+        SQLiteDatabase db = getDatabase();
+        boolean outermost = pendingChanges.get() == null;
+        if (outermost) {
+            pendingChanges.set(new ArrayList<long[]>());
+        }
+        boolean committed = false;
+        db.beginTransactionNonExclusive();
+        try {
+            batch.run(this);
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            db.endTransaction();
+            if (outermost) {
+                List<long[]> pending = pendingChanges.get();
+                pendingChanges.remove();
+                //롤백된 변경은 알리지 않는다.
+                if (committed) {
+                    for (long[] change : pending) {
+                        dispatchChange((int) change[0], change[1]);
+                    }
+                }
+            }
+        }
     }
 
     /**
      * VoiceRecorder에서 파일 이름을 인자로 받아 디비에 저장하기 위해 사용
      *
      * @param fileName    알람이 생성된 시간을 가지고 있는 파일의 이름이다.  yy-MM-dd hh:mm:ss의 형식을 사용하였다.
+     * @return 새로 저장된 행의 _id
      */
-    public void insert(String fileName) {
-        db = helper.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put("fileName", fileName);
-        db.insert(tableName, null, values);
+    public long insert(String fileName) {
+        return insert(fileName, null, null);
     }
 
-    //fileName과 alarmTime, 인식된 text를 같이 insert하는 함수.
-    public void insert(String fileName, String alarmTime,String text) {
-        db = helper.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put("fileName", fileName);
-        values.put("alarmTime", alarmTime);
-        values.put("text",text);
-        db.insert(tableName, null, values);
-    }
-
-
-//    /**
-//     * 녹음 파일의 이름을 가지고 알람 시간을 데이터베이스에 업데이트 시켜준다.
-//     * MainActivity 등에서 호출된다.
-//     *
-//     * @param fileName    알람이 생성된 시간을 가지고 있는 파일의 이름이다. yy-MM-dd hh:mm:ss. 몇 분 뒤 알람해줘 등과 같은 알람일 경우 현재 시간을 파악하기 위해 사용한다.
-//     * @param alarmTime   알람이 울릴 시간으로 String으로 저장된다.  yy:MM:dd:hh:mm의 형식으로 저장된다.
-//     * @param text 음성 입력한 text가 저장된다.
-//     */
-//    public void update (String fileName, String alarmTime, String text) {
-//        db = helper.getWritableDatabase();
-//        ContentValues values = new ContentValues();
-//        values.put("alarmTime", alarmTime);
-//        values2.put("text",text);
-//        db.update(tableName, values, "fileName=?", new String[]{fileName});
-//    }
-
-    /**
-     * 아직 사용되진 않았지만 후에 파일을 지울 때 사용할 예정이다.
+    /**
+     * fileName과 alarmTime, 인식된 text를 같이 insert하는 함수.
+     * alarmTime은 epoch millis로 바꿔 저장하고, 일반 메모는 null로 저장한다.
+     * 전문 검색을 위해 text의 bi-gram도 같이 저장하며, record_fts 색인은 trigger가 맞춰준다.
+     * 목록에 보여줄 글자(RecordLabels)도 여기서 한 번만 만들어 저장한다.
+     *
+     * @param fileName  녹음 파일의 이름. yy-MM-dd hh:mm:ss의 형식을 사용하였다.
+     * @param alarmTime yy:MM:dd:hh:mm 형식의 알람 시각, 일반 메모인 경우 "일반 메모"
+     * @param text      음성 인식된 text
+     * @return 새로 저장된 행의 _id
+     */
+    public long insert(String fileName, String alarmTime, String text) {
+        return insert(fileName, alarmTime, text, null);
+    }
+
+    /**
+     * 녹음 앞뒤를 잘라낸 구간(AudioTrim)도 같이 저장한다.
+     *
+     * @param trim 잘라낸 구간. 모르면 null
+     * @return 새로 저장된 행의 _id
+     */
+    public long insert(String fileName, String alarmTime, String text, AudioTrim trim) {
+        getDatabase();
+        Long alarmAt = AlarmTime.parse(alarmTime);
+        RecordLabels labels = RecordLabels.of(text, alarmAt);
+        synchronized (insertStatement) {
+            insertStatement.bindString(1, fileName);
+            bindLong(insertStatement, 2, alarmAt);
+            insertStatement.bindLong(3, AlarmTime.parseFileName(fileName));
+            bindString(insertStatement, 4, text);
+            bindString(insertStatement, 5, NGram.index(text));
+            bindString(insertStatement, 6, labels.content);
+            insertStatement.bindString(7, labels.contentLabel);
+            insertStatement.bindString(8, labels.timeLabel);
+            insertStatement.bindLong(9, RecordLabels.ANALYZER_VERSION);
+            if (trim != null) {
+                insertStatement.bindLong(10, trim.startMillis);
+                insertStatement.bindLong(11, trim.endMillis);
+                insertStatement.bindLong(12, trim.originalMillis);
+            }
+            long id;
+            try {
+                id = insertStatement.executeInsert();
+            } finally {
+                insertStatement.clearBindings();
+            }
+            if (id != -1) {
+                notifyChange(CHANGE_INSERTED, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * 녹음의 알람 시간과 text를 _id로 찾아 업데이트 시켜준다.
+     * 다시 분석한 결과를 저장할 때 사용한다.
+     *
+     * @param id        업데이트할 행의 _id
+     * @param alarmTime 알람이 울릴 시간. yy:MM:dd:hh:mm의 형식, 일반 메모인 경우 "일반 메모"
+     * @param text      음성 입력한 text
+     * @return 업데이트된 행의 개수
+     */
+    public int update(long id, String alarmTime, String text) {
+        getDatabase();
+        Long alarmAt = AlarmTime.parse(alarmTime);
+        RecordLabels labels = RecordLabels.of(text, alarmAt);
+        synchronized (updateStatement) {
+            bindLong(updateStatement, 1, alarmAt);
+            bindString(updateStatement, 2, text);
+            bindString(updateStatement, 3, NGram.index(text));
+            bindString(updateStatement, 4, labels.content);
+            updateStatement.bindString(5, labels.contentLabel);
+            updateStatement.bindString(6, labels.timeLabel);
+            updateStatement.bindLong(7, RecordLabels.ANALYZER_VERSION);
+            updateStatement.bindLong(8, id);
+            int updated;
+            try {
+                updated = updateStatement.executeUpdateDelete();
+            } finally {
+                updateStatement.clearBindings();
+            }
+            if (updated > 0) {
+                notifyChange(CHANGE_UPDATED, id);
+            }
+            return updated;
+        }
+    }
+
+    /**
      * file의 이름을 인자로 받아 디비에서 검색한 뒤, 일치하는 것이 있을 경우 지운다
+     * fileName 인덱스로 _id를 찾은 뒤 _id로 지워서, 지워진 행을 리스너에게 알릴 수 있게 한다.
      *
-     *@TODO 일치하는 것이 없을 때의 처리 안함
      * @param fileName    file's name. Format is yy-MM-dd hh:mm:ss.
+     * @return 지워진 행의 개수. 일치하는 것이 없으면 0
+     */
+    public int delete (String fileName) {
+        SQLiteDatabase db = getDatabase();
+        Cursor c = db.query(tableName, new String[]{COLUMN_ID}, COLUMN_FILE_NAME + " = ?",
+                new String[]{fileName}, null, null, null);
+        int deleted = 0;
+        try {
+            while (c.moveToNext()) {
+                deleted += delete(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        Log.i("db1", fileName + (deleted > 0 ? "정상적으로 삭제 되었습니다." : "에 해당하는 녹음이 없습니다."));
+        return deleted;
+    }
+
+    /**
+     * _id로 행을 지운다.
+     *
+     * @param id 지울 행의 _id
+     * @return 지워진 행의 개수. 일치하는 것이 없으면 0
+     */
+    public int delete(long id) {
+        int deleted = deleteRow(id);
+        if (deleted > 0) {
+            notifyChange(CHANGE_DELETED, id);
+        }
+        return deleted;
+    }
+
+    private int deleteRow(long id) {
+        getDatabase();
+        synchronized (deleteStatement) {
+            deleteStatement.bindLong(1, id);
+            try {
+                return deleteStatement.executeUpdateDelete();
+            } finally {
+                deleteStatement.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * 행을 바로 지우지 않고 삭제 표시(deleted_at)만 한다. 표시된 행은 모든 조회에서 빠지고,
+     * 리스너에게는 지워진 것으로 알린다. 녹음 파일과 행은 TombstoneSweeper가 나중에 모아서 지우고,
+     * 그 전까지는 restore로 되돌릴 수 있다.
+     *
+     * @param id 지울 행의 _id
+     * @return 표시된 행의 개수. 없거나 이미 표시된 행이면 0
+     */
+    public int markDeleted(long id) {
+        getDatabase();
+        int marked;
+        synchronized (markDeletedStatement) {
+            markDeletedStatement.bindLong(1, System.currentTimeMillis());
+            markDeletedStatement.bindLong(2, id);
+            try {
+                marked = markDeletedStatement.executeUpdateDelete();
+            } finally {
+                markDeletedStatement.clearBindings();
+            }
+        }
+        if (marked > 0) {
+            notifyChange(CHANGE_DELETED, id);
+        }
+        return marked;
+    }
+
+    /**
+     * 삭제 표시를 되돌린다. 리스너에게는 다시 추가된 것으로 알린다.
+     *
+     * @param id 되돌릴 행의 _id
+     * @return 되돌린 행의 개수. 이미 지워졌거나 표시되지 않은 행이면 0
+     */
+    public int restore(long id) {
+        getDatabase();
+        int restored;
+        synchronized (restoreStatement) {
+            restoreStatement.bindLong(1, id);
+            try {
+                restored = restoreStatement.executeUpdateDelete();
+            } finally {
+                restoreStatement.clearBindings();
+            }
+        }
+        if (restored > 0) {
+            notifyChange(CHANGE_INSERTED, id);
+        }
+        return restored;
+    }
+
+    /**
+     * deletedBefore 이전에 삭제 표시된 행을 limit개 읽어온다. TombstoneSweeper가 지울 파일 이름을 얻을 때 사용한다.
+     *
+     * @return _id 오름차순의 ReminderRecord 목록(_id, 파일 이름만 채워짐)
+     */
+    public List<ReminderRecord> queryTombstones(long deletedBefore, int limit) {
+        SQLiteDatabase db = getDatabase();
+        Cursor c = db.query(tableName, new String[]{COLUMN_ID, COLUMN_FILE_NAME}, "deleted_at < ?",
+                new String[]{String.valueOf(deletedBefore)}, null, null, COLUMN_ID, String.valueOf(limit));
+        return readRecords(c);
+    }
+
+    /**
+     * 파일 이름 순서로 afterName 다음의 행을 limit개 읽어온다. 삭제 표시된 행도 포함한다(파일이 아직 남아 있으므로).
+     * fileName 인덱스를 따라 읽으므로 OrphanReconciler가 정렬된 파일 목록과 나란히 비교할 수 있다.
+     *
+     * @param afterName 이 이름보다 뒤의 행만 읽는다. 처음에는 ""
+     * @return 파일 이름 오름차순의 ReminderRecord 목록(_id, 파일 이름만 채워짐)
+     */
+    public List<ReminderRecord> queryFileNames(String afterName, int limit) {
+        SQLiteDatabase db = getDatabase();
+        Cursor c = db.query(tableName, new String[]{COLUMN_ID, COLUMN_FILE_NAME, COLUMN_DELETED_AT}, COLUMN_FILE_NAME + " > ?",
+                new String[]{afterName}, null, null, COLUMN_FILE_NAME + ", " + COLUMN_ID, String.valueOf(limit));
+        return readRecords(c);
+    }
+
+    /**
+     * 삭제 표시된 행을 실제로 지운다. 이미 지워진 것으로 알렸으므로 리스너에게 다시 알리지 않는다.
+     * 그 사이에 restore된 행은 지우지 않는다.
+     *
+     * @return 지워진 행의 개수. 삭제 표시가 없는 행이면 0
      */
-    public void delete (String fileName) {
-        db = helper.getWritableDatabase();
-        db.delete(tableName, "fileName=?", new String[]{fileName});
-        Log.i("db1", fileName + "정상적으로 삭제 되었습니다.");
+    public int purge(long id) {
+        getDatabase();
+        synchronized (purgeStatement) {
+            purgeStatement.bindLong(1, id);
+            try {
+                return purgeStatement.executeUpdateDelete();
+            } finally {
+                purgeStatement.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * 음성 인식을 기다리는 녹음을 stt_job에 넣는다. 같은 파일 이름이 이미 있으면 넣지 않는다.
+     * record 테이블이 아니므로 리스너에게 알리지 않는다.
+     *
+     * @param trim 녹음 앞뒤를 잘라낸 구간. 모르면 null
+     * @return 새로 넣은 행의 _id. 이미 있으면 -1
+     */
+    public long enqueueSttJob(String fileName, AudioTrim trim) {
+        SQLiteDatabase db = getDatabase();
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_FILE_NAME, fileName);
+        values.put("created_at", now);
+        values.put("next_attempt_at", now);
+        if (trim != null) {
+            values.put("trim_start_ms", trim.startMillis);
+            values.put("trim_end_ms", trim.endMillis);
+            values.put("original_ms", trim.originalMillis);
+        }
+        return db.insertWithOnConflict(JOB_TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * @return 파일 이름의 stt_job 행. 없으면(이미 끝났으면) null
+     */
+    public SttJob getSttJob(String fileName) {
+        SQLiteDatabase db = getDatabase();
+        Cursor c = db.query(JOB_TABLE, JOB_COLUMNS, COLUMN_FILE_NAME + " = ?", new String[]{fileName},
+                null, null, null, "1");
+        List<SttJob> jobs = readJobs(c);
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    /**
+     * 다시 보낼 시각(next_attempt_at)이 now 이전인 stt_job을 오래 기다린 순서로 읽어온다.
+     */
+    public List<SttJob> queryDueSttJobs(long now, int limit) {
+        SQLiteDatabase db = getDatabase();
+        Cursor c = db.query(JOB_TABLE, JOB_COLUMNS, "next_attempt_at <= ?", new String[]{String.valueOf(now)},
+                null, null, "next_attempt_at, " + COLUMN_ID, String.valueOf(limit));
+        return readJobs(c);
+    }
+
+    /**
+     * @return 가장 빨리 다시 보낼 stt_job의 시각. 없으면 null
+     */
+    public Long nextSttJobAt() {
+        SQLiteDatabase db = getDatabase();
+        Cursor c = db.rawQuery("SELECT MIN(next_attempt_at) FROM " + JOB_TABLE, null);
+        try {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 인식에 실패한 stt_job의 실패 횟수와 다시 보낼 시각을 적는다.
+     *
+     * @return 바뀐 행의 개수
+     */
+    public int retrySttJob(long id, int attempts, long nextAttemptAt, String error) {
+        SQLiteDatabase db = getDatabase();
+        ContentValues values = new ContentValues();
+        values.put("attempts", attempts);
+        values.put("next_attempt_at", nextAttemptAt);
+        values.put("last_error", error);
+        return db.update(JOB_TABLE, values, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+    }
+
+    /**
+     * 인식이 끝났거나 포기한 stt_job을 지운다.
+     *
+     * @return 지워진 행의 개수
+     */
+    public int deleteSttJob(String fileName) {
+        SQLiteDatabase db = getDatabase();
+        return db.delete(JOB_TABLE, COLUMN_FILE_NAME + " = ?", new String[]{fileName});
+    }
+
+    private static List<SttJob> readJobs(Cursor c) {
+        try {
+            List<SttJob> jobs = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                AudioTrim trim = c.isNull(4) ? null : new AudioTrim(c.getLong(4), c.getLong(5), c.getLong(6));
+                jobs.add(new SttJob(c.getLong(0), c.getString(1), c.getLong(2), c.getInt(3), trim));
+            }
+            return jobs;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * RecordLabels.ANALYZER_VERSION보다 이전 버전의 분석기로 분석한(혹은 아직 분석하지 않은) 행을 _id 순서로 읽어온다.
+     * ReanalysisJob이 afterId를 마지막으로 읽은 _id로 바꿔가며 limit개씩 읽는다.
+     *
+     * @param afterId 이 _id보다 큰 행만 읽는다. 처음에는 0
+     * @param limit   한 번에 읽을 최대 행 수
+     * @return _id 오름차순의 ReminderRecord 목록(_id, 파일 이름, 알람 시각, text만 채워짐)
+     */
+    public List<ReminderRecord> queryOutdated(long afterId, int limit) {
+        SQLiteDatabase db = getDatabase();
+        Cursor c = db.query(tableName, new String[]{COLUMN_ID, COLUMN_FILE_NAME, COLUMN_ALARM_AT, COLUMN_TEXT},
+                COLUMN_ID + " > ? AND analyzer_version < ? AND " + ALIVE,
+                new String[]{String.valueOf(afterId), String.valueOf(RecordLabels.ANALYZER_VERSION)},
+                null, null, COLUMN_ID, String.valueOf(limit));
+        return readRecords(c);
+    }
+
+    /**
+     * 다시 분석한 알람 시각과 목록 글자를 저장하고 analyzer_version을 현재 버전으로 올린다.
+     * text와 전문 검색 색인은 바뀌지 않는다.
+     * 분석하는 동안 행이 삭제 표시되었거나 text가 바뀌었거나 이미 현재 버전이면 저장하지 않는다.
+     *
+     * @param id      저장할 행의 _id
+     * @param text    분석한 text. 행의 text가 이와 다르면 저장하지 않는다.
+     * @param alarmAt 다시 계산한 알람 시각의 epoch millis, 일반 메모인 경우 null
+     * @param labels  다시 만든 목록 글자
+     * @return 업데이트된 행의 개수
+     */
+    int saveAnalysis(long id, String text, Long alarmAt, RecordLabels labels) {
+        getDatabase();
+        int updated;
+        synchronized (analysisStatement) {
+            bindLong(analysisStatement, 1, alarmAt);
+            bindString(analysisStatement, 2, labels.content);
+            analysisStatement.bindString(3, labels.contentLabel);
+            analysisStatement.bindString(4, labels.timeLabel);
+            analysisStatement.bindLong(5, RecordLabels.ANALYZER_VERSION);
+            analysisStatement.bindLong(6, id);
+            analysisStatement.bindLong(7, RecordLabels.ANALYZER_VERSION);
+            bindString(analysisStatement, 8, text);
+            try {
+                updated = analysisStatement.executeUpdateDelete();
+            } finally {
+                analysisStatement.clearBindings();
+            }
+        }
+        if (updated > 0) {
+            notifyChange(CHANGE_UPDATED, id);
+        }
+        return updated;
+    }
+
+    private static void bindLong(SQLiteStatement statement, int index, Long value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value);
+        }
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
     }
 
 //    //연 월 일 시 분 초 각각 받는 함수 만들고, 일단 예비용 연도 반환 함수
 //    public int getYear(String attName)//Attribute Name
 //    {
-//        db = helper.getReadableDatabase();
+//        SQLiteDatabase db = getDatabase();
 //        String SQL ="SELECT "+attName+" FROM "+tableName+";";
 //        Cursor c = db.rawQuery(SQL,null);
 //        String date="";
@@ -87,105 +641,264 @@ public class DataBase {
 //    }//쓰면 안됨, where이 구체적으로 안잡힘
 
     /**
-     *  녹음 파일을 재생할 때, 파일의 이름을 가지고 찾으므로 모든 파일의 이름을 불러오는 역할을 한다.
+     * 녹음 파일 목록을 만들거나 재생할 때, 필요한 컬럼을 커서 하나로 한 번에 읽어온다.
+     * 파일 이름, 알람 시각, 내용을 따로 조회하면 세 번 전체를 읽어야 하고
+     * 그 사이에 행이 추가되면 배열의 index가 서로 어긋나므로 한 행을 하나의 객체로 묶어서 돌려준다.
      *
-     * @return 파일의 이름이 String이므로 String[]를 리턴한다.
+     * @param columns 읽어올 컬럼(COLUMN_*). 비어 있으면 모든 컬럼을 읽는다.
+     * @return 저장된 순서(_id 오름차순)의 ReminderRecord 목록
      */
-
-    public String[] getAllFileName(){
-        db = helper.getReadableDatabase();
-        String SQL ="SELECT fileName FROM "+tableName+";";
-        Cursor c = db.rawQuery(SQL,null);
-        int num = c.getCount();
-        String temp [] = new String[num];
-        for(int i=0;i<num;i++){
-            c.moveToNext();
-            temp[i] = c.getString(0);
+    public List<ReminderRecord> queryRecords(String... columns) {
+        SQLiteDatabase db = getDatabase();
+        if (columns == null || columns.length == 0) {
+            columns = ALL_COLUMNS;
         }
-        return temp;
+        Cursor c = db.query(tableName, columns, ALIVE, null, null, null, COLUMN_ID);
+        return readRecords(c);
     }
 
     /**
-     * 가장 끝의 파일, 즉 최신파일을 가져오기 위해 사용된다.
-     * VoiceRecorder에서 파일을 저장한뒤, 메인에서 구글 STT 서버로 보내기 위해서는 가장 최신 파일이 필요한데,
-     * 이를 인자로 넘겨주지 않고 디비에 저장된 가장 끝 파일의 이름을 가져온 뒤 보내도록 했다.
-     * 기기는 구글 STT서버에서 받은 텍스트를 정규식을 통해 분석할 때 까지 녹음을 하지 않으므로 문제가 없다.
+     * 목록과 재생에서 녹음을 최신순으로 조금씩 읽어오기 위해 사용된다.
+     * OFFSET 대신 마지막으로 읽은 _id를 기준(keyset)으로 다음 페이지를 찾으므로
+     * 녹음이 수만 개여도 primary key 인덱스를 따라 limit개만 읽는다.
      *
-     * @return 가장 끝의 파일 이름 String을 리턴한다.
+     * @param beforeId 이 _id보다 작은 행만 읽는다. 첫 페이지는 Long.MAX_VALUE
+     * @param limit    한 번에 읽을 최대 행 수
+     * @param columns  읽어올 컬럼(COLUMN_*). 비어 있으면 모든 컬럼을 읽는다.
+     * @return _id 내림차순(최신순)의 ReminderRecord 목록. 더 이상 없으면 빈 목록
      */
-
-    public String getLastFileName(){
-        db = helper.getReadableDatabase();
-        String SQL ="SELECT fileName FROM "+tableName+";";
-        Cursor c = db.rawQuery(SQL,null);
-        int num = c.getCount();
-        String temp [] = new String[num];
-        for(int i=0;i<num;i++){
-            c.moveToNext();
-            temp[i] = c.getString(0);
+    public List<ReminderRecord> queryPage(long beforeId, int limit, String... columns) {
+        SQLiteDatabase db = getDatabase();
+        if (columns == null || columns.length == 0) {
+            columns = ALL_COLUMNS;
         }
-        return temp[num-1];
+        Cursor c = db.query(tableName, columns, COLUMN_ID + " < ? AND " + ALIVE, new String[]{String.valueOf(beforeId)},
+                null, null, COLUMN_ID + " DESC", String.valueOf(limit));
+        return readRecords(c);
     }
 
-    public String getLastText(){
-        db = helper.getReadableDatabase();
-        String SQL ="SELECT text FROM "+tableName+";";
-        Cursor c = db.rawQuery(SQL,null);
-        int num = c.getCount();
-        String temp [] = new String[num];
-        for(int i=0;i<num;i++){
-            c.moveToNext();
-            temp[i] = c.getString(0);
+    /**
+     * 최신 녹음부터 limit개와 전체 녹음 수를 SELECT 한 문장으로 읽는다.
+     * 한 문장은 WAL에서 한 스냅숏을 읽으므로, 그 사이에 다른 쓰기가 끝나도 두 값이 어긋나지 않는다.
+     *
+     * @param totalCount [0]에 전체 녹음 수를 받는다.
+     * @return _id 내림차순의 ReminderRecord 목록
+     */
+    public List<ReminderRecord> queryFirstPage(int limit, int[] totalCount, String... columns) {
+        SQLiteDatabase db = getDatabase();
+        if (columns == null || columns.length == 0) {
+            columns = ALL_COLUMNS;
         }
-        return temp[num-1];
+        String[] withCount = Arrays.copyOf(columns, columns.length + 1);
+        withCount[columns.length] = "(SELECT COUNT(*) FROM " + tableName + " WHERE " + ALIVE + ") AS total_count";
+        Cursor c = db.query(tableName, withCount, ALIVE, null, null, null, COLUMN_ID + " DESC", String.valueOf(limit));
+        //행이 없으면 살아 있는 녹음이 없는 것이다.
+        totalCount[0] = c.moveToFirst() ? c.getInt(c.getColumnIndex("total_count")) : 0;
+        c.moveToPosition(-1);
+        return readRecords(c);
     }
 
-    public String getLastAlarmText(){
-        db = helper.getReadableDatabase();
-        String SQL ="SELECT alarmTime FROM "+tableName+";";
-        Cursor c = db.rawQuery(SQL,null);
-        int num = c.getCount();
-        String temp [] = new String[num];
-        for(int i=0;i<num;i++){
-            c.moveToNext();
-            temp[i] = c.getString(0);
-        }
-        return temp[num-1];
+    /**
+     * 알람 시각이 [fromMillis, toMillis) 안에 있는 녹음을 알람 시각 순서로 읽어온다.
+     * alarm_at 인덱스의 범위 검색이므로 알람 문자열을 전부 읽어 파싱할 필요가 없다. 일반 메모(null)는 포함되지 않는다.
+     *
+     * @param fromMillis 시작 시각(포함), epoch millis
+     * @param toMillis   끝 시각(제외), epoch millis
+     * @return 알람 시각 오름차순의 ReminderRecord 목록
+     */
+    public List<ReminderRecord> dueBetween(long fromMillis, long toMillis) {
+        SQLiteDatabase db = getDatabase();
+        Cursor c = db.query(tableName, ALL_COLUMNS, COLUMN_ALARM_AT + " >= ? AND " + COLUMN_ALARM_AT + " < ? AND " + ALIVE,
+                new String[]{String.valueOf(fromMillis), String.valueOf(toMillis)},
+                null, null, COLUMN_ALARM_AT + ", " + COLUMN_ID);
+        return readRecords(c);
     }
-    public String[] getAllAlarmTime(){
-        db = helper.getReadableDatabase();
-        String SQL ="SELECT alarmTime FROM "+tableName+";";
-        Cursor c = db.rawQuery(SQL,null);
-        int num = c.getCount();
-        String temp [] = new String[num];
-        for(int i=0;i<num;i++){
-            c.moveToNext();
-            temp[i] = c.getString(0);
-            System.out.println("test : " + temp[i]);
+
+    /**
+     * 지금 이후에 울릴 알람을 가까운 순서로 limit개 읽어온다.
+     * 재부팅 후 알람을 다시 등록하거나 다음 알람을 보여줄 때 사용한다.
+     *
+     * @param limit 읽어올 최대 개수
+     * @return 알람 시각 오름차순의 ReminderRecord 목록
+     */
+    public List<ReminderRecord> nextDue(int limit) {
+        SQLiteDatabase db = getDatabase();
+        Cursor c = db.query(tableName, ALL_COLUMNS, COLUMN_ALARM_AT + " >= ? AND " + ALIVE,
+                new String[]{String.valueOf(System.currentTimeMillis())},
+                null, null, COLUMN_ALARM_AT + ", " + COLUMN_ID, String.valueOf(limit));
+        return readRecords(c);
+    }
+
+    /**
+     * 커서의 모든 행을 ReminderRecord로 바꾼 뒤 커서를 닫는다. 커서에 없는 컬럼은 기본값으로 둔다.
+     * minSdk 16을 지원해야 해서 try-with-resources(API 19) 대신 finally에서 닫는다.
+     */
+    private List<ReminderRecord> readRecords(Cursor c) {
+        try {
+            int idIndex = c.getColumnIndex(COLUMN_ID);
+            int fileNameIndex = c.getColumnIndex(COLUMN_FILE_NAME);
+            int alarmAtIndex = c.getColumnIndex(COLUMN_ALARM_AT);
+            int textIndex = c.getColumnIndex(COLUMN_TEXT);
+            int contentLabelIndex = c.getColumnIndex(COLUMN_CONTENT_LABEL);
+            int timeLabelIndex = c.getColumnIndex(COLUMN_TIME_LABEL);
+            int deletedAtIndex = c.getColumnIndex(COLUMN_DELETED_AT);
+
+            List<ReminderRecord> records = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                records.add(new ReminderRecord(
+                        idIndex < 0 ? 0 : c.getLong(idIndex),
+                        fileNameIndex < 0 ? null : c.getString(fileNameIndex),
+                        alarmAtIndex < 0 || c.isNull(alarmAtIndex) ? null : c.getLong(alarmAtIndex),
+                        textIndex < 0 ? null : c.getString(textIndex),
+                        contentLabelIndex < 0 ? null : c.getString(contentLabelIndex),
+                        timeLabelIndex < 0 ? null : c.getString(timeLabelIndex),
+                        deletedAtIndex >= 0 && !c.isNull(deletedAtIndex)));
+            }
+            return records;
+        } finally {
+            c.close();
         }
-        return temp;
     }
 
-    public String[] getAllContent(){
-        db = helper.getReadableDatabase();
-        String SQL ="SELECT text FROM "+tableName+";";
-        Cursor c = db.rawQuery(SQL,null);
-        int num = c.getCount();
-        String temp [] = new String[num];
-        for(int i=0;i<num;i++){
-            c.moveToNext();
-            temp[i] = c.getString(0);
-            System.out.println("test : " + temp[i]);
+    /**
+     * _id로 한 행을 읽어온다. 변경 알림을 받은 뒤 바뀐 행만 다시 읽을 때 사용한다.
+     *
+     * @param id 읽어올 행의 _id
+     * @return 해당 ReminderRecord. 없으면 null
+     */
+    public ReminderRecord getRecord(long id) {
+        SQLiteDatabase db = getDatabase();
+        Cursor c = db.query(tableName, ALL_COLUMNS, COLUMN_ID + " = ? AND " + ALIVE,
+                new String[]{String.valueOf(id)}, null, null, null);
+        List<ReminderRecord> records = readRecords(c);
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    /**
+     * 파일 이름으로 한 행을 읽어온다. fileName 인덱스를 사용한다.
+     *
+     * @param fileName 녹음 파일의 이름
+     * @return 해당 ReminderRecord. 없으면 null
+     */
+    public ReminderRecord getRecordByFileName(String fileName) {
+        SQLiteDatabase db = getDatabase();
+        Cursor c = db.query(tableName, ALL_COLUMNS, COLUMN_FILE_NAME + " = ? AND " + ALIVE,
+                new String[]{fileName}, null, null, null, "1");
+        List<ReminderRecord> records = readRecords(c);
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    /**
+     * 가장 끝의 행, 즉 최신 녹음을 가져오기 위해 사용된다.
+     * _id 내림차순으로 한 행만 읽으므로 테이블이 커져도 비용이 같다.
+     *
+     * @return 가장 최근에 저장된 ReminderRecord. 테이블이 비어 있으면 null
+     */
+    public ReminderRecord getLatestRecord() {
+        SQLiteDatabase db = getDatabase();
+        Cursor c = db.query(tableName, ALL_COLUMNS, ALIVE, null, null, null, COLUMN_ID + " DESC", "1");
+        List<ReminderRecord> records = readRecords(c);
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    /**
+     * 저장된 녹음의 개수를 SELECT COUNT(*)로 구한다.
+     *
+     * @return 저장된 녹음의 개수
+     */
+    public int count() {
+        SQLiteDatabase db = getDatabase();
+        return (int) DatabaseUtils.queryNumEntries(db, tableName, ALIVE);
+    }
+
+    /**
+     * 인식된 text에서 검색어가 들어 있는 메모를 찾는다.
+     * record_fts(FTS4) 색인을 bi-gram으로 찾으므로 LIKE '%...%'처럼 테이블 전체를 읽지 않는다.
+     * 결과는 matchinfo로 계산한 점수(많이, 드문 조각이 맞을수록 높음) 순서이고, 상위 limit개만 힙에 남긴다.
+     *
+     * @param query 검색어
+     * @param limit 돌려줄 최대 개수
+     * @return 점수가 높은 순서의 ReminderRecord 목록. 검색할 글자가 없으면 빈 목록
+     */
+    public List<ReminderRecord> search(String query, int limit) {
+        String match = NGram.matchQuery(query);
+        if (match == null || limit <= 0) {
+            return new ArrayList<>();
         }
-        return temp;
+        SQLiteDatabase db = getDatabase();
+
+        //점수가 가장 낮은 것이 맨 앞에 오는 힙. limit개를 넘으면 가장 낮은 것을 버린다.
+        PriorityQueue<double[]> top = new PriorityQueue<double[]>(limit + 1, BY_SCORE);
+        Cursor c = db.rawQuery("SELECT docid, matchinfo(record_fts, 'pcnx') FROM record_fts "
+                        + "JOIN record ON record._id = record_fts.docid WHERE record_fts MATCH ? AND record." + ALIVE + ";",
+                new String[]{match});
+        try {
+            while (c.moveToNext()) {
+                top.add(new double[]{c.getLong(0), score(c.getBlob(1))});
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+        } finally {
+            c.close();
+        }
+        if (top.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        List<double[]> ranked = new ArrayList<>(top);
+        Collections.sort(ranked, Collections.reverseOrder(BY_SCORE));
+        StringBuilder where = new StringBuilder(COLUMN_ID + " IN (");
+        String[] args = new String[ranked.size()];
+        for (int i = 0; i < ranked.size(); i++) {
+            where.append(i == 0 ? "?" : ", ?");
+            args[i] = String.valueOf((long) ranked.get(i)[0]);
+        }
+        where.append(")");
+
+        Map<Long, ReminderRecord> byId = new HashMap<>();
+        for (ReminderRecord record : readRecords(db.query(tableName, ALL_COLUMNS, where.toString(), args,
+                null, null, null))) {
+            byId.put(record.getId(), record);
+        }
+        List<ReminderRecord> records = new ArrayList<>(ranked.size());
+        for (double[] entry : ranked) {
+            ReminderRecord record = byId.get((long) entry[0]);
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        return records;
     }
 
-    public int getAllPlayListNum()
-    {
-        db = helper.getReadableDatabase();
-        String SQL ="SELECT alarmTime FROM "+tableName+";";
-        Cursor c = db.rawQuery(SQL,null);
-        int num = c.getCount();
-        return num;
+    //{_id, 점수} 쌍을 점수로 비교한다.
+    private static final Comparator<double[]> BY_SCORE = new Comparator<double[]>() {
+        @Override
+        public int compare(double[] a, double[] b) {
+            return Double.compare(a[1], b[1]);
+        }
+    };
+
+    /**
+     * matchinfo(record_fts, 'pcnx')의 결과로 tf-idf 점수를 계산한다.
+     * p: 검색 조각 수, c: 컬럼 수, n: 전체 행 수, x: 조각과 컬럼마다 (이 행의 개수, 전체 개수, 들어 있는 행 수)
+     */
+    private static double score(byte[] matchInfo) {
+        ByteBuffer buffer = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder());
+        int phrases = buffer.getInt(0);
+        int columns = buffer.getInt(4);
+        long rows = buffer.getInt(8) & 0xffffffffL;
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int col = 0; col < columns; col++) {
+                int offset = 12 + 12 * (p * columns + col);
+                long hits = buffer.getInt(offset) & 0xffffffffL;
+                long docs = buffer.getInt(offset + 8) & 0xffffffffL;
+                if (hits > 0 && docs > 0) {
+                    score += hits * Math.log(1.0 + (double) rows / docs);
+                }
+            }
+        }
+        return score;
     }
 }
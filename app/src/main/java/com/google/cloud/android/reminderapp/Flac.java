@@ -0,0 +1,412 @@
+package com.google.cloud.android.reminderapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * 음성 인식으로 올리는 16bit 모노 PCM을 FLAC으로 무손실 압축하는 인코더이다.
+ *
+ * BLOCK_SIZE 샘플마다 프레임 하나를 만든다. 프레임마다 고정 예측(FLAC fixed predictor, 0~4차) 중
+ * 잔차가 가장 작은 것을 골라 잔차를 Rice 부호로 쓰고, 그보다 커지면 그대로(verbatim) 쓴다.
+ * 전부 같은 값이면(잘라내지 못한 무음) constant 프레임 하나로 끝난다.
+ * 스트림으로 읽으면서 만들기 때문에 전체 샘플 수와 MD5는 STREAMINFO에 0(모름)으로 둔다.
+ */
+final class Flac {
+
+    static final int BLOCK_SIZE = 4096;
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 6;
+    //4bit Rice parameter에서 15는 escape이므로 14까지 쓴다.
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xff;
+            CRC16_TABLE[i] = crc16 & 0xffff;
+        }
+    }
+
+    private Flac() {
+    }
+
+    /**
+     * pcm(little-endian 16bit 모노)을 읽으면서 FLAC 스트림으로 바꿔 읽는 스트림을 돌려준다.
+     * 돌려받은 스트림을 닫으면 pcm도 닫힌다.
+     */
+    static InputStream encode(InputStream pcm, int sampleRate) {
+        return new EncoderInputStream(pcm, sampleRate);
+    }
+
+    /**
+     * PCM을 BLOCK_SIZE 샘플씩 읽어 프레임으로 만들고, 만든 프레임을 다 읽으면 다음 블록을 읽는다.
+     * 처음 읽을 때는 프레임 앞에 스트림 헤더("fLaC" + STREAMINFO)가 붙는다.
+     */
+    static final class EncoderInputStream extends InputStream {
+
+        private final InputStream in;
+        private final byte[] pcm = new byte[BLOCK_SIZE * 2];
+        private final int[] samples = new int[BLOCK_SIZE];
+        private final int[] residual = new int[BLOCK_SIZE];
+        private final int[] riceParameters = new int[1 << MAX_PARTITION_ORDER];
+        private final BitWriter out = new BitWriter(BLOCK_SIZE * 2 + 64);
+        private int position;
+        private int frameNumber;
+        private boolean eof;
+
+        EncoderInputStream(InputStream in, int sampleRate) {
+            this.in = in;
+            writeStreamHeader(sampleRate);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return out.buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, out.length - position);
+            System.arraycopy(out.buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean fill() throws IOException {
+            if (position < out.length) {
+                return true;
+            }
+            if (eof) {
+                return false;
+            }
+            int length = 0;
+            while (length < pcm.length) {
+                int n = in.read(pcm, length, pcm.length - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+            if (length < pcm.length) {
+                eof = true;
+            }
+            //샘플 경계에 걸친 마지막 한 바이트는 버린다.
+            int count = length / 2;
+            if (count == 0) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                samples[i] = (short) ((pcm[2 * i] & 0xff) | (pcm[2 * i + 1] << 8));
+            }
+            if (position > 0) {
+                out.reset();
+                position = 0;
+            }
+            writeFrame(count);
+            return true;
+        }
+
+        private void writeStreamHeader(int sampleRate) {
+            out.writeBits('f', 8);
+            out.writeBits('L', 8);
+            out.writeBits('a', 8);
+            out.writeBits('C', 8);
+            //마지막 메타데이터 블록, 종류 0(STREAMINFO), 길이 34
+            out.writeBits(0x80, 8);
+            out.writeBits(34, 24);
+            out.writeBits(BLOCK_SIZE, 16);
+            out.writeBits(BLOCK_SIZE, 16);
+            //최소/최대 프레임 크기는 모름
+            out.writeBits(0, 24);
+            out.writeBits(0, 24);
+            out.writeBits(sampleRate, 20);
+            out.writeBits(0, 3);
+            out.writeBits(BITS_PER_SAMPLE - 1, 5);
+            //전체 샘플 수(36bit)와 MD5는 모름
+            out.writeBits(0, 4);
+            out.writeBits(0, 32);
+            for (int i = 0; i < 4; i++) {
+                out.writeBits(0, 32);
+            }
+        }
+
+        private void writeFrame(int count) {
+            int start = out.length;
+            //sync code, 고정 블록 크기
+            out.writeBits(0xfff8, 16);
+            //블록 크기는 헤더 끝의 16bit, 샘플 레이트는 STREAMINFO를 따른다.
+            out.writeBits(7, 4);
+            out.writeBits(0, 4);
+            //모노, 16bit
+            out.writeBits(0, 4);
+            out.writeBits(4, 3);
+            out.writeBits(0, 1);
+            writeUtf8(frameNumber++);
+            out.writeBits(count - 1, 16);
+            out.writeBits(crc8(out.buffer, start, out.length), 8);
+            writeSubframe(count);
+            out.alignToByte();
+            out.writeBits(crc16(out.buffer, start, out.length), 16);
+        }
+
+        private void writeUtf8(int value) {
+            if (value < 0x80) {
+                out.writeBits(value, 8);
+                return;
+            }
+            int bytes = 2;
+            while (bytes < 6 && value >= 1 << (5 * bytes + 1)) {
+                bytes++;
+            }
+            out.writeBits(((0xff00 >> bytes) & 0xff) | (value >>> (6 * (bytes - 1))), 8);
+            for (int i = bytes - 2; i >= 0; i--) {
+                out.writeBits(0x80 | ((value >>> (6 * i)) & 0x3f), 8);
+            }
+        }
+
+        private void writeSubframe(int count) {
+            if (isConstant(count)) {
+                out.writeBits(0, 8);
+                out.writeBits(samples[0], BITS_PER_SAMPLE);
+                return;
+            }
+            long verbatimBits = (long) count * BITS_PER_SAMPLE;
+            int order = bestFixedOrder(count);
+            if (order >= 0) {
+                computeResidual(order, count);
+                int partitionOrder = bestPartitionOrder(order, count);
+                long bits = (long) order * BITS_PER_SAMPLE + 6
+                        + partitionBits(order, count, partitionOrder, true);
+                if (bits < verbatimBits) {
+                    out.writeBits((0x08 | order) << 1, 8);
+                    for (int i = 0; i < order; i++) {
+                        out.writeBits(samples[i], BITS_PER_SAMPLE);
+                    }
+                    writeResidual(order, count, partitionOrder);
+                    return;
+                }
+            }
+            out.writeBits(0x01 << 1, 8);
+            for (int i = 0; i < count; i++) {
+                out.writeBits(samples[i], BITS_PER_SAMPLE);
+            }
+        }
+
+        private boolean isConstant(int count) {
+            for (int i = 1; i < count; i++) {
+                if (samples[i] != samples[0]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 잔차 절댓값의 합이 가장 작은 고정 예측 차수. 샘플이 너무 적으면 -1
+         */
+        private int bestFixedOrder(int count) {
+            int best = -1;
+            long bestSum = Long.MAX_VALUE;
+            for (int order = 0; order <= MAX_FIXED_ORDER && order < count; order++) {
+                computeResidual(order, count);
+                long sum = 0;
+                for (int i = order; i < count; i++) {
+                    sum += Math.abs(residual[i]);
+                }
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = order;
+                }
+            }
+            return best;
+        }
+
+        private void computeResidual(int order, int count) {
+            int[] x = samples;
+            for (int i = order; i < count; i++) {
+                switch (order) {
+                    case 0:
+                        residual[i] = x[i];
+                        break;
+                    case 1:
+                        residual[i] = x[i] - x[i - 1];
+                        break;
+                    case 2:
+                        residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                        break;
+                    case 3:
+                        residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                        break;
+                    default:
+                        residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                        break;
+                }
+            }
+        }
+
+        private int bestPartitionOrder(int order, int count) {
+            int best = 0;
+            long bestBits = Long.MAX_VALUE;
+            for (int p = 0; p <= MAX_PARTITION_ORDER; p++) {
+                if (count % (1 << p) != 0 || (count >> p) <= order) {
+                    break;
+                }
+                long bits = partitionBits(order, count, p, false);
+                if (bits < bestBits) {
+                    bestBits = bits;
+                    best = p;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * partitionOrder로 나눴을 때 잔차를 쓰는 데 드는 비트 수(근삿값).
+         * keep이면 구간마다 고른 Rice parameter를 riceParameters에 남긴다.
+         */
+        private long partitionBits(int order, int count, int partitionOrder, boolean keep) {
+            int partitions = 1 << partitionOrder;
+            int partitionSize = count >> partitionOrder;
+            long bits = 4;
+            int i = order;
+            for (int p = 0; p < partitions; p++) {
+                int end = (p + 1) * partitionSize;
+                int n = end - i;
+                long sum = 0;
+                for (; i < end; i++) {
+                    sum += zigzag(residual[i]);
+                }
+                int k = 0;
+                while (k < MAX_RICE_PARAMETER && ((long) n << (k + 1)) < sum) {
+                    k++;
+                }
+                if (keep) {
+                    riceParameters[p] = k;
+                }
+                bits += 4 + (long) n * (k + 1) + (sum >> k);
+            }
+            return bits;
+        }
+
+        private void writeResidual(int order, int count, int partitionOrder) {
+            //Rice 부호, 4bit parameter
+            out.writeBits(0, 2);
+            out.writeBits(partitionOrder, 4);
+            int partitions = 1 << partitionOrder;
+            int partitionSize = count >> partitionOrder;
+            int i = order;
+            for (int p = 0; p < partitions; p++) {
+                int k = riceParameters[p];
+                out.writeBits(k, 4);
+                int end = (p + 1) * partitionSize;
+                for (; i < end; i++) {
+                    int u = zigzag(residual[i]);
+                    out.writeUnary(u >>> k);
+                    if (k > 0) {
+                        out.writeBits(u, k);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int crc8(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+    /**
+     * MSB부터 채우는 비트 버퍼. 모자라면 늘린다.
+     */
+    private static final class BitWriter {
+
+        byte[] buffer;
+        int length;
+        private long accumulator;
+        private int bits;
+
+        BitWriter(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        /**
+         * value의 아래 count(32 이하)비트를 쓴다.
+         */
+        void writeBits(int value, int count) {
+            accumulator = (accumulator << count) | (value & ((1L << count) - 1));
+            bits += count;
+            while (bits >= 8) {
+                bits -= 8;
+                put((byte) (accumulator >>> bits));
+            }
+        }
+
+        /**
+         * 0을 value개 쓰고 1을 쓴다.
+         */
+        void writeUnary(int value) {
+            while (value >= 32) {
+                writeBits(0, 32);
+                value -= 32;
+            }
+            writeBits(1, value + 1);
+        }
+
+        void alignToByte() {
+            if (bits > 0) {
+                writeBits(0, 8 - bits);
+            }
+        }
+
+        void reset() {
+            length = 0;
+            bits = 0;
+        }
+
+        private void put(byte b) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[length++] = b;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.google.cloud.android.reminderapp;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 녹음 파일을 16bit PCM의 1/4 크기로 저장하기 위한 IMA ADPCM(4bit) 코덱이다.
+ *
+ * 파일은 HEADER_BYTES 길이의 헤더(MAGIC, 샘플 레이트) 뒤에 BLOCK_BYTES 크기의 블록이 이어진다.
+ * 블록마다 첫 샘플과 step index를 헤더로 가지므로(Microsoft IMA ADPCM 모노 블록과 같은 구조) 어느 블록부터 읽어도 풀 수 있다.
+ * 그래서 녹음 앞뒤를 자를 때 블록 단위로 잘라내기만 하면 된다.
+ * 헤더가 없는 파일은 이전 버전에서 저장한 16bit PCM으로 보고 그대로 읽는다(openPcm).
+ * 파일 이름의 확장자(.pcm)는 두 형식 모두 같으므로 형식은 항상 헤더로 구분한다.
+ */
+final class ImaAdpcm {
+
+    private static final byte[] MAGIC = {'I', 'M', 'A', 'A', 'D', 'P', 'C', 'M'};
+    /** MAGIC(8) + 샘플 레이트(4, little-endian) */
+    static final int HEADER_BYTES = MAGIC.length + 4;
+    static final int BLOCK_BYTES = 256;
+    //블록 헤더(첫 샘플 2 + index 1 + 예약 1) 뒤의 바이트마다 샘플이 두 개씩 들어간다.
+    private static final int BLOCK_HEADER_BYTES = 4;
+    static final int SAMPLES_PER_BLOCK = (BLOCK_BYTES - BLOCK_HEADER_BYTES) * 2 + 1;
+    /** 헤더가 없는 이전 버전의 파일은 이 샘플 레이트로 녹음되었다. */
+    static final int LEGACY_SAMPLE_RATE = 16000;
+
+    private static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    private ImaAdpcm() {
+    }
+
+    /**
+     * 파일 맨 앞에 쓸 헤더를 만든다.
+     */
+    static byte[] header(int sampleRate) {
+        byte[] header = new byte[HEADER_BYTES];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[8] = (byte) sampleRate;
+        header[9] = (byte) (sampleRate >> 8);
+        header[10] = (byte) (sampleRate >> 16);
+        header[11] = (byte) (sampleRate >> 24);
+        return header;
+    }
+
+    static boolean isHeader(byte[] data, int length) {
+        if (length < HEADER_BYTES) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 헤더에 적힌 샘플 레이트
+     */
+    static int sampleRate(byte[] header) {
+        return (header[8] & 0xff) | (header[9] & 0xff) << 8 | (header[10] & 0xff) << 16 | (header[11] & 0xff) << 24;
+    }
+
+    /**
+     * 녹음 파일을 16bit PCM으로 읽는 스트림을 돌려준다.
+     * ADPCM 헤더가 있으면 풀면서 읽고, 없으면(이전 .pcm 파일) 그대로 읽는다.
+     * 돌려받은 스트림을 닫으면 in도 닫힌다.
+     */
+    static PcmInputStream openPcm(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, BLOCK_BYTES * 16);
+        buffered.mark(HEADER_BYTES);
+        byte[] header = new byte[HEADER_BYTES];
+        int length = 0;
+        while (length < HEADER_BYTES) {
+            int n = buffered.read(header, length, HEADER_BYTES - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        if (isHeader(header, length)) {
+            return new PcmInputStream(new DecoderInputStream(buffered), sampleRate(header), true);
+        }
+        buffered.reset();
+        return new PcmInputStream(buffered, LEGACY_SAMPLE_RATE, false);
+    }
+
+    /**
+     * openPcm이 돌려주는 16bit PCM 스트림. 녹음 파일의 샘플 레이트와 PCM으로 풀었을 때의 크기를 알려준다.
+     */
+    static final class PcmInputStream extends FilterInputStream {
+
+        private final int sampleRate;
+        private final boolean adpcm;
+
+        PcmInputStream(InputStream in, int sampleRate, boolean adpcm) {
+            super(in);
+            this.sampleRate = sampleRate;
+            this.adpcm = adpcm;
+        }
+
+        int getSampleRate() {
+            return sampleRate;
+        }
+
+        /**
+         * @param fileBytes 녹음 파일의 크기(File.length())
+         * @return 이 스트림에서 읽게 될 PCM 바이트 수. 끝에 덜 쓰인 블록은 세지 않는다.
+         */
+        long pcmBytes(long fileBytes) {
+            if (!adpcm) {
+                return fileBytes;
+            }
+            return Math.max(0, fileBytes - HEADER_BYTES) / BLOCK_BYTES * SAMPLES_PER_BLOCK * 2;
+        }
+    }
+
+    /**
+     * encode에 넘길 PCM 바이트 수에 대해 out 배열이 가져야 할 최대 크기
+     */
+    static int maxEncodedBytes(int pcmBytes) {
+        return (pcmBytes / 2 / SAMPLES_PER_BLOCK + 1) * BLOCK_BYTES;
+    }
+
+    /**
+     * 16bit PCM을 받아 블록이 찰 때마다 ADPCM 블록으로 만든다. 한 스레드에서만 쓴다.
+     */
+    static final class Encoder {
+
+        private final short[] block = new short[SAMPLES_PER_BLOCK];
+        private int blockFill;
+        //샘플 경계에 걸쳐 들어온 바이트
+        private int pendingByte = -1;
+        private int predictor;
+        private int index;
+        private long samples;
+
+        /** 지금까지 받은 샘플 수 */
+        long getSamples() {
+            return samples;
+        }
+
+        /**
+         * @param pcm little-endian 16bit PCM
+         * @param out 다 찬 블록을 쓸 배열. maxEncodedBytes(length) 이상이어야 한다.
+         * @return out에 쓴 바이트 수(BLOCK_BYTES의 배수)
+         */
+        int encode(byte[] pcm, int offset, int length, byte[] out) {
+            int written = 0;
+            int i = offset;
+            int end = offset + length;
+            if (pendingByte >= 0 && i < end) {
+                written += add((short) (pendingByte | (pcm[i++] << 8)), out, written);
+                pendingByte = -1;
+            }
+            for (; i + 1 < end; i += 2) {
+                written += add((short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8)), out, written);
+            }
+            if (i < end) {
+                pendingByte = pcm[i] & 0xff;
+            }
+            return written;
+        }
+
+        /**
+         * 채우다 만 블록을 마지막 샘플로 채워 내보낸다. 녹음이 끝났을 때 한 번 부른다.
+         *
+         * @param out BLOCK_BYTES 이상
+         * @return out에 쓴 바이트 수
+         */
+        int flush(byte[] out) {
+            if (blockFill == 0) {
+                return 0;
+            }
+            short last = block[blockFill - 1];
+            while (blockFill < SAMPLES_PER_BLOCK) {
+                block[blockFill++] = last;
+            }
+            encodeBlock(out, 0);
+            blockFill = 0;
+            return BLOCK_BYTES;
+        }
+
+        private int add(short sample, byte[] out, int outOffset) {
+            samples++;
+            block[blockFill++] = sample;
+            if (blockFill < SAMPLES_PER_BLOCK) {
+                return 0;
+            }
+            encodeBlock(out, outOffset);
+            blockFill = 0;
+            return BLOCK_BYTES;
+        }
+
+        private void encodeBlock(byte[] out, int offset) {
+            //블록의 첫 샘플은 그대로 저장하고 이어서 예측을 시작한다.
+            predictor = block[0];
+            out[offset] = (byte) predictor;
+            out[offset + 1] = (byte) (predictor >> 8);
+            out[offset + 2] = (byte) index;
+            out[offset + 3] = 0;
+            int o = offset + BLOCK_HEADER_BYTES;
+            for (int s = 1; s < SAMPLES_PER_BLOCK; s += 2) {
+                int low = encodeSample(block[s]);
+                int high = encodeSample(block[s + 1]);
+                out[o++] = (byte) (low | (high << 4));
+            }
+        }
+
+        private int encodeSample(int sample) {
+            int step = STEP_TABLE[index];
+            int diff = sample - predictor;
+            int nibble = 0;
+            if (diff < 0) {
+                nibble = 8;
+                diff = -diff;
+            }
+            int delta = step >> 3;
+            if (diff >= step) {
+                nibble |= 4;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                nibble |= 2;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                nibble |= 1;
+                delta += step;
+            }
+            predictor = clampSample((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+            index = clampIndex(index + INDEX_TABLE[nibble]);
+            return nibble;
+        }
+    }
+
+    /**
+     * 헤더 뒤의 ADPCM 블록을 하나씩 읽어 16bit PCM으로 풀어주는 스트림이다.
+     * 블록 하나 크기의 배열 두 개만 계속 다시 쓴다. 끝에 덜 쓰인 블록이 있으면 버린다.
+     */
+    static final class DecoderInputStream extends InputStream {
+
+        private final InputStream in;
+        private final byte[] block = new byte[BLOCK_BYTES];
+        private final byte[] pcm = new byte[SAMPLES_PER_BLOCK * 2];
+        private int pcmPosition;
+        private int pcmLength;
+        private boolean eof;
+
+        DecoderInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return pcm[pcmPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, pcmLength - pcmPosition);
+            System.arraycopy(pcm, pcmPosition, b, off, n);
+            pcmPosition += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return pcmLength - pcmPosition
+                    + in.available() / BLOCK_BYTES * SAMPLES_PER_BLOCK * 2;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean fill() throws IOException {
+            if (pcmPosition < pcmLength) {
+                return true;
+            }
+            if (eof) {
+                return false;
+            }
+            int length = 0;
+            while (length < BLOCK_BYTES) {
+                int n = in.read(block, length, BLOCK_BYTES - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+            if (length < BLOCK_BYTES) {
+                eof = true;
+                return false;
+            }
+            decodeBlock();
+            pcmPosition = 0;
+            pcmLength = pcm.length;
+            return true;
+        }
+
+        private void decodeBlock() {
+            int predictor = (short) ((block[0] & 0xff) | (block[1] << 8));
+            int index = clampIndex(block[2]);
+            pcm[0] = block[0];
+            pcm[1] = block[1];
+            int o = 2;
+            for (int i = BLOCK_HEADER_BYTES; i < BLOCK_BYTES; i++) {
+                for (int shift = 0; shift <= 4; shift += 4) {
+                    int nibble = (block[i] >> shift) & 0x0f;
+                    int step = STEP_TABLE[index];
+                    int delta = step >> 3;
+                    if ((nibble & 4) != 0) {
+                        delta += step;
+                    }
+                    if ((nibble & 2) != 0) {
+                        delta += step >> 1;
+                    }
+                    if ((nibble & 1) != 0) {
+                        delta += step >> 2;
+                    }
+                    predictor = clampSample((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+                    index = clampIndex(index + INDEX_TABLE[nibble]);
+                    pcm[o++] = (byte) predictor;
+                    pcm[o++] = (byte) (predictor >> 8);
+                }
+            }
+        }
+    }
+
+    private static int clampSample(int sample) {
+        return sample > Short.MAX_VALUE ? Short.MAX_VALUE : sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample;
+    }
+
+    private static int clampIndex(int index) {
+        return index < 0 ? 0 : index > STEP_TABLE.length - 1 ? STEP_TABLE.length - 1 : index;
+    }
+}
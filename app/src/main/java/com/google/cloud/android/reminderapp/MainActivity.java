@@ -18,8 +18,6 @@ package com.google.cloud.android.reminderapp;
 
 import android.Manifest;
 import android.app.Activity;
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -34,7 +32,9 @@ import android.os.Bundle;
 import android.os.CountDownTimer;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
@@ -57,12 +57,9 @@ import com.tsengvn.typekit.TypekitContextWrapper;
 
 import org.w3c.dom.Text;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.nio.Buffer;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.List;
 import java.util.Timer;
 
 
@@ -73,6 +70,7 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
 
     Handler mHandler = new Handler();
     static DataBase db;
+    ReminderRepository repository;
     private SpeechService mSpeechService;
 
 //    private VoiceRecorder mVoiceRecorder;
@@ -126,34 +124,88 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
     private SoundPool sound;
     private int soundbeep;
 
-    TimeAnalysis timeAnalysis;
     ContentAnalysis contentAnalysis;
 
     private static final int REQUEST_RECORD_AUDIO_PERMISSION = 1; //추가
     boolean isButtonPushed = false; //추가
 
     public static String fileName;
-    String alarmTimeArr[], fileNameArr[], contentNameArr[];
     int playCount;
     static int playingPos;
 
     public static ListView listView;
-    PlaylistAdapter adapter;
+    PlaylistAdapter adapter = new PlaylistAdapter();
 
     public static TextView numPlayList;
 
-    PlaylistView viewArr[] = new PlaylistView[100]; //list의 각 아이템들의 view값을 담고 있다. 일단 최대 100개로 해보자.
     int tempPos = -1, tempPos2;
 
     //Timer
     public static CountDownTimer timer;
 
     /**
-     * @TODO mVoiceCallback 지우기. Main과 Recorder에 있으며 스트리밍을 위한 함수로 보여짐
+     * 녹음 중 말이 끝나면(일정 시간 조용하면) 중지 버튼을 누른 것처럼 녹음을 멈춘다.
+     * 7초 타이머는 계속 말하는 경우의 최대 녹음 시간으로 남겨둔다.
+     * 녹음 스레드에서 불리므로 메인 스레드로 넘겨서 처리한다.
      */
     private final VoiceRecorder.Callback mVoiceCallback = new VoiceRecorder.Callback() {
 
+        /**
+         * 녹음하는 동안 음성을 스트리밍 인식으로 바로 보낸다.
+         */
+        @Override
+        public void onAudio(byte[] data, int size) {
+            SpeechService speechService = mSpeechService;
+            if (speechService != null) {
+                speechService.recognize(data, size);
+            }
+        }
+
+        @Override
+        public void onVoiceEnd() {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mVoiceRecorder.isRecording()) {
+                        mText2.setText("녹음 종료");
+                        device.callOnClick();
+                    }
+                }
+            });
+        }
+
+        /**
+         * 파일을 다 쓴 뒤에 음성 인식으로 보낸다. 취소한 녹음은 보내지 않고, 파일 쓰기가 끝난 여기서 지운다.
+         */
+        @Override
+        public void onRecordingSaved(final String savedFileName, final AudioTrim trim) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (savedFileName.equals(mCancelledFileName)) {
+                        mCancelledFileName = null;
+                        deleteFile(savedFileName);
+                        return;
+                    }
+                    if (!savedFileName.equals(mFinishingFileName)) {
+                        return;
+                    }
+                    mFinishingFileName = null;
+                    //녹음을 음성 인식 목록에 넣고, 녹음하는 동안 보낸 스트리밍 인식을 닫아 최종 결과를 기다린다.
+                    //스트리밍 인식을 못 했거나 네트워크가 끊겼으면 SttJobQueue가 파일을 다시 보낸다.
+                    if (mSpeechService != null) {
+                        mSpeechService.finishRecognizing(savedFileName, trim);
+                    } else {
+                        repository.enqueueRecognition(savedFileName, trim, null);
+                    }
+                }
+            });
+        }
     };
+    //멈췄지만 아직 파일을 다 쓰지 않은, 음성 인식으로 보낼 녹음의 파일 이름. 메인 스레드에서만 쓴다.
+    private String mFinishingFileName;
+    //취소했지만 아직 파일을 다 쓰지 않은 녹음의 파일 이름. 다 쓰면 지운다. 메인 스레드에서만 쓴다.
+    private String mCancelledFileName;
 
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
 
@@ -203,10 +255,10 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
         yesButton = (Button) findViewById(R.id.yesButton);
         noButton = (Button) findViewById(R.id.noButton);
 
-        db = new DataBase(MainActivity.this);
+        db = DataBase.getInstance(MainActivity.this);
+        repository = ReminderRepository.getInstance(MainActivity.this);
         mVoiceRecorder = new VoiceRecorder(this, mVoiceCallback);
         voicePlayer = new VoicePlayer(this);
-        timeAnalysis = new TimeAnalysis();
         contentAnalysis = new ContentAnalysis();
 
         deviceOn = (ImageSwitcher) findViewById(R.id.device_on);
@@ -217,7 +269,30 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
 
         //listing
         listView = (ListView) findViewById(R.id.listView);
-        makeList2();
+        repository.addOnChangeListener(adapter);
+        makeList2(null);
+
+        //이전 버전에서 piPref에 저장한 알람을 _id request code로 옮긴다. 옮길 것이 없으면 바로 끝난다.
+        final Context appContext = getApplicationContext();
+        repository.batch(new DataBase.Batch() {
+            @Override
+            public void run(DataBase db) {
+                AlarmScheduler.migrateLegacyRequestCodes(appContext, db);
+            }
+        }, null);
+        //분석기 규칙이 바뀌어 예전 버전으로 분석한 행이 있으면 백그라운드에서 다시 분석한다.
+        //바뀐 행은 변경 알림으로 목록에 반영된다.
+        repository.startReanalysis(appContext, null);
+        //이전 실행에서 지우지 못한 삭제 표시가 있으면 지운다.
+        repository.scheduleSweep(0);
+        //녹음 파일과 디비가 어긋난 것은 화면이 다 그려지고 할 일이 없을 때 백그라운드에서 확인한다.
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                repository.reconcileFiles(mVoiceRecorder != null && mVoiceRecorder.isRecording() ? fileName : null, null);
+                return false;
+            }
+        });
 
         record.setEnabled(false);
         record.setVisibility(View.GONE);
@@ -306,54 +381,25 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
         play.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                makeList2();
-                device.setVisibility(View.VISIBLE);
-                numPlayList.setVisibility(View.INVISIBLE);
-                if (playCount == 0) {
-                    Toast.makeText(getApplicationContext(), "재생할 목록이 비어있습니다.", Toast.LENGTH_SHORT).show();
-                    numPlayList.setVisibility(View.VISIBLE);
-                    return;
-                }
-                if (!voicePlayer.isPlaying()) {
-                    record.setEnabled(false);
-                    record.setVisibility(View.GONE);
-                    play.setEnabled(false);
-                    play.setVisibility(View.GONE);
-                    if (!pRunning) {
-                        playRunning = true;
-                    } else {
-                        playRunning = true;
+                //목록을 아직 읽어오지 않았다면 백그라운드에서 읽어온 뒤 재생을 시작한다.
+                withList(new Runnable() {
+                    @Override
+                    public void run() {
+                        startPlayList();
                     }
-                    mText2.setVisibility(View.GONE);
-                    mText.setText("재생중");
-                    mText.setVisibility(View.VISIBLE);
-                    list.setVisibility(View.VISIBLE);
-                    deleteButton.setVisibility(View.VISIBLE);
-                    information.setVisibility(View.VISIBLE);
-//                    playDisplay();
-//                    NoticeDisplay();
-                    // 중간에 녹음한 것에 대해서 playCount값이 여기서 갱신되지 않은 상태일 수 있으므로, 대신 -1을 전달하고
-                    // -1인 경우 voicePlayer에서 갱신된 디비로부터 playCount값을 얻는 식으로 처리할 것이다.
-                    voicePlayer.startPlaying(SampleRate, BufferSize, playCount);
-//                    voicePlayer.startPlaying(SampleRate, BufferSize, -1);
-                    //TODO 모든 파일의 재생이 완료된 후, 시작 화면으로 전환되도록 개선 필요
-                }
+                });
             }
         });
 
         list.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                makeList2();
-                device.setVisibility(View.INVISIBLE);
-                listView.setAdapter(adapter);
-                listView.setVisibility(View.VISIBLE);
-                playRunning = false;
-                mText2.setVisibility(View.GONE);
-                mText.setVisibility(View.GONE);
-                list.setVisibility(View.GONE);
-                deleteButton.setVisibility(View.GONE);
-                information.setVisibility(View.GONE);
+                withList(new Runnable() {
+                    @Override
+                    public void run() {
+                        showPlayList();
+                    }
+                });
             }
         });
 
@@ -366,20 +412,25 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
 
                 playRunning = false;
 
+                ReminderRecord current = voicePlayer.getCurrentRecord();
+                if (current == null) {
+                    //아직 재생한 녹음이 없다.
+                    return;
+                }
                 mText.setVisibility(View.GONE);
                 mText2.setVisibility(View.VISIBLE);
 
-                if (alarmTimeArr[playingPos].equals("일반 메모")) {
+                if (current.isNote()) {
                     mText2.setText("<녹음시간>" + "\n"
-                            + recordTime(fileNameArr[playingPos]));
+                            + recordTime(current.getFileName()));
                 } else {
-                    String[] words = alarmTimeArr[playingPos].split(":");
+                    String[] words = current.getAlarmTime().split(":");
                     if (Integer.parseInt(words[3]) < 10) words[3] = '0' + words[3];
                     if (Integer.parseInt(words[4]) < 10) words[4] = '0' + words[4];
                     String timeRegistered = words[3] + ":" + words[4] + "(" + words[1] + "월" + words[2] + "일" + ")";
 
                     mText2.setText("<녹음시간>" + "\n" +
-                            recordTime(fileNameArr[playingPos]) + "\n" +
+                            recordTime(current.getFileName()) + "\n" +
                             "<알람시간>" + "\n" +
                             timeRegistered);
                 }
@@ -431,77 +482,80 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
         yesButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                String fileNameArr[] = db.getAllFileName();
-                alarmTimeArr = db.getAllAlarmTime();
-                db.delete(fileNameArr[playingPos]);
-
-                //파일 이름에 해당하는 알람이 있으면 취소////////////////////////////////////////////
-                SharedPreferences tempPref = getSharedPreferences("piPref", MODE_PRIVATE);
-                int rCode = tempPref.getInt(fileNameArr[playingPos], -1); //fileNameArr[playingPos]에 해당하는 값이 없으면 -1을 받아온다.
-                System.out.println("piPref rCode yesbutton : " + rCode);
-                if(rCode != -1) {
-                    AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-                    Intent intent = new Intent("com.google.cloud.android.reminderapp.ALARM_START");
-                    PendingIntent sender = PendingIntent.getBroadcast(getApplicationContext(), rCode, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-                    if (sender != null) {
-                        am.cancel(sender);
-                        sender.cancel();
-                    }
-                }
-                ///////////////////////////////////////////////////////////////////////////////////////
+                //재생 중이던 녹음에 삭제 표시를 하고 알람을 취소한다. 목록은 삭제 알림을 받아 갱신되고,
+                //녹음 파일과 행은 되돌릴 수 있는 시간이 지난 뒤 백그라운드에서 지워진다.
+                final ReminderRecord deleted = voicePlayer.getCurrentRecord();
                 whetherDelete.setVisibility(View.GONE);
                 yesButton.setVisibility(View.GONE);
                 noButton.setVisibility(View.GONE);
                 device.setVisibility(View.VISIBLE);
-                if (playingPos == 0) {
-                    System.out.println("삭제 시 출력1");
+                if (deleted == null) {
+                    //지울 녹음이 없으면 재생을 끝낸다.
                     isEnd = true;
                     device.callOnClick();
-                } else {
-
-                    if (alarmTimeArr[playingPos - 1].equals("일반 메모")) {
-                        mText.setText("일반 메모");
-                    } else {
-                        System.out.println("삭제 시 출력2");
-                        String[] words = alarmTimeArr[playingPos - 1].split(":");
-                        if (Integer.parseInt(words[3]) < 10) words[3] = '0' + words[3];
-                        if (Integer.parseInt(words[4]) < 10) words[4] = '0' + words[4];
-                        String timeRegistered = words[3] + ":" + words[4] + "(" + words[1] + "월" + words[2] + "일" + ")";
-                        System.out.println("재성 " + timeRegistered);
-                        mText.setText(timeRegistered);
-                    }
-                    mText.setVisibility(View.VISIBLE);
-                    list.setVisibility(View.VISIBLE);
-                    deleteButton.setVisibility(View.VISIBLE);
-                    information.setVisibility(View.VISIBLE);
-                    device.setVisibility(View.VISIBLE);
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-
-                    voicePlayer.startPlaying(SampleRate, BufferSize, playingPos); //다음 파일부터 재생
+                    return;
                 }
+                repository.markDeleted(deleted.getId(), null);
+
+                //지운 녹음 바로 이전에 녹음된 것이 다음 재생 대상이다. 없으면 재생을 끝낸다.
+                repository.queryPage(deleted.getId(), 1, new ReminderRepository.Callback<List<ReminderRecord>>() {
+                    @Override
+                    public void onResult(List<ReminderRecord> result) {
+                        if (result.isEmpty()) {
+                            isEnd = true;
+                            device.callOnClick();
+                            return;
+                        }
 
-
+                        ReminderRecord next = result.get(0);
+                        if (next.isNote()) {
+                            mText.setText("일반 메모");
+                        } else {
+                            String[] words = next.getAlarmTime().split(":");
+                            if (Integer.parseInt(words[3]) < 10) words[3] = '0' + words[3];
+                            if (Integer.parseInt(words[4]) < 10) words[4] = '0' + words[4];
+                            String timeRegistered = words[3] + ":" + words[4] + "(" + words[1] + "월" + words[2] + "일" + ")";
+                            mText.setText(timeRegistered);
+                        }
+                        mText.setVisibility(View.VISIBLE);
+                        list.setVisibility(View.VISIBLE);
+                        deleteButton.setVisibility(View.VISIBLE);
+                        information.setVisibility(View.VISIBLE);
+                        device.setVisibility(View.VISIBLE);
+
+                        //stop이 끝날 때까지 좀 기다린 후 start한다. 메인 스레드를 막지 않도록 나중에 실행한다.
+                        mHandler.postDelayed(new Runnable() {
+                            @Override
+                            public void run() {
+                                //지운 녹음이 목록에서 빠지므로 다음 녹음이 같은 목록 위치에 온다.
+                                voicePlayer.startPlaying(SampleRate, BufferSize, deleted.getId(), playingPos); //다음 파일부터 재생
+                            }
+                        }, 500);
+                    }
+                });
             }
         });
 
         noButton.setOnClickListener(new View.OnClickListener() { //삭제 안함 -> 다음 파일부터 재생
             @Override
             public void onClick(View v) {
-                fileNameArr = db.getAllFileName();
-                alarmTimeArr = db.getAllAlarmTime();
+                ReminderRecord current = voicePlayer.getCurrentRecord();
 
                 whetherDelete.setVisibility(View.GONE);
                 yesButton.setVisibility(View.GONE);
                 noButton.setVisibility(View.GONE);
+                if (current == null) {
+                    //다시 재생할 녹음이 없으면 재생을 끝낸다.
+                    device.setVisibility(View.VISIBLE);
+                    isEnd = true;
+                    device.callOnClick();
+                    return;
+                }
 
-                if ((alarmTimeArr[playingPos]).equals("일반 메모")) {
+                if (current.isNote()) {
                     mText.setText("일반 메모");
                 } else {
-                    String[] words = alarmTimeArr[playingPos].split(":");
+                    String[] words = current.getAlarmTime().split(":");
                     if (Integer.parseInt(words[3]) < 10) words[3] = '0' + words[3];
 
                     if (Integer.parseInt(words[4]) < 10) words[4] = '0' + words[4];
@@ -522,7 +576,7 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
                     e.printStackTrace();
                 }
 
-                voicePlayer.startPlaying(SampleRate, BufferSize, playingPos + 1); //현재파일 부터 다시 재생
+                voicePlayer.startPlaying(SampleRate, BufferSize, current.getId() + 1, playingPos); //현재파일 부터 다시 재생
             }
         });
 
@@ -532,10 +586,11 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
                 voicePlayer.stopPlaying();
                 listView.setVisibility(View.GONE);
 
-                if (alarmTimeArr[(playCount - 1) - position].equals("일반 메모")) {
+                ReminderRecord selected = adapter.getItem(position);
+                if (selected.isNote()) {
                     mText.setText("일반 메모");
                 } else {
-                    String[] words = alarmTimeArr[(playCount - 1) - position].split(":");
+                    String[] words = selected.getAlarmTime().split(":");
                     if (Integer.parseInt(words[3]) < 10) words[3] = '0' + words[3];
                     if (Integer.parseInt(words[4]) < 10) words[4] = '0' + words[4];
                     String timeRegistered = words[3] + ":" + words[4] + "(" + words[1] + "월" + words[2] + "일" + ")";
@@ -548,8 +603,7 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
                 device.setVisibility(View.VISIBLE);
 
 
-                Toast.makeText(getApplicationContext(), (playCount - 1) - position + " " + position, Toast.LENGTH_SHORT).show();
-                System.out.println("재성 " + ((playCount - 1) - position) + " " + position);
+                Toast.makeText(getApplicationContext(), selected.getId() + " " + position, Toast.LENGTH_SHORT).show();
                 //voicePlayer stop이후, 바로 startPlaying시 문제가 발생하여, stop이 완료될 때까지 좀 기다린 후 start한다.
                 try {
                     Thread.sleep(500);
@@ -557,7 +611,7 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
                     e.printStackTrace();
                 }
                 //isEnd = true;
-                voicePlayer.startPlaying(SampleRate, BufferSize, playCount - position);
+                voicePlayer.startPlaying(SampleRate, BufferSize, selected.getId() + 1, position);
             }
         });
 
@@ -580,7 +634,7 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
                     voicePlayer.stopPlaying();
                     record.setEnabled(true);
                     numPlayList.setVisibility(View.VISIBLE);
-                    numPlayList.setText(db.getAllPlayListNum() + "");
+                    updatePlayListCount();
                     record.setVisibility(View.VISIBLE);
                     play.setEnabled(true);
                     play.setVisibility(View.VISIBLE);
@@ -606,7 +660,7 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
                     record.setVisibility(View.VISIBLE);
                     play.setEnabled(true);
                     play.setVisibility(View.VISIBLE);
-                    numPlayList.setText(db.getAllPlayListNum() + "");
+                    updatePlayListCount();
                     mText.setVisibility(View.GONE);
                     list.setVisibility(View.GONE);
                     listView.setVisibility((View.GONE));
@@ -646,7 +700,8 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
                         //device.callOnClick();
                     }
                 } else {
-                    String alarmTime = timeAnalysis.Analysis(returnedValue);
+                    //지금이 아니라 녹음한 시각을 기준으로 분석해 저장된 알람 시각을 보여준다.
+                    String alarmTime = msg.getData().getString("alarmTime");
                     String contentValue = contentAnalysis.Analysis(returnedValue);
 
                     mText2.setVisibility(View.INVISIBLE);
@@ -655,8 +710,8 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
                     //TODO 색상 변경
                     resulttitle.setBackgroundColor(Color.GREEN);
 
-                    if (alarmTime.equals("note")) {
-                        db.insert(fileName, "일반 메모", returnedValue);
+                    if (alarmTime == null) {
+                        //저장은 SttJobQueue가 결과를 받으면서 한다(ReminderRepository.completeRecognition).
                         //recordresult.setText("<일반메모>\n" + recordCutValue(returnedValue.replaceAll(" ",""),1));
                         recordresult.setText(recordCutValue(returnedValue.replaceAll(" ", ""), 1));
 
@@ -674,63 +729,10 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
                             recordresult.setText(timeRegistered + "\n" + recordCutValue(contentValue, 2));
                         }
                         //db.insert(fileName, alarmTime, contentValue); db에 시간표현 없앤 표현을 넣기위해서 사용
-                        db.insert(fileName, alarmTime, returnedValue);
                         Toast.makeText(getApplicationContext(), returnedValue, Toast.LENGTH_LONG).show();
 
-                        ///////////////////////////////알람 설정 //////////////////////////////////////////
-                        ///////////////////////알람 설정//////////////////////////
+                        //저장과 알람 등록은 SttJobQueue가 결과를 받으면서 한다(ReminderRepository.completeRecognition).
                         System.out.println("알람 시간 형식 : " + alarmTime);
-                        //SharedPreferences 사용해서 누적된 알람의 개수 저장
-                        SharedPreferences alarmNumPref = getSharedPreferences("anPref", MODE_PRIVATE);
-                        int alarmNum = alarmNumPref.getInt("anum", 0); //anum에 해당하는 값이 없으면 0을 받아온다.
-                        SharedPreferences.Editor editor = alarmNumPref.edit();
-                        editor.putInt("anum", alarmNum + 1); // 값 수정.
-                        editor.commit();
-
-                        //SharedPreferences 사용해서 파일 이름에 해당하는 펜딩인텐트 request code 저장
-                        SharedPreferences pIntentPref = getSharedPreferences("piPref", MODE_PRIVATE);
-                        SharedPreferences.Editor piEditor = pIntentPref.edit();
-                        piEditor.putInt(fileName, alarmNum);
-                        piEditor.commit();
-                        System.out.println("piPref put " + alarmNum);
-
-                        int rCode = alarmNum;
-
-                        Calendar mCalendar = Calendar.getInstance();
-                        int yy, MM, dd, hh, mm;
-                        yy = 2000 + Integer.parseInt(words[0]);
-                        MM = Integer.parseInt(words[1]);
-                        dd = Integer.parseInt(words[2]);
-                        hh = Integer.parseInt(words[3]);
-                        mm = Integer.parseInt(words[4]);
-                        mCalendar.set(yy, MM - 1, dd, hh, mm, 0);
-
-                        Intent mAlarmIntent = new Intent("com.google.cloud.android.reminderapp.ALARM_START");
-                        mAlarmIntent.putExtra("filename", fileName);
-//                        mAlarmIntent.putExtra("OBJECT", voicePlayer);
-                        PendingIntent mPendingIntent =
-                                PendingIntent.getBroadcast(
-                                        getApplicationContext(),
-                                        rCode, /*request code*/
-                                        mAlarmIntent,
-                                        PendingIntent.FLAG_UPDATE_CURRENT
-                                );
-
-                        AlarmManager mAlarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-                        mAlarmManager.setExact(
-                                AlarmManager.RTC_WAKEUP,
-                                mCalendar.getTimeInMillis(),
-                                mPendingIntent
-                        );
-//                        mAlarmManager.cancel(mPendingIntent);
-
-//                        AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-//                        Intent intent = new Intent("com.google.cloud.android.reminderapp.ALARM_START");
-//                        PendingIntent sender = PendingIntent.getBroadcast(getApplicationContext(), 1, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-//                        if(sender != null) {
-//                            am.cancel(sender);
-//                            sender.cancel();
-//                        }
                     }
                     isEnd = true;
                 }
@@ -781,19 +783,8 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
                     }
 
                     System.out.println("phandler position : " + position);
-                    for (int i = 0; i < 10; i++) {
-                        System.out.println("viewarr : " + i + " - " + viewArr[i]);
-                    }
-
-//                   if(position != 0) {
-//                       System.out.println("하얀색으로 바뀌는 것 - " + (position - 1));
-//                   //    viewArr[position-1].setBackgroundColor(Color.WHITE);
-//                       viewArr[position-1].setBackgroundColor_white();
-//                   }
-//
-//                   System.out.println("초록으로 바뀌는 것 - " + position);
-//                   //viewArr[position].setBackgroundColor(Color.GREEN);
-//                   viewArr[position].setBackgroundColor_green();
+                    //재생 위치가 아직 읽어오지 않은 페이지에 있으면 다음 페이지를 읽어온다.
+                    adapter.prefetch(position);
                     //listView.setVisibility(View.GONE);
                     // makeList();
 
@@ -838,7 +829,7 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
                         record.setVisibility(View.VISIBLE);
                         play.setEnabled(true);
                         play.setVisibility(View.VISIBLE);
-                        numPlayList.setText(db.getAllPlayListNum() + "");
+                        updatePlayListCount();
                     }
                     if (progress == 1) {
                         SharedPreferences a = getSharedPreferences("volume", MODE_PRIVATE);
@@ -855,9 +846,9 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
                     }
                 } else {
                     if (mVoiceRecorder.isRecording()) {
-                        stopVoiceRecorder();
+                        //전원을 끄면 녹음을 버린다. powerOn이 아직 true이므로 stopVoiceRecorder를 쓰면 음성 인식으로 보내진다.
+                        cancelVoiceRecorder();
                         recRunning = false;
-                        deleteInternalFile();
                         fileName = "";
                         record.setEnabled(false);
                         record.setVisibility(View.GONE);
@@ -923,6 +914,70 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
         });
     }
 
+    /**
+     * 재생 버튼을 눌러 읽어온 목록을 처음부터 재생한다.
+     */
+    private void startPlayList() {
+        playCount = adapter.totalCount;
+        device.setVisibility(View.VISIBLE);
+        numPlayList.setVisibility(View.INVISIBLE);
+        //첫 페이지가 비어 있으면 저장된 녹음이 없는 것이다.
+        if (adapter.getCount() == 0) {
+            Toast.makeText(getApplicationContext(), "재생할 목록이 비어있습니다.", Toast.LENGTH_SHORT).show();
+            numPlayList.setVisibility(View.VISIBLE);
+            return;
+        }
+        if (!voicePlayer.isPlaying()) {
+            record.setEnabled(false);
+            record.setVisibility(View.GONE);
+            play.setEnabled(false);
+            play.setVisibility(View.GONE);
+            if (!pRunning) {
+                playRunning = true;
+            } else {
+                playRunning = true;
+            }
+            mText2.setVisibility(View.GONE);
+            mText.setText("재생중");
+            mText.setVisibility(View.VISIBLE);
+            list.setVisibility(View.VISIBLE);
+            deleteButton.setVisibility(View.VISIBLE);
+            information.setVisibility(View.VISIBLE);
+//            playDisplay();
+//            NoticeDisplay();
+            // 재생할 녹음은 voicePlayer가 디비에서 최신순으로 조금씩 읽어오므로 중간에 녹음한 것도 포함된다.
+            voicePlayer.startPlaying(SampleRate, BufferSize, VoicePlayer.FROM_LATEST, 0);
+            //TODO 모든 파일의 재생이 완료된 후, 시작 화면으로 전환되도록 개선 필요
+        }
+    }
+
+    /**
+     * 목록 버튼을 눌러 읽어온 목록을 화면에 보여준다.
+     */
+    private void showPlayList() {
+        device.setVisibility(View.INVISIBLE);
+        listView.setAdapter(adapter);
+        listView.setVisibility(View.VISIBLE);
+        playRunning = false;
+        mText2.setVisibility(View.GONE);
+        mText.setVisibility(View.GONE);
+        list.setVisibility(View.GONE);
+        deleteButton.setVisibility(View.GONE);
+        information.setVisibility(View.GONE);
+    }
+
+    /**
+     * 저장된 녹음의 개수를 백그라운드에서 세어 화면에 표시한다.
+     */
+    private void updatePlayListCount() {
+        repository.count(new ReminderRepository.Callback<Integer>() {
+            @Override
+            public void onResult(Integer count) {
+                numPlayList.setText(count + "");
+            }
+        });
+    }
+
     //재생중일 경우 화면에 표시해주는 것을 설정해준다.
     public String playCutValue(String contentValue) {
         String cutvalue = "";
@@ -1010,6 +1065,15 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
         }
     }
 
+    /**
+     * MainActivity가 없어질 때 목록의 변경 알림 등록을 해제한다.
+     */
+    @Override
+    protected void onDestroy() {
+        repository.removeOnChangeListener(adapter);
+        super.onDestroy();
+    }
+
     /**
      * MainActivity가 멈출 때, SpeechService를 종료한다.
      */
@@ -1052,6 +1116,9 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
 //            mVoiceRecorder.stopRecording();
 //        }
         mVoiceRecorder.startRecording();
+        if (mSpeechService != null) {
+            mSpeechService.startRecognizing(mVoiceRecorder.getSampleRate());
+        }
     }
 
     /**
@@ -1061,26 +1128,30 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
 
     private void stopVoiceRecorder() {
         if (!powerOn) {
-            mVoiceRecorder.stopRecording();
+            cancelVoiceRecorder();
         } else {
             if (mVoiceRecorder != null) {
                 System.out.println("녹음을 중지하자.");
+                //파일 쓰기가 끝나면 mVoiceCallback.onRecordingSaved에서 구글 STT서버로 보낸다.
+                mFinishingFileName = fileName;
                 mVoiceRecorder.stopRecording();
-                FileInputStream fis = null;
-                try {
-                    //    String fileName = db.getLastFileName(); //전역변수 fileNme에 현재 녹음한 파일이름이 저장돼있음.
-                    fis = openFileInput(fileName);
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                }
-                System.out.println("녹음 완료 후, 구글 STT서버로 보내기");
-                System.out.println("테스트 파일이름 : " + fileName);
-                mSpeechService.recognizeInputStream(fis);
-                System.out.println("구글 STT서버로 잘 보내진건가...?");
             }
         }
     }
 
+    /**
+     * 녹음을 멈추고 음성 인식으로 보내지 않는다. 녹음 스레드가 아직 파일을 쓰고 있으므로
+     * 파일은 다 쓴 뒤 mVoiceCallback.onRecordingSaved에서 지운다.
+     */
+    private void cancelVoiceRecorder() {
+        mFinishingFileName = null;
+        mCancelledFileName = fileName;
+        mVoiceRecorder.stopRecording();
+        if (mSpeechService != null) {
+            mSpeechService.cancelRecognizing();
+        }
+    }
+
     /**
      * 녹음과 관련된 Permission을 유저에게 확인받기 위해 다이얼로그를 띄운다.
      */
@@ -1110,13 +1181,13 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
     private final SpeechService.Listener mSpeechServiceListener =
             new SpeechService.Listener() {
                 @Override
-                public void onSpeechRecognized(final String text, final boolean isFinal) {
-
-                    System.out.println("과연4 : " + mText);
-
+                public void onSpeechRecognized(final String text, final String alarmTime, final boolean isFinal) {
                     if (mText2 != null) {
                         //if (isFinal) {
                         Message message = handler.obtainMessage(1, text);
+                        Bundle data = new Bundle();
+                        data.putString("alarmTime", alarmTime);
+                        message.setData(data);
                         handler.sendMessage(message);
                         //}
                     }
@@ -1232,127 +1303,283 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
         }
     }
 
+    static final int LIST_RECORD_TIME = 1; //알람 시각과 녹음한 시각 (makeList)
+    static final int LIST_CONTENT = 2; //일정 내용 (makeList2)
+    static final int LIST_ALARM_TIME = 3; //알람 시각 (makeList3)
+
     // 목록을 관리해주는 adapter
-    class PlaylistAdapter extends BaseAdapter {
-        ArrayList<Playlist> items = new ArrayList<Playlist>();
+    // 최신 녹음이 위에 오도록 ReminderRecord를 가지고 있고, 각 줄에 보여줄 글자는 화면에 그릴 때 만든다.
+    // 녹음이 수만 개여도 시작이 느려지지 않도록 처음에는 한 페이지만 읽고, 목록을 내려 끝에 가까워지면
+    // 마지막으로 읽은 _id 이전의 다음 페이지를 읽어 뒤에 붙인다(keyset pagination).
+    // 디비의 변경 알림을 받아 바뀐 행만 목록에 반영하므로 녹음이 하나 추가될 때 전체를 다시 읽지 않는다.
+    class PlaylistAdapter extends BaseAdapter implements DataBase.OnChangeListener {
+        static final int PAGE_SIZE = 50; //한 번에 읽어오는 행 수
+        static final int PREFETCH = 10; //끝에서 이만큼 남았을 때 다음 페이지를 읽는다.
+
+        ArrayList<ReminderRecord> items = new ArrayList<ReminderRecord>();
+        int listType = LIST_CONTENT;
+        String[] columns = new String[0];
+        boolean loaded = false;
+        int totalCount; //디비에 저장된 전체 녹음 수. 목록 번호와 재생 목록이 비었는지 확인할 때 쓴다.
+        boolean loading = false;
+        boolean endReached = false;
+        int generation = 0; //목록을 새로 읽기 시작하면 이전에 요청한 페이지 결과는 버린다.
 
         @Override
         public int getCount() {
             return items.size();
         }
 
-        public void addItem(Playlist item) {
-            items.add(item);
+        /**
+         * 목록을 비우고 첫 페이지와 전체 개수를 새로 읽어온다. 첫 페이지가 오면 onLoaded를 실행한다.
+         */
+        public void reload(int listType, final Runnable onLoaded, String... columns) {
+            this.listType = listType;
+            this.columns = columns;
+            generation++;
+            items.clear();
+            loading = false;
+            endReached = false;
+            notifyDataSetChanged();
+
+            loading = true;
+            final int requested = generation;
+            repository.queryFirstPage(PAGE_SIZE, new ReminderRepository.Callback<ReminderRepository.FirstPage>() {
+                @Override
+                public void onResult(ReminderRepository.FirstPage result) {
+                    if (requested != generation) {
+                        return;
+                    }
+                    totalCount = result.totalCount;
+                    addPage(result.records, onLoaded);
+                }
+            }, columns);
+        }
+
+        /**
+         * 마지막으로 읽은 행 이전의 한 페이지를 읽어 목록 뒤에 붙인다.
+         */
+        private void loadNextPage(final Runnable onLoaded) {
+            if (loading || endReached) {
+                return;
+            }
+            loading = true;
+            final int requested = generation;
+            long beforeId = items.isEmpty() ? Long.MAX_VALUE : items.get(items.size() - 1).getId();
+            repository.queryPage(beforeId, PAGE_SIZE, new ReminderRepository.Callback<List<ReminderRecord>>() {
+                @Override
+                public void onResult(List<ReminderRecord> result) {
+                    if (requested != generation) {
+                        return;
+                    }
+                    addPage(result, onLoaded);
+                }
+            }, columns);
+        }
+
+        private void addPage(List<ReminderRecord> page, Runnable onLoaded) {
+            //페이지를 읽는 사이에 추가 알림으로 먼저 들어온 행은 건너뛴다.
+            long lastId = items.isEmpty() ? Long.MAX_VALUE : items.get(items.size() - 1).getId();
+            for (ReminderRecord record : page) {
+                if (record.getId() < lastId) {
+                    items.add(record);
+                }
+            }
+            endReached = page.size() < PAGE_SIZE;
+            loading = false;
+            loaded = true;
+            notifyDataSetChanged();
+            if (onLoaded != null) onLoaded.run();
+        }
+
+        /**
+         * position 근처까지 목록이 읽혀 있지 않으면 다음 페이지를 읽어온다.
+         */
+        public void prefetch(int position) {
+            if (loaded && position >= items.size() - PREFETCH) {
+                loadNextPage(null);
+            }
         }
 
         @Override
-        public Object getItem(int position) {
+        public ReminderRecord getItem(int position) {
             return items.get(position);
         }
 
         @Override
         public long getItemId(int position) {
-            return position;
+            return items.get(position).getId();
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
         }
 
         @Override
         public View getView(int position, View convertView, ViewGroup viewGroup) {
+            prefetch(position);
+
             PlaylistView view = new PlaylistView(getApplicationContext());
-            Playlist item = items.get(position);
-            view.setName(item.getName());
+            view.setName(getLabel(position));
 
             if (position == tempPos2) {
                 view.setBackgroundColor(Color.YELLOW);
             } else {
                 view.setBackgroundColor(Color.BLACK);
             }
-            viewArr[position] = view;
 
             return view;
         }
-    }
 
-    /**
-     * 재생 목록을 만드는 메소드, 재생 목록에는 각 녹음파일의 녹음한 시각이 보여진다.
-     */
-    public void makeList() {
-        adapter = new PlaylistAdapter();
-        contentNameArr = db.getAllContent();
-        alarmTimeArr = db.getAllAlarmTime();
-        fileNameArr = db.getAllFileName();
-        playCount = fileNameArr.length;
-        System.out.println("Play Count : " + playCount);
-        for (int i = playCount - 1; i >= 0; i--) {
-            //기존의 알림 예정 시간 혹은 일반 메모를 출력하는 코드
-            if (alarmTimeArr[i].equals("일반 메모")) {
-                adapter.addItem(new Playlist("일반 메모"));
-            } else {
-                String[] words = alarmTimeArr[i].split(":");
-                if (Integer.parseInt(words[3]) < 10) words[3] = '0' + words[3];
-                if (Integer.parseInt(words[4]) < 10) words[4] = '0' + words[4];
+        private String getLabel(int position) {
+            ReminderRecord record = items.get(position);
+            //저장할 때 만들어 둔 글자를 쓰고, 아직 만들지 않은 행만 여기서 만든다.
+            String timeLabel = record.getTimeLabel() != null ? record.getTimeLabel() : alarmLabel(record);
+            if (listType == LIST_ALARM_TIME) {
+                //알람 시각 혹은 일반 메모를 출력
+                return timeLabel;
+            } else if (listType == LIST_RECORD_TIME) {
+                //알람 시각과 녹음한 시각을 출력
+                return timeLabel + "\n" + recordTime(record.getFileName());
+            }
+            //각 녹음 파일의 일정 내용을 출력
+            String contentName = record.getContentLabel();
+            if (contentName == null) {
+                contentName = contentTime(contentAnalysis.Analysis(record.getText()));
+            }
+            int number = totalCount - position;
+            if (contentName.equals("")) {
+                return number + ". " + "내용 없음";
+            }
+            return number + ". " + contentName;
+        }
 
-                String timeRegistered = words[3] + ":" + words[4] + "(" + words[1] + "월" + words[2] + "일" + ")";
-                adapter.addItem(new Playlist(timeRegistered));
+        private int indexOf(long id) {
+            for (int i = 0; i < items.size(); i++) {
+                if (items.get(i).getId() == id) {
+                    return i;
+                }
             }
-            //각 녹음 파일의 녹음한 시각을 목록에 출력하는 코드.
-            adapter.addItem(new Playlist(recordTime(fileNameArr[i])));
+            return -1;
         }
+
+        @Override
+        public void onInserted(final long id) {
+            if (!loaded) {
+                return;
+            }
+            final int requested = generation;
+            repository.getRecord(id, new ReminderRepository.Callback<ReminderRecord>() {
+                @Override
+                public void onResult(ReminderRecord record) {
+                    if (requested != generation || record == null || indexOf(id) >= 0) {
+                        return;
+                    }
+                    totalCount++;
+                    //삭제를 되돌린 행은 중간에 들어가야 하므로 _id 내림차순 자리를 찾는다.
+                    int position = 0;
+                    while (position < items.size() && items.get(position).getId() > id) {
+                        position++;
+                    }
+                    //아직 읽지 않은 페이지의 자리면 그 페이지를 읽을 때 같이 들어온다.
+                    if (position < items.size() || endReached) {
+                        items.add(position, record);
+                    }
+                    notifyDataSetChanged();
+                }
+            });
+        }
+
+        @Override
+        public void onDeleted(long id) {
+            if (!loaded) {
+                return;
+            }
+            //아직 읽지 않은 페이지의 행이 지워져도 전체 개수는 줄어든다.
+            totalCount = Math.max(0, totalCount - 1);
+            int position = indexOf(id);
+            if (position >= 0) {
+                items.remove(position);
+            }
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public void onUpdated(final long id) {
+            //재분석처럼 많은 행이 바뀔 때 읽어오지 않은 행까지 다시 조회하지 않는다.
+            if (indexOf(id) < 0) {
+                return;
+            }
+            repository.getRecord(id, new ReminderRepository.Callback<ReminderRecord>() {
+                @Override
+                public void onResult(ReminderRecord record) {
+                    int position = indexOf(id);
+                    if (record != null && position >= 0) {
+                        items.set(position, record);
+                        notifyDataSetChanged();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 재생 목록을 만드는 메소드, 재생 목록에는 각 녹음파일의 알람 시각과 녹음한 시각이 보여진다.
+     * 목록은 백그라운드에서 읽어오고, 첫 페이지가 만들어지면 메인 스레드에서 onLoaded를 실행한다.
+     */
+    public void makeList(Runnable onLoaded) {
+        loadList(LIST_RECORD_TIME, onLoaded, DataBase.COLUMN_ID, DataBase.COLUMN_FILE_NAME, DataBase.COLUMN_ALARM_AT,
+                DataBase.COLUMN_TIME_LABEL);
     }
 
     /**
      * 재생 목록을 만드는 메소드, 재생 목록에는 각 컨텐츠들이 보여진다.
      */
-    public void makeList2() {
-        adapter = new PlaylistAdapter();
-        contentNameArr = db.getAllContent();
-        alarmTimeArr = db.getAllAlarmTime();
-        fileNameArr = db.getAllFileName();
-        playCount = contentNameArr.length;
-        System.out.println("Play Count : " + playCount);
-        for (int i = playCount - 1; i >= 0; i--) {
-            //기존의 알림 예정 시간 혹은 일반 메모를 출력하는 코드
-            /*if (alarmTimeArr[i].equals("일반 메모")) {
-                adapter.addItem(new Playlist("일반 메모"));
-            } else {
-                String[] words = alarmTimeArr[i].split(":");
-                if (Integer.parseInt(words[3]) < 10) words[3] = '0' + words[3];
-                if (Integer.parseInt(words[4]) < 10) words[4] = '0' + words[4];
-
-                String timeRegistered = words[3] + ":" + words[4] + "(" + words[1] + "월" + words[2] + "일" + ")";
-                adapter.addItem(new Playlist(timeRegistered));
-            }*/
-            //각 녹음 파일의 일정 내용을 목록에 출력하는 코드.
-            contentNameArr[i] = contentAnalysis.Analysis(contentNameArr[i]);
-
-            if (contentNameArr[i].equals("")) {
-                adapter.addItem(new Playlist((i + 1) + ". " + "내용 없음"));
-            } else {
-                adapter.addItem(new Playlist((i + 1) + ". " + contentTime(contentNameArr[i])));
-            }
-        }
+    public void makeList2(Runnable onLoaded) {
+        loadList(LIST_CONTENT, onLoaded);
     }
 
     //알람이 울리는 시간을 리스트로 보여준다.
-    public void makeList3() {
-        adapter = new PlaylistAdapter();
-        contentNameArr = db.getAllContent();
-        alarmTimeArr = db.getAllAlarmTime();
-        fileNameArr = db.getAllFileName();
-        playCount = alarmTimeArr.length;
-        System.out.println("Play Count : " + playCount);
-        for (int i = playCount - 1; i >= 0; i--) {
-            //기존의 알림 예정 시간 혹은 일반 메모를 출력하는 코드
-            if (alarmTimeArr[i].equals("일반 메모")) {
-                adapter.addItem(new Playlist("일반 메모"));
-            } else {
-                String[] words = alarmTimeArr[i].split(":");
-                if (Integer.parseInt(words[3]) < 10) words[3] = '0' + words[3];
-                if (Integer.parseInt(words[4]) < 10) words[4] = '0' + words[4];
+    public void makeList3(Runnable onLoaded) {
+        loadList(LIST_ALARM_TIME, onLoaded, DataBase.COLUMN_ID, DataBase.COLUMN_ALARM_AT, DataBase.COLUMN_TIME_LABEL);
+    }
 
-                String timeRegistered = words[3] + ":" + words[4] + "(" + words[1] + "월" + words[2] + "일" + ")";
-                adapter.addItem(new Playlist(timeRegistered));
+    /**
+     * 목록의 첫 페이지를 읽어온다. 나머지는 목록을 내릴 때 adapter가 읽고, 이후의 변경은 변경 알림으로 반영한다.
+     */
+    private void loadList(final int listType, final Runnable onLoaded, String... columns) {
+        adapter.reload(listType, new Runnable() {
+            @Override
+            public void run() {
+                playCount = adapter.totalCount;
+                if (onLoaded != null) onLoaded.run();
             }
+        }, columns);
+    }
+
+    /**
+     * 목록을 처음 읽어오기 전이면 읽어온 뒤에, 이미 읽어왔다면 바로 action을 실행한다.
+     */
+    private void withList(Runnable action) {
+        if (adapter.loaded) {
+            action.run();
+        } else {
+            makeList2(action);
+        }
+    }
+
+    /**
+     * 알람 시각을 시:분(-월-일) 형식으로 바꾼다. 일반 메모는 "일반 메모"를 돌려준다.
+     */
+    private String alarmLabel(ReminderRecord record) {
+        if (record.isNote()) {
+            return "일반 메모";
         }
+        String[] words = record.getAlarmTime().split(":");
+        if (Integer.parseInt(words[3]) < 10) words[3] = '0' + words[3];
+        if (Integer.parseInt(words[4]) < 10) words[4] = '0' + words[4];
+        return words[3] + ":" + words[4] + "(" + words[1] + "월" + words[2] + "일" + ")";
     }
 
     /**
@@ -1375,14 +1602,6 @@ public class MainActivity extends AppCompatActivity implements MessageDialogFrag
         else return contentName;
     }
 
-    /**
-     * 내부저장소에 저장된 파일을 지우기 위한 메소드이다
-     */
-    private void deleteInternalFile() {
-        File tempFile = new File(getFilesDir(), fileName);
-        tempFile.delete();
-    }
-
     //뒤로 가기 버튼 눌렀을 경우 모든 프로세스 종료
     @Override
     public void onBackPressed() {
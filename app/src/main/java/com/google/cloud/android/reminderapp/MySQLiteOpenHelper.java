@@ -1,10 +1,25 @@
 package com.google.cloud.android.reminderapp;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 public class MySQLiteOpenHelper extends SQLiteOpenHelper {
+
+    /**
+     * 디비 스키마 버전.
+     * 1 : record (fileName text, alarmTime text, text text)
+     * 2 : 정수 primary key, epoch millis 알람 시각(alarm_at)과 녹음 시각(created_at), 인덱스 추가
+     * 3 : text의 bi-gram(text_ngram)과 이를 색인하는 전문 검색 테이블(record_fts), 동기화 trigger 추가
+     * 4 : 목록에 보여줄 내용(content, content_label)과 알람 시각(time_label), 이를 만든 analyzer_version 추가
+     * 5 : 삭제 표시 시각(deleted_at)과 인덱스 추가
+     * 6 : 녹음 앞뒤를 잘라낸 구간(trim_start_ms, trim_end_ms)과 원래 길이(original_ms) 추가
+     * 7 : 음성 인식을 기다리는 녹음의 목록(stt_job 테이블) 추가
+     */
+    static final int VERSION = 7;
+
     public MySQLiteOpenHelper(Context context, String name,
                               SQLiteDatabase.CursorFactory factory, int version) {
         super(context, name, factory, version);
@@ -12,25 +27,189 @@ public class MySQLiteOpenHelper extends SQLiteOpenHelper {
     }
 /**
  * SQLite 쿼리를 통해 record라는 이름의 table을 만든다.
- * fileName과 alarmTime이라는 것은 text라고 하는 타입으로 지정되었는데
- * 그 이유는 후에 디비 파일을 컴퓨터로 추출해서 볼 때, 지원하는 글자 형식의 타입이
- * 텍스트 타입이기 때문이다.
- * String을 사용하여 insert 와 select를 했을 때 문제가 없었던 걸로 보아 유사한 타입인 것 같다.
+ * _id는 행마다 붙는 정수 primary key이고, alarm_at과 created_at은 epoch millis로 저장한다.
+ * 일반 메모는 알람 시각이 없으므로 alarm_at이 null이다.
+ * 알람 시각과 파일 이름으로 검색하는 일이 많으므로 두 컬럼에 인덱스를 만든다.
  */
     @Override
     public void onCreate(SQLiteDatabase db) {
-        String sql = "create table record (fileName text, alarmTime text, text text);";//아이디 지우고  ㅇㅇ 저장할 것 만들고
-        db.execSQL(sql);
+        createRecordTable(db);
+        onUpgrade(db, 2, VERSION);
+    }
+
+    /**
+     * 버전 2의 record 테이블을 만든다. 이후 버전의 변경은 onUpgrade의 단계를 그대로 거쳐 반영한다.
+     */
+    private void createRecordTable(SQLiteDatabase db) {
+        db.execSQL("create table record ("
+                + "_id integer primary key autoincrement, "
+                + "fileName text not null, "
+                + "alarm_at integer, "
+                + "created_at integer not null, "
+                + "text text);");
+        db.execSQL("create index record_alarm_at on record (alarm_at);");
+        db.execSQL("create index record_file_name on record (fileName);");
     }
+
     /**
-     * 위와 마찬가지로 컴퓨터에서 혹시 디비 파일을 수정했을 때
-     * 컴퓨터 파일을 반영하기 위해 사용하였다.
+     * 이전 버전의 디비를 지우지 않고 새 스키마로 옮긴다.
+     * SQLiteOpenHelper가 onUpgrade 전체를 하나의 트랜잭션으로 감싸므로
+     * 중간에 실패하면 이전 테이블이 그대로 남는다.
  */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            upgradeToVersion2(db);
+        }
+        if (oldVersion < 3) {
+            upgradeToVersion3(db);
+        }
+        if (oldVersion < 4) {
+            upgradeToVersion4(db);
+        }
+        if (oldVersion < 5) {
+            upgradeToVersion5(db);
+        }
+        if (oldVersion < 6) {
+            upgradeToVersion6(db);
+        }
+        if (oldVersion < 7) {
+            upgradeToVersion7(db);
+        }
+    }
+
+    /**
+     * 버전 1의 record 테이블은 알람 시각을 yy:MM:dd:hh:mm 문자열로, 일반 메모는 "일반 메모"로 저장했다.
+     * 이를 epoch millis(일반 메모는 null)로 바꾸고, 녹음 시각은 파일 이름에서 읽어 새 테이블에 옮긴다.
+     */
+    private void upgradeToVersion2(SQLiteDatabase db) {
+        db.execSQL("alter table record rename to record_v1;");
+        createRecordTable(db);
+
+        Cursor c = db.rawQuery("SELECT fileName, alarmTime, text FROM record_v1 ORDER BY rowid;", null);
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO record (fileName, alarm_at, created_at, text) VALUES (?, ?, ?, ?);");
+        try {
+            while (c.moveToNext()) {
+                String fileName = c.getString(0);
+                if (fileName == null) {
+                    continue;
+                }
+                Long alarmAt = AlarmTime.parse(c.getString(1));
+                String text = c.getString(2);
+
+                insert.clearBindings();
+                insert.bindString(1, fileName);
+                if (alarmAt == null) {
+                    insert.bindNull(2);
+                } else {
+                    insert.bindLong(2, alarmAt);
+                }
+                insert.bindLong(3, AlarmTime.parseFileName(fileName));
+                if (text == null) {
+                    insert.bindNull(4);
+                } else {
+                    insert.bindString(4, text);
+                }
+                insert.executeInsert();
+            }
+        } finally {
+            c.close();
+            insert.close();
+        }
+        db.execSQL("drop table record_v1;");
+    }
+
+    /**
+     * 한국어 메모를 단어 일부로도 찾을 수 있도록 text를 bi-gram으로 나눈 text_ngram 컬럼을 추가하고,
+     * 이를 색인하는 FTS4 테이블을 만든다. record_fts는 내용을 따로 저장하지 않고(content="record")
+     * record 테이블의 trigger로 색인만 맞춰준다.
+     */
+    private void upgradeToVersion3(SQLiteDatabase db) {
+        db.execSQL("alter table record add column text_ngram text;");
 
-        String sql = "drop table if exists record";
-        db.execSQL(sql);
-        onCreate(db);
+        Cursor c = db.rawQuery("SELECT _id, text FROM record WHERE text IS NOT NULL;", null);
+        SQLiteStatement update = db.compileStatement("UPDATE record SET text_ngram = ? WHERE _id = ?;");
+        try {
+            while (c.moveToNext()) {
+                update.clearBindings();
+                update.bindString(1, NGram.index(c.getString(1)));
+                update.bindLong(2, c.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            c.close();
+            update.close();
+        }
+
+        db.execSQL("create virtual table record_fts using fts4(content=\"record\", text_ngram);");
+        db.execSQL("create trigger record_fts_bu before update on record begin "
+                + "delete from record_fts where docid = old._id; end;");
+        db.execSQL("create trigger record_fts_bd before delete on record begin "
+                + "delete from record_fts where docid = old._id; end;");
+        db.execSQL("create trigger record_fts_au after update on record begin "
+                + "insert into record_fts (docid, text_ngram) values (new._id, new.text_ngram); end;");
+        db.execSQL("create trigger record_fts_ai after insert on record begin "
+                + "insert into record_fts (docid, text_ngram) values (new._id, new.text_ngram); end;");
+        db.execSQL("insert into record_fts (record_fts) values ('rebuild');");
+    }
+
+    /**
+     * 목록에 보여줄 글자를 저장할 컬럼을 추가한다.
+     * 기존 행은 analyzer_version이 0이므로 ReanalysisJob이 백그라운드에서 채운다.
+     * 이 update들이 record_fts를 다시 색인하지 않도록 update trigger를 text_ngram 컬럼으로 좁힌다.
+     * onUpgrade는 디비를 처음 여는 스레드를 막으므로 여기서 정규식을 돌리지 않는다.
+     */
+    private void upgradeToVersion4(SQLiteDatabase db) {
+        db.execSQL("alter table record add column content text;");
+        db.execSQL("alter table record add column content_label text;");
+        db.execSQL("alter table record add column time_label text;");
+        db.execSQL("alter table record add column analyzer_version integer not null default 0;");
+
+        //목록 글자만 바꾸는 update에서 전문 검색 색인을 다시 만들지 않도록, text_ngram이 바뀔 때만 색인을 맞춘다.
+        db.execSQL("drop trigger record_fts_bu;");
+        db.execSQL("drop trigger record_fts_au;");
+        db.execSQL("create trigger record_fts_bu before update of text_ngram on record begin "
+                + "delete from record_fts where docid = old._id; end;");
+        db.execSQL("create trigger record_fts_au after update of text_ngram on record begin "
+                + "insert into record_fts (docid, text_ngram) values (new._id, new.text_ngram); end;");
+    }
+
+    /**
+     * 삭제할 때 행을 바로 지우지 않고 deleted_at에 시각을 적어두기 위한 컬럼이다(tombstone).
+     * TombstoneSweeper가 오래된 표시를 찾을 때 쓰도록 인덱스를 만든다.
+     */
+    private void upgradeToVersion5(SQLiteDatabase db) {
+        db.execSQL("alter table record add column deleted_at integer;");
+        db.execSQL("create index record_deleted_at on record (deleted_at);");
+    }
+
+    /**
+     * 녹음할 때 앞뒤의 조용한 부분을 잘라내므로, 원래 녹음에서 남긴 구간과 원래 길이를 밀리초로 적어둔다.
+     * 이전 녹음은 자르지 않았으므로 null로 둔다.
+     */
+    private void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL("alter table record add column trim_start_ms integer;");
+        db.execSQL("alter table record add column trim_end_ms integer;");
+        db.execSQL("alter table record add column original_ms integer;");
+    }
+
+    /**
+     * 녹음이 끝나면 먼저 stt_job에 넣고, 음성 인식 결과로 record 행을 만든 뒤에 지운다.
+     * 네트워크가 끊겨 인식에 실패해도 녹음이 사라지지 않고, 앱이 다시 시작되면 SttJobQueue가 이어서 보낸다.
+     * 같은 녹음이 두 번 들어가지 않도록 fileName을 unique로 둔다.
+     */
+    private void upgradeToVersion7(SQLiteDatabase db) {
+        db.execSQL("create table stt_job ("
+                + "_id integer primary key autoincrement, "
+                + "fileName text not null unique, "
+                + "created_at integer not null, "
+                + "attempts integer not null default 0, "
+                + "next_attempt_at integer not null, "
+                + "last_error text, "
+                + "trim_start_ms integer, "
+                + "trim_end_ms integer, "
+                + "original_ms integer);");
+        db.execSQL("create index stt_job_next_attempt_at on stt_job (next_attempt_at);");
     }
 }
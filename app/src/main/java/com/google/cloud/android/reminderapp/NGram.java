@@ -0,0 +1,105 @@
+package com.google.cloud.android.reminderapp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 전문 검색(record_fts)에 넣을 글자 단위 bi-gram을 만든다.
+ * SQLite의 기본 토크나이저는 띄어쓰기로만 단어를 나누므로 "회의실에서"로 저장된 메모를 "회의"로 찾을 수 없다.
+ * 그래서 저장할 때와 검색할 때 모두 단어를 두 글자씩 겹쳐 나눈 뒤("회의 의실 실에 에서") 그 조각들로 검색한다.
+ */
+final class NGram {
+
+    private NGram() {
+    }
+
+    /**
+     * 인식된 text를 record_fts에 넣을 bi-gram 문자열로 바꾼다.
+     *
+     * @param text 음성 인식된 text
+     * @return 띄어쓰기로 구분된 bi-gram. text가 null이면 null
+     */
+    static String index(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (String word : words(text)) {
+            for (String gram : grams(word)) {
+                if (builder.length() > 0) {
+                    builder.append(' ');
+                }
+                builder.append(gram);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 검색어를 record_fts의 MATCH 식으로 바꾼다. 모든 bi-gram이 들어 있는 메모만 찾는다.
+     * 한 글자짜리 단어는 bi-gram을 만들 수 없으므로 그 글자로 시작하는 조각을 찾는다(접두어 검색).
+     *
+     * @param query 사용자가 입력한 검색어
+     * @return MATCH에 넘길 식. 검색할 글자가 없으면 null
+     */
+    static String matchQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+        Set<String> terms = new LinkedHashSet<>();
+        for (String word : words(query)) {
+            if (word.length() == 1) {
+                terms.add(word + "*");
+            } else {
+                for (String gram : grams(word)) {
+                    terms.add("\"" + gram + "\"");
+                }
+            }
+        }
+        if (terms.isEmpty()) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (String term : terms) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(term);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 글자와 숫자가 아닌 것을 기준으로 나눈 단어 목록. 영문은 소문자로 바꾼다.
+     */
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        String lower = text.toLowerCase(Locale.US);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean letter = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                words.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static List<String> grams(String word) {
+        List<String> grams = new ArrayList<>();
+        if (word.length() == 1) {
+            grams.add(word);
+            return grams;
+        }
+        for (int i = 0; i + 2 <= word.length(); i++) {
+            grams.add(word.substring(i, i + 2));
+        }
+        return grams;
+    }
+}
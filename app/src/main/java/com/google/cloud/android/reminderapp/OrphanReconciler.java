@@ -0,0 +1,189 @@
+package com.google.cloud.android.reminderapp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 내부 저장소(getFilesDir)의 녹음 파일과 record 테이블이 서로 맞는지 확인하고 고친다.
+ *
+ * 파일 이름 순서로 정렬한 파일 목록과, fileName 인덱스를 따라 BATCH_SIZE개씩 읽는 행 목록을 나란히 비교(merge)한다.
+ * - 행이 없는 파일 : STT 전에 녹음이 멈춘 경우 등. quarantine 폴더로 옮기고 QUARANTINE_MILLIS가 지나면 지운다.
+ * - 파일이 없는 행 : 재생할 수 없으므로 ReminderRepository.markDeleted로 알람을 취소하고 삭제 표시를 해서
+ *   TombstoneSweeper가 지우게 한다.
+ * 파일 목록과 행은 쓰기 스레드 밖에서 비교하므로, 그 사이에 STT가 끝나 행이 생길 수 있다.
+ * 그래서 옮기기 직전에 쓰기 스레드에서 행과 stt_job이 없는지 다시 확인한다.
+ * 녹음 중이거나 방금 녹음해서 아직 STT 결과를 기다리는 파일은 GRACE_MILLIS 동안 건드리지 않고,
+ * stt_job에 남아 있는 파일(네트워크가 끊겨 다시 보내기를 기다리는 녹음)은 기다리는 동안 계속 건드리지 않는다.
+ * 파일 이름은 모두 ASCII(yy-MM-dd HH:mm:ss.pcm)라서 SQLite의 BINARY 정렬과 String.compareTo의 순서가 같다.
+ */
+final class OrphanReconciler {
+
+    private static final String TAG = "OrphanReconciler";
+
+    //파일 이름의 확장자일 뿐 형식을 뜻하지 않는다. 지금은 ImaAdpcm 형식으로 저장하지만 이름이 디비와 알람에 저장되어 있어 그대로 둔다.
+    static final String RECORDING_EXTENSION = ".pcm";
+    static final int BATCH_SIZE = 500;
+    static final long GRACE_MILLIS = 10 * 60 * 1000;
+    static final long QUARANTINE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    private static final String QUARANTINE_DIR = "orphans";
+
+    /**
+     * 한 번 확인한 결과
+     */
+    static final class Report {
+        int files;
+        int records;
+        int quarantinedFiles;
+        int missingFiles;
+        int purgedFiles;
+
+        @Override
+        public String toString() {
+            return "files=" + files + ", records=" + records + ", quarantined=" + quarantinedFiles
+                    + ", missing=" + missingFiles + ", purged=" + purgedFiles;
+        }
+    }
+
+    private final Context context;
+    private final DataBase db;
+    private final ReminderRepository repository;
+    private final ExecutorService writer;
+
+    /**
+     * @param repository 파일이 없는 행에 삭제 표시를 할 때 쓴다.
+     * @param writer     repository와 같은 쓰기 스레드. 파일을 quarantine 폴더로 옮기는 것을 여기서 한다.
+     */
+    OrphanReconciler(Context context, DataBase db, ReminderRepository repository, ExecutorService writer) {
+        this.context = context.getApplicationContext();
+        this.db = db;
+        this.repository = repository;
+        this.writer = writer;
+    }
+
+    /**
+     * 쓰기 스레드에서 끝날 때까지 기다리므로 쓰기 스레드가 아닌 백그라운드 스레드에서 불러야 한다.
+     *
+     * @param recordingFileName 지금 녹음 중인 파일 이름. 없으면 null
+     */
+    Report reconcile(String recordingFileName) throws InterruptedException {
+        final Report report = new Report();
+        File filesDir = context.getFilesDir();
+        String[] fileNames = filesDir.list();
+        if (fileNames == null) {
+            fileNames = new String[0];
+        }
+        Arrays.sort(fileNames);
+
+        final long now = System.currentTimeMillis();
+        final List<File> orphans = new ArrayList<>();
+        final List<Long> missing = new ArrayList<>();
+        int f = nextRecording(fileNames, 0);
+        String afterName = "";
+        while (true) {
+            List<ReminderRecord> rows = db.queryFileNames(afterName, BATCH_SIZE);
+            for (ReminderRecord row : rows) {
+                report.records++;
+                //행보다 앞에 오는 파일은 행이 없는 파일이다.
+                while (f < fileNames.length && fileNames[f].compareTo(row.getFileName()) < 0) {
+                    addIfStale(new File(filesDir, fileNames[f]), recordingFileName, now, orphans, report);
+                    f = nextRecording(fileNames, f + 1);
+                }
+                if (f < fileNames.length && fileNames[f].equals(row.getFileName())) {
+                    report.files++;
+                    f = nextRecording(fileNames, f + 1);
+                } else if (!row.isDeleted()) {
+                    missing.add(row.getId());
+                }
+            }
+            if (rows.size() < BATCH_SIZE) {
+                break;
+            }
+            afterName = rows.get(rows.size() - 1).getFileName();
+        }
+        //마지막 행 뒤에 남은 파일도 행이 없는 파일이다.
+        while (f < fileNames.length) {
+            addIfStale(new File(filesDir, fileNames[f]), recordingFileName, now, orphans, report);
+            f = nextRecording(fileNames, f + 1);
+        }
+
+        if (!orphans.isEmpty()) {
+            Future<?> quarantined = writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    quarantine(orphans, now, report);
+                }
+            });
+            try {
+                quarantined.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Quarantining orphans failed.", e.getCause());
+            }
+        }
+        if (!missing.isEmpty()) {
+            repository.markDeleted(missing, null);
+            report.missingFiles = missing.size();
+        }
+        purgeQuarantine(now, report);
+
+        Log.i(TAG, report.toString());
+        return report;
+    }
+
+    private static int nextRecording(String[] fileNames, int from) {
+        while (from < fileNames.length && !fileNames[from].endsWith(RECORDING_EXTENSION)) {
+            from++;
+        }
+        return from;
+    }
+
+    private void addIfStale(File file, String recordingFileName, long now, List<File> orphans, Report report) {
+        report.files++;
+        if (file.getName().equals(recordingFileName) || now - file.lastModified() < GRACE_MILLIS
+                || db.getSttJob(file.getName()) != null) {
+            return;
+        }
+        orphans.add(file);
+    }
+
+    /**
+     * 쓰기 스레드에서 불린다. completeRecognition은 한 트랜잭션으로 행을 넣고 stt_job을 지우므로,
+     * stt_job을 먼저 확인하고 행을 확인하면 그 사이에 STT가 끝나도 놓치지 않는다.
+     */
+    private void quarantine(List<File> orphans, long now, Report report) {
+        File dir = context.getDir(QUARANTINE_DIR, Context.MODE_PRIVATE);
+        for (File file : orphans) {
+            if (db.getSttJob(file.getName()) != null || db.getRecordByFileName(file.getName()) != null) {
+                continue;
+            }
+            File target = new File(dir, file.getName());
+            if (file.renameTo(target)) {
+                //quarantine 폴더에서는 옮긴 시각을 기준으로 지운다.
+                target.setLastModified(now);
+                report.quarantinedFiles++;
+            } else {
+                Log.w(TAG, "Could not quarantine " + file);
+            }
+        }
+    }
+
+    private void purgeQuarantine(long now, Report report) {
+        File[] files = context.getDir(QUARANTINE_DIR, Context.MODE_PRIVATE).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (now - file.lastModified() >= QUARANTINE_MILLIS && file.delete()) {
+                report.purgedFiles++;
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.google.cloud.android.reminderapp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * TimeAnalysis나 ContentAnalysis의 규칙이 바뀌었을 때(RecordLabels.ANALYZER_VERSION이 올라갔을 때)
+ * 저장된 text를 다시 분석해서 알람 시각과 목록 글자를 고치는 작업이다.
+ *
+ * 이전 버전으로 분석한 행을 _id 순서로 BATCH_SIZE개씩만 읽어서 파서 스레드 풀에서 나눠 분석하고,
+ * 결과를 ReminderRepository의 쓰기 스레드에서 한 트랜잭션으로 저장한다. 그래서 행이 10만 개여도 메모리에는 한 batch만 올라간다.
+ * 읽은 뒤에 삭제 표시되었거나 text가 고쳐진 행은 저장하지 않는다(DataBase.saveAnalysis).
+ * 저장된 행은 analyzer_version이 올라가므로, 중간에 cancel되거나 앱이 꺼져도 다음에 run하면 남은 행부터 이어서 한다.
+ * 실제로 저장되었고 알람 시각이 바뀐 행만 같은 쓰기 작업에서 알람을 다시 등록한다.
+ */
+final class ReanalysisJob {
+
+    private static final String TAG = "ReanalysisJob";
+    static final int BATCH_SIZE = 200;
+
+    private final Context context;
+    private final DataBase db;
+    private final ExecutorService parsers;
+    private final ExecutorService writer;
+    private volatile boolean cancelled;
+
+    //TimeAnalysis는 분석 중인 값을 필드에 들고 있으므로 파서 스레드마다 하나씩 쓴다.
+    private final ThreadLocal<TimeAnalysis> timeAnalysis = new ThreadLocal<TimeAnalysis>() {
+        @Override
+        protected TimeAnalysis initialValue() {
+            return new TimeAnalysis();
+        }
+    };
+
+    /**
+     * @param parsers 분석을 나눠서 실행할 스레드 풀. 크기가 정해진 풀을 넘겨야 한다.
+     * @param writer  다른 쓰기와 같은 쓰기 스레드. 결과 저장과 알람 등록을 여기서 한다.
+     */
+    ReanalysisJob(Context context, DataBase db, ExecutorService parsers, ExecutorService writer) {
+        this.context = context.getApplicationContext();
+        this.db = db;
+        this.parsers = parsers;
+        this.writer = writer;
+    }
+
+    /**
+     * 다음 batch부터는 실행하지 않는다. 이미 저장한 batch는 그대로 남는다.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * 이전 버전으로 분석한 행이 없어질 때까지(혹은 cancel될 때까지) 다시 분석한다. 호출한 스레드를 막는다.
+     *
+     * @return 다시 분석해서 저장한 행의 개수
+     */
+    int run() throws InterruptedException {
+        long lastId = 0;
+        int total = 0;
+        while (!cancelled) {
+            List<ReminderRecord> rows = db.queryOutdated(lastId, BATCH_SIZE);
+            if (rows.isEmpty()) {
+                break;
+            }
+            total += save(analyze(rows));
+            lastId = rows.get(rows.size() - 1).getId();
+        }
+        Log.i(TAG, "Reanalyzed " + total + " records" + (cancelled ? " (cancelled)" : ""));
+        return total;
+    }
+
+    /**
+     * 쓰기 스레드에서 결과를 저장하고, 저장된 행만 알람을 다시 등록한다. 끝날 때까지 기다린다.
+     *
+     * @return 저장된 행의 개수
+     */
+    private int save(final List<Result> results) throws InterruptedException {
+        Future<Integer> saved = writer.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                final List<Result> updated = new ArrayList<>(results.size());
+                db.batch(new DataBase.Batch() {
+                    @Override
+                    public void run(DataBase db) {
+                        for (Result result : results) {
+                            ReminderRecord row = result.record;
+                            if (db.saveAnalysis(row.getId(), row.getText(), result.alarmAt, result.labels) > 0) {
+                                updated.add(result);
+                            }
+                        }
+                    }
+                });
+                for (Result result : updated) {
+                    reschedule(result);
+                }
+                return updated.size();
+            }
+        });
+        try {
+            return saved.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Saving reanalysis failed.", e.getCause());
+        }
+    }
+
+    private List<Result> analyze(List<ReminderRecord> rows) throws InterruptedException {
+        List<Callable<Result>> tasks = new ArrayList<>(rows.size());
+        for (final ReminderRecord row : rows) {
+            tasks.add(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return analyze(row);
+                }
+            });
+        }
+        List<Result> results = new ArrayList<>(rows.size());
+        for (Future<Result> future : parsers.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Reanalysis failed.", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 녹음한 시각(파일 이름)을 기준으로 text를 다시 분석한다. text가 없는 행은 알람 시각을 그대로 둔다.
+     */
+    private Result analyze(ReminderRecord row) {
+        Long alarmAt = row.getAlarmAt();
+        if (row.getText() != null) {
+            long recordedAt = AlarmTime.parseFileName(row.getFileName());
+            alarmAt = AlarmTime.parse(timeAnalysis.get().Analysis(row.getText(), recordedAt));
+        }
+        return new Result(row, alarmAt, RecordLabels.of(row.getText(), alarmAt));
+    }
+
+    /**
+     * 알람 시각이 바뀐 행의 알람을 취소하고, 아직 지나지 않았으면 새 시각으로 다시 등록한다.
+     */
+    private void reschedule(Result result) {
+        Long before = result.record.getAlarmAt();
+        Long after = result.alarmAt;
+        if (before == null ? after == null : before.equals(after)) {
+            return;
+        }
+        long id = result.record.getId();
+        AlarmScheduler.cancel(context, id);
+        if (after != null && after > System.currentTimeMillis()) {
+            AlarmScheduler.schedule(context, id, result.record.getFileName(), after);
+        }
+    }
+
+    private static class Result {
+        final ReminderRecord record;
+        final Long alarmAt;
+        final RecordLabels labels;
+
+        Result(ReminderRecord record, Long alarmAt, RecordLabels labels) {
+            this.record = record;
+            this.alarmAt = alarmAt;
+            this.labels = labels;
+        }
+    }
+}
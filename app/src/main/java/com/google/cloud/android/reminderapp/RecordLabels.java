@@ -0,0 +1,68 @@
+package com.google.cloud.android.reminderapp;
+
+import java.util.Calendar;
+
+/**
+ * 목록에 보여줄 글자를 녹음을 저장할 때 한 번만 만들어 디비에 같이 저장하기 위한 클래스이다.
+ * 예전에는 목록을 열 때마다 모든 행의 text에 ContentAnalysis의 정규식을 다시 돌리고
+ * 알람 문자열을 나눠서 시:분(-월-일)로 바꿨다.
+ * 만드는 방법이나 TimeAnalysis, ContentAnalysis의 규칙이 바뀌면 ANALYZER_VERSION을 올린다.
+ * 그러면 ReanalysisJob이 이전 버전으로 분석한 행들을 백그라운드에서 다시 분석한다.
+ */
+final class RecordLabels {
+
+    /**
+     * alarm_at, content, content_label, time_label을 만드는 분석기의 버전.
+     * 1 : ContentAnalysis로 시간 표현을 없앤 내용, 그 앞 6글자, 시:분(-월-일) 알람 시각
+     */
+    static final int ANALYZER_VERSION = 1;
+
+    private static final int CONTENT_LABEL_LENGTH = 6;
+
+    final String content;
+    final String contentLabel;
+    final String timeLabel;
+
+    private RecordLabels(String content, String contentLabel, String timeLabel) {
+        this.content = content;
+        this.contentLabel = contentLabel;
+        this.timeLabel = timeLabel;
+    }
+
+    /**
+     * @param text    음성 인식된 text. 없으면 null
+     * @param alarmAt 알람 시각의 epoch millis, 일반 메모인 경우 null
+     */
+    static RecordLabels of(String text, Long alarmAt) {
+        String content = text == null ? null : new ContentAnalysis().Analysis(text);
+        return new RecordLabels(content, contentLabel(content), timeLabel(alarmAt));
+    }
+
+    /**
+     * 목록에 보여줄 내용의 앞부분. MainActivity.contentTime과 같이 띄어쓰기를 없앤 앞 6글자이다.
+     *
+     * @return 내용이 없으면 빈 문자열
+     */
+    static String contentLabel(String content) {
+        if (content == null) {
+            return "";
+        }
+        content = content.replaceAll(" ", "");
+        return content.length() > CONTENT_LABEL_LENGTH ? content.substring(0, CONTENT_LABEL_LENGTH) : content;
+    }
+
+    /**
+     * 알람 시각을 시:분(-월-일) 형식으로 바꾼다. 일반 메모는 "일반 메모"를 돌려준다.
+     */
+    static String timeLabel(Long alarmAt) {
+        if (alarmAt == null) {
+            return AlarmTime.NOTE;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(alarmAt);
+        int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        int minute = calendar.get(Calendar.MINUTE);
+        return (hour < 10 ? "0" : "") + hour + ":" + (minute < 10 ? "0" : "") + minute
+                + "(" + (calendar.get(Calendar.MONTH) + 1) + "월" + calendar.get(Calendar.DAY_OF_MONTH) + "일" + ")";
+    }
+}
@@ -0,0 +1,82 @@
+package com.google.cloud.android.reminderapp;
+
+/**
+ * record 테이블의 한 행을 나타내는 값 객체이다.
+ * DataBase.queryRecords()가 커서 하나를 읽으면서 만들어 주므로
+ * 파일 이름, 알람 시각, 내용을 따로 조회한 뒤 index로 맞출 필요가 없다.
+ * 조회할 때 projection에 포함되지 않은 컬럼은 0 혹은 null로 남는다.
+ */
+public final class ReminderRecord {
+
+    private final long id;
+    private final String fileName;
+    private final Long alarmAt;
+    private final String text;
+    private final String contentLabel;
+    private final String timeLabel;
+    private final boolean deleted;
+
+    ReminderRecord(long id, String fileName, Long alarmAt, String text, String contentLabel, String timeLabel,
+                   boolean deleted) {
+        this.id = id;
+        this.fileName = fileName;
+        this.alarmAt = alarmAt;
+        this.text = text;
+        this.contentLabel = contentLabel;
+        this.timeLabel = timeLabel;
+        this.deleted = deleted;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return 알람 시각의 epoch millis, 일반 메모인 경우 null
+     */
+    public Long getAlarmAt() {
+        return alarmAt;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return 저장할 때 만들어 둔 내용의 앞부분. 아직 만들지 않았거나 조회하지 않았으면 null
+     */
+    public String getContentLabel() {
+        return contentLabel;
+    }
+
+    /**
+     * @return 저장할 때 만들어 둔 시:분(-월-일) 형식의 알람 시각. 아직 만들지 않았거나 조회하지 않았으면 null
+     */
+    public String getTimeLabel() {
+        return timeLabel;
+    }
+
+    /**
+     * @return 삭제 표시된 행이면 true. deleted_at을 조회하지 않았으면 false
+     */
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    public boolean isNote() {
+        return alarmAt == null;
+    }
+
+    /**
+     * 화면 코드에서 쓰던 yy:MM:dd:hh:mm 형식의 알람 문자열을 돌려준다.
+     *
+     * @return yy:MM:dd:hh:mm 형식의 문자열 혹은 "일반 메모"
+     */
+    public String getAlarmTime() {
+        return AlarmTime.format(alarmAt);
+    }
+}
@@ -0,0 +1,629 @@
+package com.google.cloud.android.reminderapp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DataBase 위에서 모든 조회와 쓰기를 UI 스레드 밖에서 실행하는 클래스이다.
+ * 쓰기는 스레드 하나(writer)에서 순서대로, 조회는 별도의 스레드 풀(reader)에서 동시에 실행하고
+ * 결과는 Callback을 통해 메인 스레드로 돌려준다.
+ * DataBase가 WAL 모드이므로 쓰기 중에도 조회가 막히지 않는다.
+ */
+public class ReminderRepository implements SttJobQueue.Store {
+
+    private static final String TAG = "ReminderRepository";
+    private static final int READER_THREADS = 2;
+    //되돌릴 수 있는 시간이 끝난 직후 sweep이 표시를 놓치지 않도록 조금 더 기다린다.
+    private static final long SWEEP_DELAY_MILLIS = 1000;
+    private static final String RECONCILE_PREF = "reconcile";
+    private static final long RECONCILE_INTERVAL_MILLIS = 24 * 60 * 60 * 1000;
+    //재분석할 때 정규식을 돌리는 스레드 수. UI 스레드 몫을 남겨두고 최대 4개까지 쓴다.
+    private static final int PARSER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static ReminderRepository sInstance;
+
+    /**
+     * 작업 결과를 메인 스레드에서 받기 위한 콜백이다.
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    /**
+     * 작업이 실패한 것도 알아야 하는 경우에 쓴다. 실패하면 onResult 대신 onError가 메인 스레드에서 불린다.
+     */
+    public interface ErrorCallback<T> extends Callback<T> {
+        void onError(Exception e);
+    }
+
+    /**
+     * 목록의 첫 페이지와 그때의 전체 녹음 수. 한 SELECT 문장으로 읽으므로 서로 어긋나지 않는다.
+     */
+    public static final class FirstPage {
+        public final List<ReminderRecord> records;
+        public final int totalCount;
+
+        FirstPage(List<ReminderRecord> records, int totalCount) {
+            this.records = records;
+            this.totalCount = totalCount;
+        }
+    }
+
+    private final Context context;
+    private final DataBase db;
+    private final ExecutorService writeExecutor;
+    private final ExecutorService readExecutor;
+    //아래의 스레드들은 읽기와 오래 걸리는 일(분석, 파일 목록 비교)만 하고, 쓰기는 batch 단위로 writeExecutor에 넘긴다.
+    private final ExecutorService analysisExecutor;
+    private final ExecutorService parseExecutor;
+    private ReanalysisJob reanalysisJob;
+    private final ScheduledExecutorService sweepExecutor;
+    private final TombstoneSweeper sweeper;
+    private final OrphanReconciler reconciler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<DataBase.OnChangeListener, DataBase.OnChangeListener> changeListeners = new HashMap<>();
+    //completeRecognition에서만, 즉 쓰기 스레드에서만 쓴다.
+    private TimeAnalysis recognitionAnalysis;
+
+    private ReminderRepository(Context context, DataBase db) {
+        this.context = context;
+        this.db = db;
+        writeExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("ReminderRepository writer"));
+        readExecutor = Executors.newFixedThreadPool(READER_THREADS, new NamedThreadFactory("ReminderRepository reader"));
+        analysisExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("ReminderRepository analysis"));
+        parseExecutor = Executors.newFixedThreadPool(PARSER_THREADS, new NamedThreadFactory("ReminderRepository parser"));
+        sweepExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("ReminderRepository sweeper"));
+        sweeper = new TombstoneSweeper(context, db, writeExecutor);
+        reconciler = new OrphanReconciler(context, db, this, writeExecutor);
+    }
+
+    public static synchronized ReminderRepository getInstance(Context c) {
+        if (sInstance == null) {
+            sInstance = new ReminderRepository(c.getApplicationContext(), DataBase.getInstance(c));
+        }
+        return sInstance;
+    }
+
+    public void insert(final String fileName, final String alarmTime, final String text,
+                       Callback<Long> callback) {
+        insert(fileName, alarmTime, text, null, callback);
+    }
+
+    public void insert(final String fileName, final String alarmTime, final String text, final AudioTrim trim,
+                       Callback<Long> callback) {
+        write(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return db.insert(fileName, alarmTime, text, trim);
+            }
+        }, callback);
+    }
+
+    public void update(final long id, final String alarmTime, final String text,
+                       Callback<Integer> callback) {
+        write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return db.update(id, alarmTime, text);
+            }
+        }, callback);
+    }
+
+    public void delete(final String fileName, Callback<Integer> callback) {
+        write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return db.delete(fileName);
+            }
+        }, callback);
+    }
+
+    public void delete(final long id, Callback<Integer> callback) {
+        write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return db.delete(id);
+            }
+        }, callback);
+    }
+
+    /**
+     * 녹음에 삭제 표시를 하고 알람을 취소한다. 파일과 행은 되돌릴 수 있는 시간이 지난 뒤 sweeper가 지운다.
+     */
+    public void markDeleted(final long id, Callback<Integer> callback) {
+        write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int marked = db.markDeleted(id);
+                if (marked > 0) {
+                    AlarmScheduler.cancel(context, id);
+                    scheduleSweep(TombstoneSweeper.UNDO_WINDOW_MILLIS + SWEEP_DELAY_MILLIS);
+                }
+                return marked;
+            }
+        }, callback);
+    }
+
+    /**
+     * 여러 녹음에 한 트랜잭션으로 삭제 표시를 하고 알람을 취소한다.
+     *
+     * @param callback 표시된 행의 개수를 받는다.
+     */
+    void markDeleted(final List<Long> ids, Callback<Integer> callback) {
+        write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                final List<Long> marked = new ArrayList<>(ids.size());
+                db.batch(new DataBase.Batch() {
+                    @Override
+                    public void run(DataBase db) {
+                        for (long id : ids) {
+                            if (db.markDeleted(id) > 0) {
+                                marked.add(id);
+                            }
+                        }
+                    }
+                });
+                for (long id : marked) {
+                    AlarmScheduler.cancel(context, id);
+                }
+                if (!marked.isEmpty()) {
+                    scheduleSweep(TombstoneSweeper.UNDO_WINDOW_MILLIS + SWEEP_DELAY_MILLIS);
+                }
+                return marked.size();
+            }
+        }, callback);
+    }
+
+    /**
+     * 아직 지워지지 않은 삭제 표시를 되돌리고, 지나지 않은 알람이면 다시 등록한다.
+     */
+    public void restore(final long id, Callback<Integer> callback) {
+        write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int restored = db.restore(id);
+                ReminderRecord record = restored > 0 ? db.getRecord(id) : null;
+                if (record != null && !record.isNote() && record.getAlarmAt() > System.currentTimeMillis()) {
+                    AlarmScheduler.schedule(context, id, record.getFileName(), record.getAlarmAt());
+                }
+                return restored;
+            }
+        }, callback);
+    }
+
+    /**
+     * delayMillis 뒤에 되돌릴 수 있는 시간이 지난 삭제 표시들을 지운다. 앱을 시작할 때는 0으로 불러
+     * 이전 실행에서 남은 것을 지운다. 기다리는 것은 sweeper 스레드에서 하고, 지우는 것은 batch마다 쓰기 스레드에서 한다.
+     */
+    public void scheduleSweep(long delayMillis) {
+        sweepExecutor.schedule(new Task<Integer>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws InterruptedException {
+                return sweeper.sweep();
+            }
+        }, null), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 녹음 파일과 record 테이블을 맞춘다(OrphanReconciler). 파일 목록을 모두 읽어야 하므로
+     * RECONCILE_INTERVAL_MILLIS에 한 번만 실행하고, 그 전에 부르면 아무것도 하지 않는다.
+     *
+     * @param recordingFileName 지금 녹음 중인 파일 이름. 없으면 null
+     */
+    void reconcileFiles(final String recordingFileName, Callback<OrphanReconciler.Report> callback) {
+        final SharedPreferences preference = context.getSharedPreferences(RECONCILE_PREF, Context.MODE_PRIVATE);
+        final long now = System.currentTimeMillis();
+        if (now - preference.getLong("lastRun", 0) < RECONCILE_INTERVAL_MILLIS) {
+            return;
+        }
+        preference.edit().putLong("lastRun", now).apply();
+        sweepExecutor.execute(new Task<OrphanReconciler.Report>(new Callable<OrphanReconciler.Report>() {
+            @Override
+            public OrphanReconciler.Report call() throws InterruptedException {
+                return reconciler.reconcile(recordingFileName);
+            }
+        }, callback));
+    }
+
+    /**
+     * 녹음이 끝나면 음성 인식을 기다리는 목록(stt_job)에 넣는다. 같은 녹음은 한 번만 들어간다.
+     *
+     * @param callback 새로 넣은 행의 _id를 받는다. 이미 있으면 -1
+     */
+    public void enqueueRecognition(final String fileName, final AudioTrim trim, Callback<Long> callback) {
+        write(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return db.enqueueSttJob(fileName, trim);
+            }
+        }, callback);
+    }
+
+    /**
+     * 음성 인식 결과로 record 행을 만들고 stt_job을 지운다. 두 가지를 한 트랜잭션에서 하므로
+     * 중간에 앱이 꺼져도 녹음이 사라지거나 두 번 저장되지 않는다.
+     * 알람 시각은 녹음한 시각을 기준으로 분석하므로, 나중에 다시 보내 인식된 녹음도 "내일" 같은 표현이 맞게 계산된다.
+     * 알람이 있으면 저장된 _id로 등록한다.
+     *
+     * @param callback 저장된 행을 받는다. 화면에 보여줄 알람 시각도 이 행의 것을 쓴다.
+     *                 stt_job이 없으면(이미 저장했으면) 그때 저장된 행, 그것도 없으면 null
+     */
+    public void completeRecognition(final String fileName, final String text, Callback<ReminderRecord> callback) {
+        write(new Callable<ReminderRecord>() {
+            @Override
+            public ReminderRecord call() {
+                final SttJob job = db.getSttJob(fileName);
+                if (job == null) {
+                    return db.getRecordByFileName(fileName);
+                }
+                if (recognitionAnalysis == null) {
+                    recognitionAnalysis = new TimeAnalysis();
+                }
+                String analyzed;
+                try {
+                    analyzed = recognitionAnalysis.Analysis(text, AlarmTime.parseFileName(fileName));
+                } catch (RuntimeException e) {
+                    //분석하지 못한 말 때문에 녹음을 잃지 않도록 일반 메모로 저장한다.
+                    Log.e(TAG, "Could not analyze " + fileName + ". Saving it as a note.", e);
+                    analyzed = AlarmTime.NOTE;
+                    //중간에 멈춘 분석기의 상태를 다음 녹음에 남기지 않는다.
+                    recognitionAnalysis = null;
+                }
+                final String alarmTime = analyzed;
+                final long[] id = {-1};
+                db.batch(new DataBase.Batch() {
+                    @Override
+                    public void run(DataBase db) {
+                        id[0] = db.insert(fileName, alarmTime, text, job.trim);
+                        db.deleteSttJob(fileName);
+                    }
+                });
+                Long alarmAt = AlarmTime.parse(alarmTime);
+                if (id[0] != -1 && alarmAt != null && alarmAt > System.currentTimeMillis()) {
+                    AlarmScheduler.schedule(context, id[0], fileName, alarmAt);
+                }
+                return id[0] == -1 ? null : db.getRecordByFileName(fileName);
+            }
+        }, callback);
+    }
+
+    /**
+     * 인식된 말이 없는 녹음을 stt_job에서 뺀다.
+     * 녹음 파일은 행이 없으므로 OrphanReconciler가 나중에 정리한다.
+     */
+    public void dropRecognition(final String fileName, Callback<Integer> callback) {
+        write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return db.deleteSttJob(fileName);
+            }
+        }, callback);
+    }
+
+    /**
+     * 음성 인식을 포기한 녹음을 text 없는 일반 메모로 저장하고 stt_job을 지운다. 녹음은 목록에 남아 다시 들을 수 있다.
+     * 녹음 파일이 없으면 stt_job만 지운다.
+     *
+     * @param callback 저장된 행을 받는다. 파일이 없어 저장하지 않았으면 null
+     */
+    public void abandonRecognition(final String fileName, Callback<ReminderRecord> callback) {
+        write(new Callable<ReminderRecord>() {
+            @Override
+            public ReminderRecord call() {
+                final SttJob job = db.getSttJob(fileName);
+                if (job == null) {
+                    return db.getRecordByFileName(fileName);
+                }
+                if (!new File(context.getFilesDir(), fileName).exists()) {
+                    db.deleteSttJob(fileName);
+                    return null;
+                }
+                final long[] id = {-1};
+                db.batch(new DataBase.Batch() {
+                    @Override
+                    public void run(DataBase db) {
+                        id[0] = db.insert(fileName, AlarmTime.NOTE, "", job.trim);
+                        db.deleteSttJob(fileName);
+                    }
+                });
+                return id[0] == -1 ? null : db.getRecordByFileName(fileName);
+            }
+        }, callback);
+    }
+
+    /**
+     * 인식에 실패한 stt_job을 nextAttemptAt에 다시 보내도록 적어둔다.
+     */
+    public void retryRecognition(final long jobId, final int attempts, final long nextAttemptAt, final String error,
+                                 Callback<Integer> callback) {
+        write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return db.retrySttJob(jobId, attempts, nextAttemptAt, error);
+            }
+        }, callback);
+    }
+
+    public void dueRecognitions(final long now, final int limit, Callback<List<SttJob>> callback) {
+        read(new Callable<List<SttJob>>() {
+            @Override
+            public List<SttJob> call() {
+                return db.queryDueSttJobs(now, limit);
+            }
+        }, callback);
+    }
+
+    public void nextRecognitionAt(Callback<Long> callback) {
+        read(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return db.nextSttJobAt();
+            }
+        }, callback);
+    }
+
+    public void batch(final DataBase.Batch batch, Callback<Void> callback) {
+        write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                db.batch(batch);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * 이전 버전의 분석기로 분석한 행들을 백그라운드에서 다시 분석한다(ReanalysisJob).
+     * 이미 실행 중이면 아무것도 하지 않는다. 쓰기 스레드를 오래 잡지 않도록 읽기와 분석은 별도의 스레드에서 하고
+     * batch마다 저장만 쓰기 스레드에서 하므로, batch 사이사이에 다른 insert, delete가 끼어들 수 있다.
+     *
+     * @param callback 다시 분석한 행의 개수를 받는다.
+     */
+    public synchronized void startReanalysis(Context context, Callback<Integer> callback) {
+        if (reanalysisJob != null) {
+            return;
+        }
+        final ReanalysisJob job = new ReanalysisJob(context, db, parseExecutor, writeExecutor);
+        reanalysisJob = job;
+        analysisExecutor.execute(new Task<Integer>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws InterruptedException {
+                try {
+                    return job.run();
+                } finally {
+                    synchronized (ReminderRepository.this) {
+                        reanalysisJob = null;
+                    }
+                }
+            }
+        }, callback));
+    }
+
+    /**
+     * 실행 중인 재분석을 멈춘다. 다음에 startReanalysis를 부르면 남은 행부터 이어서 한다.
+     */
+    public synchronized void cancelReanalysis() {
+        if (reanalysisJob != null) {
+            reanalysisJob.cancel();
+        }
+    }
+
+    public void queryRecords(Callback<List<ReminderRecord>> callback, final String... columns) {
+        read(new Callable<List<ReminderRecord>>() {
+            @Override
+            public List<ReminderRecord> call() {
+                return db.queryRecords(columns);
+            }
+        }, callback);
+    }
+
+    public void queryPage(final long beforeId, final int limit, Callback<List<ReminderRecord>> callback,
+                          final String... columns) {
+        read(new Callable<List<ReminderRecord>>() {
+            @Override
+            public List<ReminderRecord> call() {
+                return db.queryPage(beforeId, limit, columns);
+            }
+        }, callback);
+    }
+
+    /**
+     * 최신 녹음부터 limit개와 전체 녹음 수를 SELECT 한 문장으로 읽는다(DataBase.queryFirstPage).
+     * 따로 읽으면 두 결과 사이에 녹음이 추가되거나 지워져 목록 번호가 어긋날 수 있다.
+     */
+    public void queryFirstPage(final int limit, Callback<FirstPage> callback, final String... columns) {
+        read(new Callable<FirstPage>() {
+            @Override
+            public FirstPage call() {
+                int[] totalCount = new int[1];
+                List<ReminderRecord> records = db.queryFirstPage(limit, totalCount, columns);
+                return new FirstPage(records, totalCount[0]);
+            }
+        }, callback);
+    }
+
+    public void search(final String query, final int limit, Callback<List<ReminderRecord>> callback) {
+        read(new Callable<List<ReminderRecord>>() {
+            @Override
+            public List<ReminderRecord> call() {
+                return db.search(query, limit);
+            }
+        }, callback);
+    }
+
+    public void dueBetween(final long fromMillis, final long toMillis, Callback<List<ReminderRecord>> callback) {
+        read(new Callable<List<ReminderRecord>>() {
+            @Override
+            public List<ReminderRecord> call() {
+                return db.dueBetween(fromMillis, toMillis);
+            }
+        }, callback);
+    }
+
+    public void nextDue(final int limit, Callback<List<ReminderRecord>> callback) {
+        read(new Callable<List<ReminderRecord>>() {
+            @Override
+            public List<ReminderRecord> call() {
+                return db.nextDue(limit);
+            }
+        }, callback);
+    }
+
+    public void getRecord(final long id, Callback<ReminderRecord> callback) {
+        read(new Callable<ReminderRecord>() {
+            @Override
+            public ReminderRecord call() {
+                return db.getRecord(id);
+            }
+        }, callback);
+    }
+
+    public void getLatestRecord(Callback<ReminderRecord> callback) {
+        read(new Callable<ReminderRecord>() {
+            @Override
+            public ReminderRecord call() {
+                return db.getLatestRecord();
+            }
+        }, callback);
+    }
+
+    public void count(Callback<Integer> callback) {
+        read(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return db.count();
+            }
+        }, callback);
+    }
+
+    /**
+     * DataBase의 변경 알림을 메인 스레드에서 받도록 리스너를 등록한다.
+     */
+    public void addOnChangeListener(final DataBase.OnChangeListener listener) {
+        DataBase.OnChangeListener mainThreadListener = new DataBase.OnChangeListener() {
+            @Override
+            public void onInserted(final long id) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onInserted(id);
+                    }
+                });
+            }
+
+            @Override
+            public void onDeleted(final long id) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDeleted(id);
+                    }
+                });
+            }
+
+            @Override
+            public void onUpdated(final long id) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onUpdated(id);
+                    }
+                });
+            }
+        };
+        synchronized (changeListeners) {
+            changeListeners.put(listener, mainThreadListener);
+        }
+        db.addOnChangeListener(mainThreadListener);
+    }
+
+    public void removeOnChangeListener(DataBase.OnChangeListener listener) {
+        DataBase.OnChangeListener mainThreadListener;
+        synchronized (changeListeners) {
+            mainThreadListener = changeListeners.remove(listener);
+        }
+        if (mainThreadListener != null) {
+            db.removeOnChangeListener(mainThreadListener);
+        }
+    }
+
+    private <T> void write(Callable<T> task, Callback<T> callback) {
+        writeExecutor.execute(new Task<T>(task, callback));
+    }
+
+    private <T> void read(Callable<T> task, Callback<T> callback) {
+        readExecutor.execute(new Task<T>(task, callback));
+    }
+
+    /**
+     * 작업을 백그라운드 스레드에서 실행한 뒤 결과를 메인 스레드의 콜백으로 넘긴다.
+     * 실패한 경우 로그를 남기고, 콜백이 ErrorCallback이면 onError를 부른다.
+     */
+    private class Task<T> implements Runnable {
+        private final Callable<T> task;
+        private final Callback<T> callback;
+
+        Task(Callable<T> task, Callback<T> callback) {
+            this.task = task;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            final T result;
+            try {
+                result = task.call();
+            } catch (final Exception e) {
+                Log.e(TAG, "Database task failed.", e);
+                if (callback instanceof ErrorCallback) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            ((ErrorCallback<T>) callback).onError(e);
+                        }
+                    });
+                }
+                return;
+            }
+            if (callback != null) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResult(result);
+                    }
+                });
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, name + " " + count.incrementAndGet());
+        }
+    }
+}
@@ -17,9 +17,12 @@
 package com.google.cloud.android.reminderapp;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
 import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Handler;
@@ -32,15 +35,8 @@ import android.util.Log;
 import com.google.auth.Credentials;
 import com.google.auth.oauth2.AccessToken;
 import com.google.auth.oauth2.GoogleCredentials;
-import com.google.cloud.speech.v1.RecognitionAudio;
 import com.google.cloud.speech.v1.RecognitionConfig;
-import com.google.cloud.speech.v1.RecognizeRequest;
-import com.google.cloud.speech.v1.RecognizeResponse;
 import com.google.cloud.speech.v1.SpeechGrpc;
-import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
-import com.google.cloud.speech.v1.SpeechRecognitionResult;
-import com.google.cloud.speech.v1.StreamingRecognitionConfig;
-import com.google.cloud.speech.v1.StreamingRecognitionResult;
 import com.google.cloud.speech.v1.StreamingRecognizeRequest;
 import com.google.cloud.speech.v1.StreamingRecognizeResponse;
 import com.google.instrumentation.stats.Tag;
@@ -69,8 +65,9 @@ import io.grpc.MethodDescriptor;
 import io.grpc.Status;
 import io.grpc.StatusException;
 import io.grpc.internal.DnsNameResolverProvider;
-import io.grpc.okhttp.OkHttpChannelProvider;
-import io.grpc.stub.StreamObserver;
+import io.grpc.okhttp.OkHttpChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 
 
 public class SpeechService extends Service {
@@ -80,11 +77,12 @@ public class SpeechService extends Service {
         /**
          * Calle d when a new piece of text was recognized by the Speech API.
          *
-         * @param text    The text.
-         * @param isFinal {@code true} when the API finished processing audio.
+         * @param text      The text.
+         * @param alarmTime 저장된 녹음의 알람 시각(yy:MM:dd:hh:mm). 일반 메모거나 저장되지 않았으면 null
+         * @param isFinal   {@code true} when the API finished processing audio.
          */
 
-        void onSpeechRecognized(String text, boolean isFinal);
+        void onSpeechRecognized(String text, String alarmTime, boolean isFinal);
 
     }
 
@@ -104,93 +102,37 @@ public class SpeechService extends Service {
     private static final String HOSTNAME = "speech.googleapis.com";
     private static final int PORT = 443;
 
+    /** 스트리밍 인식이 이 시간 안에 끝나지 않으면 실패로 보고 SttJobQueue가 다시 보낸다. */
+    private static final long STREAMING_DEADLINE_SECONDS = 30;
+    /** 녹음 파일을 보낼 때 한 번에 읽어 보내는 크기. 16kHz 16bit로 0.5초 분량이다. */
+    private static final int UPLOAD_CHUNK_BYTES = 16 * 1024;
+    /** 보낼 PCM이 이보다 크면(약 2초 이상) FLAC으로 압축해서 보낸다. 짧은 녹음은 압축해도 줄어드는 시간이 작다. */
+    private static final int FLAC_THRESHOLD_BYTES = 64 * 1024;
+    /**
+     * 호출이 진행 중인 동안 연결이 살아 있는지 확인하는 keepalive ping 간격. 서버가 허용하는 최소 간격보다 짧으면 연결을 끊는다.
+     * 호출이 없을 때는 ping을 보내지 않는다(서버가 too_many_pings로 끊고, 쉬는 동안 라디오를 깨운다).
+     * 녹음 사이에 끊긴 연결은 prewarm이 token을 새로 받을 때와 네트워크가 다시 연결될 때 다시 연결한다.
+     */
+    private static final long KEEPALIVE_MINUTES = 5;
+    private static final long KEEPALIVE_TIMEOUT_SECONDS = 20;
+    /** 채널을 닫을 때 진행 중인 호출이 끝나기를 기다리는 시간 */
+    private static final long SHUTDOWN_GRACE_SECONDS = 5;
+    /** access token을 받지 못했을 때 다시 시도하기까지 기다리는 시간 */
+    private static final int ACCESS_TOKEN_RETRY_DELAY = 60 * 1000;
+
     private final SpeechBinder mBinder = new SpeechBinder();
     private final ArrayList<Listener> mListeners = new ArrayList<>();
     private volatile AccessTokenTask mAccessTokenTask;
     private SpeechGrpc.SpeechStub mApi;
+    //서비스가 살아 있는 동안 하나만 만들어 계속 쓴다. token이 바뀌면 interceptor의 credentials만 바꾼다.
+    private ManagedChannel mChannel;
+    private GoogleCredentialsInterceptor mCredentialsInterceptor;
     private static Handler mHandler;
 
-    private final StreamObserver<StreamingRecognizeResponse> mResponseObserver
-            = new StreamObserver<StreamingRecognizeResponse>() {
-        @Override
-        public void onNext(StreamingRecognizeResponse response) {
-            String text = null;
-            boolean isFinal = false;
-            if (response.getResultsCount() > 0) {
-                final StreamingRecognitionResult result = response.getResults(0);
-                isFinal = result.getIsFinal();
-                if (result.getAlternativesCount() > 0) {
-                    final SpeechRecognitionAlternative alternative = result.getAlternatives(0);
-                    text = alternative.getTranscript();
-                }
-            }
-
-            System.out.println("dddddd");
-
-            if (text != null) {
-                for (Listener listener : mListeners) {
-                    listener.onSpeechRecognized(text, isFinal);
-                }
-            }
-        }
-
-        @Override
-        public void onError(Throwable t) {
-            Log.e(TAG, "Error calling the API.", t);
-        }
-
-        @Override
-        public void onCompleted() {
-            Log.i(TAG, "API completed.");
-        }
-
-    };
-
-    private final StreamObserver<RecognizeResponse> mFileResponseObserver
-            = new StreamObserver<RecognizeResponse>() {
-        @Override
-        public void onNext(RecognizeResponse response) {
-            String text = null;
-            if (response.getResultsCount() > 0) {
-                final SpeechRecognitionResult result = response.getResults(0);
-                if (result.getAlternativesCount() > 0) {
-                    final SpeechRecognitionAlternative alternative = result.getAlternatives(0);
-                    text = alternative.getTranscript();
-                }
-            }
-
-            System.out.println("dddddd2 " + text);
-
-            if (text != null) {
-                for (Listener listener : mListeners) {
-                    listener.onSpeechRecognized(text, true);
-                }
-            }
-
-            //추가
-
-            else if(text == null)
-            {
-                System.out.println("dddddd3 " + mListeners);
-                for (Listener listener : mListeners) {
-                    listener.onSpeechRecognized("", false);
-                }
-            }
-        }
-
-        @Override
-        public void onError(Throwable t) {
-            Log.e(TAG, "Error calling the API.", t);
-        }
-
-        @Override
-        public void onCompleted() {
-            Log.i(TAG, "API completed.");
-        }
-
-    };
-
-    private StreamObserver<StreamingRecognizeRequest> mRequestObserver;
+    private volatile StreamingSession mSession;
+    private SttJobQueue mJobQueue;
+    //결과를 Listener로 알릴 녹음, 즉 마지막으로 녹음을 마친 파일. 메인 스레드에서만 쓴다.
+    private String mForegroundFileName;
 
     public static SpeechService from(IBinder binder) {
         return ((SpeechBinder) binder).getService();
@@ -200,28 +142,90 @@ public class SpeechService extends Service {
     public void onCreate() {
         super.onCreate();
         mHandler = new Handler();
+        mJobQueue = new SttJobQueue(ReminderRepository.getInstance(this), mRecognizer, mJobListener);
+        mJobQueue.start();
+        registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
         fetchAccessToken();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        cancelRecognizing();
+        mJobQueue.stop();
+        unregisterReceiver(mConnectivityReceiver);
         mHandler.removeCallbacks(mFetchAccessTokenRunnable);
         mHandler = null;
         // Release the gRPC channel.
-        if (mApi != null) {
-            final ManagedChannel channel = (ManagedChannel) mApi.getChannel();
-            if (channel != null && !channel.isShutdown()) {
+        if (mChannel != null) {
+            shutdownGracefully(mChannel);
+            mChannel = null;
+            mApi = null;
+        }
+    }
+
+    /**
+     * 새 호출은 받지 않고 진행 중인 호출은 SHUTDOWN_GRACE_SECONDS까지 기다린 뒤 강제로 닫는다.
+     * 메인 스레드를 막지 않도록 기다리는 일은 별도의 스레드에서 한다.
+     */
+    private static void shutdownGracefully(final ManagedChannel channel) {
+        if (channel.isShutdown()) {
+            return;
+        }
+        channel.shutdown();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+                    if (!channel.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS)) {
+                        channel.shutdownNow();
+                    }
                 } catch (InterruptedException e) {
                     Log.e(TAG, "Error shutting down the gRPC channel.", e);
+                    channel.shutdownNow();
                 }
             }
-            mApi = null;
+        }, "SpeechService channel shutdown").start();
+    }
+
+    /**
+     * 채널이 아직 연결되지 않았으면 미리 연결(DNS, TLS, HTTP/2)해 둔다. 녹음을 마친 뒤의 첫 요청이 연결을 기다리지 않는다.
+     * 채널을 만들 때뿐 아니라 token을 새로 받을 때와 네트워크가 다시 연결될 때도 부른다.
+     * 오래 쓰지 않아 채널이 idle이 되었거나 네트워크가 바뀌어 연결이 끊긴 경우에도 다음 녹음 전에 다시 연결된다.
+     * 이미 연결되어 있으면 아무 일도 하지 않는다.
+     * getState(true)를 지원하지 않는 gRPC 버전에서는 바로 취소하는 호출로 연결을 시작시킨다.
+     */
+    private void prewarm() {
+        ManagedChannel channel = mChannel;
+        if (channel == null || channel.isShutdown()) {
+            return;
+        }
+        try {
+            channel.getState(true);
+        } catch (UnsupportedOperationException e) {
+            ClientCall<StreamingRecognizeRequest, StreamingRecognizeResponse> call =
+                    channel.newCall(SpeechGrpc.METHOD_STREAMING_RECOGNIZE, CallOptions.DEFAULT);
+            call.start(new ClientCall.Listener<StreamingRecognizeResponse>() {
+            }, new Metadata());
+            call.cancel("prewarm", null);
         }
     }
 
+    /**
+     * 네트워크가 다시 연결되면 채널을 미리 연결하고, 네트워크를 기다리던 녹음을 바로 보내도록 큐를 깨운다.
+     */
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (isInitialStickyBroadcast()
+                    || intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                return;
+            }
+            prewarm();
+            mJobQueue.kick();
+        }
+    };
+
     private void fetchAccessToken() {
         if (mAccessTokenTask != null) {
             return;
@@ -256,83 +260,243 @@ public class SpeechService extends Service {
     }
 
     /**
-     * Starts recognizing speech audio.
+     * 녹음을 시작할 때 불러 스트리밍 인식(streamingRecognize)을 연다.
+     * 녹음하는 동안 recognize로 음성을 보내두면, 녹음이 끝난 뒤 업로드 없이 최종 결과만 기다리면 된다.
+     * 중간 결과는 받지 않고 최종 결과(is_final)만 모아 finishRecognizing 뒤에 한 번 알린다.
      *
      * @param sampleRate The sample rate of the audio.
      */
     public void startRecognizing(int sampleRate) {
+        cancelRecognizing();
         if (mApi == null) {
             Log.w(TAG, "API not ready. Ignoring the request.");
             return;
         }
-        // Configure the API
-        mRequestObserver = mApi.streamingRecognize(mResponseObserver);
-        mRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
-                .setStreamingConfig(StreamingRecognitionConfig.newBuilder()
-                        .setConfig(RecognitionConfig.newBuilder()
-                                .setLanguageCode(getDefaultLanguageCode())
-                                .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
-                                .setSampleRateHertz(sampleRate)
-                                .build())
-                        .setInterimResults(true)
-                        .setSingleUtterance(true)
-                        .build())
-                .build());
+        StreamingSession session = new StreamingSession();
+        session.start(mApi.withDeadlineAfter(STREAMING_DEADLINE_SECONDS, TimeUnit.SECONDS), sampleRate);
+        mSession = session;
     }
 
     /**
      * Recognizes the speech audio. This method should be called every time a chunk of byte buffer
      * is ready.
+     * 녹음 파일을 쓰는 스레드에서 불리며, data는 돌아온 뒤 다시 쓰이므로 여기서 복사한다.
      *
      * @param data The audio data.
      * @param size The number of elements that are actually relevant in the {@code data}.
      */
     public void recognize(byte[] data, int size) {
-        if (mRequestObserver == null) {
+        StreamingSession session = mSession;
+        if (session == null) {
             return;
         }
-        // Call the streaming recognition API
-        mRequestObserver.onNext(StreamingRecognizeRequest.newBuilder()
-                .setAudioContent(ByteString.copyFrom(data, 0, size))
-                .build());
+        session.send(data, size);
     }
 
     /**
-     * Finishes recognizing speech audio.
+     * 녹음이 끝나면 불러 녹음을 음성 인식 목록(stt_job)에 넣고 스트리밍 인식을 닫는다. 결과는 Listener로 알린다.
+     * 스트리밍 인식을 열지 못했거나 실패하면 SttJobQueue가 녹음 파일을 다시 보낸다.
+     *
+     * @param fileName 녹음 파일 이름
+     * @param trim     녹음 앞뒤를 잘라낸 구간. 모르면 null
      */
-    public void finishRecognizing() {
-        if (mRequestObserver == null) {
-            return;
+    public void finishRecognizing(String fileName, AudioTrim trim) {
+        mForegroundFileName = fileName;
+        mJobQueue.enqueue(fileName, trim);
+        StreamingSession session = mSession;
+        mSession = null;
+        if (session != null) {
+            session.finish(mJobQueue.track(fileName));
         }
-        mRequestObserver.onCompleted();
-        mRequestObserver = null;
     }
 
     /**
-     * Recognize all data from the specified {@link InputStream}.
-     *
-     * @param stream The audio data.
+     * 녹음을 취소했을 때 스트리밍 인식을 결과 없이 닫는다.
      */
-    public void recognizeInputStream(InputStream stream) {
+    public void cancelRecognizing() {
+        StreamingSession session = mSession;
+        mSession = null;
+        if (session != null) {
+            session.cancel();
+        }
+    }
+
+    /**
+     * SttJobQueue가 녹음 파일을 보낼 때 쓴다. 파일 전체를 메모리에 올리지 않고 UPLOAD_CHUNK_BYTES씩 읽어
+     * 스트리밍 인식으로 보낸다.
+     */
+    private final SttJobQueue.Recognizer mRecognizer = new SttJobQueue.Recognizer() {
+        @Override
+        public boolean isReady() {
+            return mApi != null;
+        }
+
+        @Override
+        public void recognize(SttJob job, SttJobQueue.Outcome outcome) {
+            InputStream stream;
+            int sampleRate;
+            RecognitionConfig.AudioEncoding encoding = RecognitionConfig.AudioEncoding.LINEAR16;
+            try {
+                //파일은 ADPCM으로 저장되므로 16bit PCM(LINEAR16)으로 풀면서 보낸다. 샘플 레이트는 파일 헤더의 것을 쓴다.
+                ImaAdpcm.PcmInputStream pcm = ImaAdpcm.openPcm(openFileInput(job.fileName));
+                sampleRate = pcm.getSampleRate();
+                stream = pcm;
+                //available()은 남은 크기를 보장하지 않으므로 파일 크기로 PCM 크기를 구한다.
+                if (pcm.pcmBytes(getFileStreamPath(job.fileName).length()) > FLAC_THRESHOLD_BYTES) {
+                    stream = Flac.encode(pcm, sampleRate);
+                    encoding = RecognitionConfig.AudioEncoding.FLAC;
+                }
+            } catch (IOException e) {
+                outcome.onFailed(e);
+                return;
+            }
+            mApi.withDeadlineAfter(STREAMING_DEADLINE_SECONDS, TimeUnit.SECONDS)
+                    .streamingRecognize(new FileUpload(stream, sampleRate, encoding, outcome));
+        }
+    };
+
+    private final SttJobQueue.Listener mJobListener = new SttJobQueue.Listener() {
+        @Override
+        public void onRecognized(String fileName, String text, ReminderRecord record) {
+            //앱을 다시 켰을 때 이어서 보낸 녹음은 목록에만 추가되고 화면에는 알리지 않는다.
+            if (fileName.equals(mForegroundFileName)) {
+                mForegroundFileName = null;
+                dispatchTranscript(text, record == null || record.isNote() ? null : record.getAlarmTime());
+            }
+        }
+    };
+
+    /**
+     * 인식된 말이 없으면 빈 글자와 false를 알린다.
+     * 알람 시각은 녹음한 시각을 기준으로 저장된 값을 그대로 알리므로, 화면에서 다시 분석하지 않는다.
+     */
+    private void dispatchTranscript(String text, String alarmTime) {
+        boolean isFinal = !text.isEmpty();
+        for (Listener listener : mListeners) {
+            listener.onSpeechRecognized(text, alarmTime, isFinal);
+        }
+    }
+
+    private static void closeQuietly(InputStream stream) {
         try {
-            //TODO 음성을 녹음한 후, 음성파일을 STT서버로 보낼 때 불안정한 네트워크 연결 상태에 대한 처리 필요
-            mApi.recognize(
-                    RecognizeRequest.newBuilder()
-                            .setConfig(RecognitionConfig.newBuilder()
-                                    .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
-                                    .setLanguageCode("ko-KR")
-                                    .setSampleRateHertz(16000)
-                                    .build())
-                            .setAudio(RecognitionAudio.newBuilder()
-                                    .setContent(ByteString.readFrom(stream))
-                                    .build())
-                            .build(),
-                    mFileResponseObserver);
+            stream.close();
         } catch (IOException e) {
-            Log.e(TAG, "Error loading the input", e);
+            Log.w(TAG, "Error closing the input", e);
         }
     }
 
+    /**
+     * 녹음 파일 하나를 스트리밍 인식으로 보낸다.
+     * 전송 쪽이 더 받을 수 있을 때(onReady)만 다음 조각을 읽으므로, 네트워크가 느려도 보낼 데이터가 메모리에 쌓이지 않는다.
+     * 읽는 배열은 하나만 만들어 계속 쓴다. 보낸 바이트 수와 첫 조각을 보내기까지 걸린 시간을 로그로 남긴다.
+     * stream은 encoding 형식이어야 하고, 설정 요청에도 같은 encoding을 쓴다.
+     */
+    private class FileUpload implements
+            ClientResponseObserver<StreamingRecognizeRequest, StreamingRecognizeResponse> {
+
+        private final InputStream mStream;
+        private final int mSampleRate;
+        private final RecognitionConfig.AudioEncoding mEncoding;
+        private final SttJobQueue.Outcome mOutcome;
+        private final byte[] mChunk = new byte[UPLOAD_CHUNK_BYTES];
+        private final StringBuilder mTranscript = new StringBuilder();
+        private final long mStartNanos = System.nanoTime();
+        private ClientCallStreamObserver<StreamingRecognizeRequest> mRequests;
+        private boolean mConfigSent;
+        private boolean mDone;
+        private long mBytesSent;
+        private long mFirstByteNanos = -1;
+
+        FileUpload(InputStream stream, int sampleRate, RecognitionConfig.AudioEncoding encoding,
+                SttJobQueue.Outcome outcome) {
+            mStream = stream;
+            mSampleRate = sampleRate;
+            mEncoding = encoding;
+            mOutcome = outcome;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<StreamingRecognizeRequest> requests) {
+            mRequests = requests;
+            requests.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                    pump();
+                }
+            });
+        }
+
+        private synchronized void pump() {
+            if (mDone) {
+                return;
+            }
+            if (!mConfigSent) {
+                mRequests.onNext(StreamingSession.streamingConfig(mSampleRate, mEncoding));
+                mConfigSent = true;
+            }
+            try {
+                while (mRequests.isReady()) {
+                    int n = mStream.read(mChunk, 0, mChunk.length);
+                    if (n < 0) {
+                        mDone = true;
+                        closeQuietly(mStream);
+                        mRequests.onCompleted();
+                        Log.i(TAG, "Uploaded " + mBytesSent + " bytes (" + mEncoding + ") in " + millisSince(mStartNanos)
+                                + "ms, first byte after "
+                                + (mFirstByteNanos < 0 ? -1 : (mFirstByteNanos - mStartNanos) / 1000000) + "ms");
+                        return;
+                    }
+                    if (n == 0) {
+                        continue;
+                    }
+                    mRequests.onNext(StreamingRecognizeRequest.newBuilder()
+                            .setAudioContent(ByteString.copyFrom(mChunk, 0, n))
+                            .build());
+                    if (mFirstByteNanos < 0) {
+                        mFirstByteNanos = System.nanoTime();
+                    }
+                    mBytesSent += n;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading the input", e);
+                mDone = true;
+                closeQuietly(mStream);
+                mRequests.onError(Status.INTERNAL.withDescription("Could not read audio").withCause(e).asException());
+            }
+        }
+
+        @Override
+        public synchronized void onNext(StreamingRecognizeResponse response) {
+            StreamingSession.appendFinalResults(mTranscript, response);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            synchronized (this) {
+                if (!mDone) {
+                    mDone = true;
+                    closeQuietly(mStream);
+                }
+            }
+            Log.e(TAG, "Error calling the API. sent " + mBytesSent + " bytes", t);
+            mOutcome.onFailed(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            String text;
+            synchronized (this) {
+                text = mTranscript.toString();
+            }
+            Log.i(TAG, "API completed in " + millisSince(mStartNanos) + "ms.");
+            mOutcome.onRecognized(text);
+        }
+    }
+
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
     private class SpeechBinder extends Binder {
 
         SpeechService getService() {
@@ -390,17 +554,34 @@ public class SpeechService extends Service {
         @Override
         protected void onPostExecute(AccessToken accessToken) {
             mAccessTokenTask = null;
-            final ManagedChannel channel = new OkHttpChannelProvider()
-                    .builderForAddress(HOSTNAME, PORT)
-                    .nameResolverFactory(new DnsNameResolverProvider())
-                    .intercept(new GoogleCredentialsInterceptor(new GoogleCredentials(accessToken)
-                            .createScoped(SCOPE)))
-                    .build();
-            mApi = SpeechGrpc.newStub(channel);
+            if (mHandler == null) {
+                //서비스가 이미 끝났다.
+                return;
+            }
+            if (accessToken == null) {
+                mHandler.postDelayed(mFetchAccessTokenRunnable, ACCESS_TOKEN_RETRY_DELAY);
+                return;
+            }
+            Credentials credentials = new GoogleCredentials(accessToken).createScoped(SCOPE);
+            if (mChannel == null || mChannel.isShutdown()) {
+                mCredentialsInterceptor = new GoogleCredentialsInterceptor(credentials);
+                mChannel = OkHttpChannelBuilder.forAddress(HOSTNAME, PORT)
+                        .nameResolverFactory(new DnsNameResolverProvider())
+                        .keepAliveTime(KEEPALIVE_MINUTES, TimeUnit.MINUTES)
+                        .keepAliveTimeout(KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                        .intercept(mCredentialsInterceptor)
+                        .build();
+                mApi = SpeechGrpc.newStub(mChannel);
+            } else {
+                //연결은 그대로 두고 다음 호출부터 새 token을 쓴다.
+                mCredentialsInterceptor.setCredentials(credentials);
+            }
+            prewarm();
+            //token이 없어서 기다리던 녹음을 보낸다.
+            mJobQueue.kick();
 
             // Schedule access token refresh before it expires
             if (mHandler != null) {
-                System.out.println("What is null ? : " + mHandler + accessToken);
                 mHandler.postDelayed(mFetchAccessTokenRunnable,
                         Math.max(accessToken.getExpirationTime().getTime()
                                 - System.currentTimeMillis()
@@ -411,10 +592,11 @@ public class SpeechService extends Service {
 
     /**
      * Authenticates the gRPC channel using the specified {@link GoogleCredentials}.
+     * access token이 바뀌면 채널을 새로 만들지 않고 setCredentials로 바꾼다.
      */
     private static class GoogleCredentialsInterceptor implements ClientInterceptor {
 
-        private final Credentials mCredentials;
+        private volatile Credentials mCredentials;
 
         private Metadata mCached;
 
@@ -424,6 +606,15 @@ public class SpeechService extends Service {
             mCredentials = credentials;
         }
 
+        /**
+         * 다음 호출부터 credentials를 쓴다. 진행 중인 호출은 그대로 둔다.
+         */
+        synchronized void setCredentials(Credentials credentials) {
+            mCredentials = credentials;
+            mLastMetadata = null;
+            mCached = null;
+        }
+
         @Override
         public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
                 final MethodDescriptor<ReqT, RespT> method, CallOptions callOptions,
@@ -435,7 +626,7 @@ public class SpeechService extends Service {
                         throws StatusException {
                     Metadata cachedSaved;
                     URI uri = serviceUri(next, method);
-                    synchronized (this) {
+                    synchronized (GoogleCredentialsInterceptor.this) {
                         Map<String, List<String>> latestMetadata = getRequestMetadata(uri);
                         if (mLastMetadata == null || mLastMetadata != latestMetadata) {
                             mLastMetadata = latestMetadata;
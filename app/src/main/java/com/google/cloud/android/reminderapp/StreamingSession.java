@@ -0,0 +1,147 @@
+package com.google.cloud.android.reminderapp;
+
+import android.util.Log;
+
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechGrpc;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * 녹음 하나에 대한 스트리밍 인식이다. 파일 쓰기 스레드(send), 메인 스레드(finish, cancel),
+ * gRPC 스레드(응답)에서 같이 쓰므로 상태는 this로 동기화한다.
+ * 녹음 중에 실패하든 녹음이 끝난 뒤에 실패하든 Outcome.onFailed로 알리고, SttJobQueue가 녹음 파일을 다시 보낸다.
+ */
+final class StreamingSession implements StreamObserver<StreamingRecognizeResponse> {
+
+    private static final String TAG = "StreamingSession";
+
+    private static final String LANGUAGE_CODE = "ko-KR";
+
+    private final StringBuilder mTranscript = new StringBuilder();
+    private StreamObserver<StreamingRecognizeRequest> mRequests;
+    private SttJobQueue.Outcome mOutcome;
+    private boolean mFailed;
+    private boolean mFinished;
+    private boolean mCancelled;
+
+    synchronized void start(SpeechGrpc.SpeechStub api, int sampleRate) {
+        mRequests = api.streamingRecognize(this);
+        //녹음하면서 바로 보내므로 압축하지 않는다.
+        mRequests.onNext(streamingConfig(sampleRate, RecognitionConfig.AudioEncoding.LINEAR16));
+    }
+
+    synchronized void send(byte[] data, int size) {
+        if (mFailed || mFinished || mCancelled) {
+            return;
+        }
+        mRequests.onNext(StreamingRecognizeRequest.newBuilder()
+                .setAudioContent(ByteString.copyFrom(data, 0, size))
+                .build());
+    }
+
+    /**
+     * 녹음이 끝나면 불러 보낼 음성이 더 없음을 알린다. 결과는 outcome으로 한 번만 알린다.
+     * 녹음 중에 이미 실패했으면 바로 outcome.onFailed를 부른다.
+     */
+    void finish(SttJobQueue.Outcome outcome) {
+        synchronized (this) {
+            if (!mFailed && !mCancelled) {
+                mOutcome = outcome;
+                mFinished = true;
+                mRequests.onCompleted();
+                return;
+            }
+        }
+        outcome.onFailed(Status.UNAVAILABLE.withDescription("Streaming failed while recording").asException());
+    }
+
+    synchronized void cancel() {
+        if (mFailed || mCancelled) {
+            return;
+        }
+        mCancelled = true;
+        mRequests.onError(Status.CANCELLED.withDescription("Recording cancelled").asException());
+    }
+
+    @Override
+    public synchronized void onNext(StreamingRecognizeResponse response) {
+        appendFinalResults(mTranscript, response);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        SttJobQueue.Outcome outcome;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mFailed = true;
+            outcome = mOutcome;
+        }
+        Log.e(TAG, "Streaming recognition failed. Falling back to file upload.", t);
+        //녹음이 끝난 뒤에 실패했으면 여기서 알리고, 녹음 중이면 finish가 알린다.
+        if (outcome != null) {
+            outcome.onFailed(t);
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        String text;
+        SttJobQueue.Outcome outcome;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            if (!mFinished) {
+                //녹음이 끝나기 전에 서버가 닫았으면 뒷부분을 듣지 못했으므로 실패로 보고 파일을 다시 보낸다.
+                mFailed = true;
+                Log.w(TAG, "Streaming recognition closed before the recording finished.");
+                return;
+            }
+            text = mTranscript.toString();
+            outcome = mOutcome;
+        }
+        Log.i(TAG, "Streaming API completed.");
+        outcome.onRecognized(text);
+    }
+
+    /**
+     * 최종 결과(is_final)만 모으고 중간 결과는 버린다.
+     */
+    static void appendFinalResults(StringBuilder transcript, StreamingRecognizeResponse response) {
+        for (StreamingRecognitionResult result : response.getResultsList()) {
+            if (result.getIsFinal() && result.getAlternativesCount() > 0) {
+                if (transcript.length() > 0) {
+                    transcript.append(' ');
+                }
+                transcript.append(result.getAlternatives(0).getTranscript().trim());
+            }
+        }
+    }
+
+    /**
+     * @param encoding 뒤따르는 audio content의 형식. FLAC이면 스트림 헤더가 첫 audio content에 들어 있어야 한다.
+     */
+    static StreamingRecognizeRequest streamingConfig(int sampleRate, RecognitionConfig.AudioEncoding encoding) {
+        return StreamingRecognizeRequest.newBuilder()
+                .setStreamingConfig(StreamingRecognitionConfig.newBuilder()
+                        .setConfig(RecognitionConfig.newBuilder()
+                                .setLanguageCode(LANGUAGE_CODE)
+                                .setEncoding(encoding)
+                                .setSampleRateHertz(sampleRate)
+                                .build())
+                        .setInterimResults(false)
+                        //말이 끝났는지는 VoiceRecorder가 판단하므로 서버가 먼저 끊지 않게 한다.
+                        .setSingleUtterance(false)
+                        .build())
+                .build();
+    }
+}
@@ -0,0 +1,23 @@
+package com.google.cloud.android.reminderapp;
+
+/**
+ * stt_job 테이블의 한 행, 즉 음성 인식을 기다리는 녹음 하나를 나타내는 값 객체이다.
+ */
+final class SttJob {
+
+    final long id;
+    final String fileName;
+    final long createdAt;
+    /** 지금까지 실패한 횟수 */
+    final int attempts;
+    /** 녹음 앞뒤를 잘라낸 구간. 모르면 null */
+    final AudioTrim trim;
+
+    SttJob(long id, String fileName, long createdAt, int attempts, AudioTrim trim) {
+        this.id = id;
+        this.fileName = fileName;
+        this.createdAt = createdAt;
+        this.attempts = attempts;
+        this.trim = trim;
+    }
+}
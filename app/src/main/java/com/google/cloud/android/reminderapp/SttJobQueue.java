@@ -0,0 +1,434 @@
+package com.google.cloud.android.reminderapp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import io.grpc.Status;
+
+/**
+ * stt_job 테이블에 쌓인 녹음을 음성 인식으로 보내는 작업 큐이다.
+ *
+ * - 결과를 받으면 ReminderRepository.completeRecognition이 record 행을 만들고 stt_job을 지운다.
+ * - 실패하면 BASE_BACKOFF_MILLIS부터 두 배씩(최대 MAX_BACKOFF_MILLIS, 약간의 jitter) 늦춰 다시 보낸다.
+ *   네트워크가 끊긴 것 같은 일시적인 오류는 횟수와 상관없이 MAX_BACKOFF_MILLIS마다 계속 다시 보낸다.
+ *   그 밖의 오류로 MAX_ATTEMPTS번 실패하거나 다시 보내도 소용없는 오류(잘못된 요청, 파일 없음)면 포기하고,
+ *   녹음은 text 없는 일반 메모로 저장해서 목록에 남긴다(abandonRecognition).
+ * - 동시에 보내는 녹음은 녹음 중 스트리밍 인식을 포함해 MAX_IN_FLIGHT개까지이고, 보내는 중인 파일은 다시 꺼내지 않는다.
+ * - 결과를 저장하지 못해도 보내는 중인 자리는 BASE_BACKOFF_MILLIS 뒤에 놓아주고, stt_job이 남아 있으므로 다시 보낸다.
+ * 목록이 디비에 있으므로 앱이 꺼졌다 켜져도 start 뒤에 남은 것부터 이어서 보낸다.
+ * 상태는 메인 스레드에서만 바꾼다.
+ */
+final class SttJobQueue {
+
+    private static final String TAG = "SttJobQueue";
+
+    static final int MAX_IN_FLIGHT = 2;
+    static final int MAX_ATTEMPTS = 10;
+    static final long BASE_BACKOFF_MILLIS = 5 * 1000;
+    static final long MAX_BACKOFF_MILLIS = 30 * 60 * 1000;
+
+    /**
+     * 녹음 하나를 음성 인식으로 보낸다. SpeechService가 구현한다.
+     */
+    interface Recognizer {
+        /** 지금 보낼 수 있는지(access token과 채널이 준비되었는지) */
+        boolean isReady();
+
+        void recognize(SttJob job, Outcome outcome);
+    }
+
+    /**
+     * 인식 결과. 아무 스레드에서나 불러도 된다.
+     */
+    interface Outcome {
+        /** @param text 인식된 말. 없으면 "" */
+        void onRecognized(String text);
+
+        void onFailed(Throwable t);
+    }
+
+    /**
+     * stt_job 목록을 읽고 쓴다. ReminderRepository가 구현하며, callback은 메인 스레드에서 불러야 한다.
+     * callback이 ErrorCallback이면 실패했을 때 onError를 불러야 한다.
+     */
+    interface Store {
+        void enqueueRecognition(String fileName, AudioTrim trim, ReminderRepository.Callback<Long> callback);
+
+        void completeRecognition(String fileName, String text, ReminderRepository.Callback<ReminderRecord> callback);
+
+        void dropRecognition(String fileName, ReminderRepository.Callback<Integer> callback);
+
+        void abandonRecognition(String fileName, ReminderRepository.Callback<ReminderRecord> callback);
+
+        void retryRecognition(long jobId, int attempts, long nextAttemptAt, String error,
+                              ReminderRepository.Callback<Integer> callback);
+
+        void dueRecognitions(long now, int limit, ReminderRepository.Callback<List<SttJob>> callback);
+
+        void nextRecognitionAt(ReminderRepository.Callback<Long> callback);
+    }
+
+    /**
+     * 큐의 상태를 바꾸는 일을 메인 스레드에서 하도록 넘기고 지금 시각을 알려준다. 테스트에서는 가짜 시계로 바꾼다.
+     */
+    interface Scheduler {
+        long now();
+
+        void postDelayed(Runnable task, long delayMillis);
+
+        void removeCallbacks(Runnable task);
+    }
+
+    /**
+     * 녹음 하나의 인식 결과를 저장한 뒤 메인 스레드에서 불린다.
+     */
+    interface Listener {
+        /**
+         * @param text   인식된 말. 없으면 ""
+         * @param record 저장된 행. 인식된 말이 없거나 저장하지 못했으면 null
+         */
+        void onRecognized(String fileName, String text, ReminderRecord record);
+    }
+
+    private final Store store;
+    private final Recognizer recognizer;
+    private final Listener listener;
+    private final Scheduler scheduler;
+    private final Random random;
+    private final Set<String> inFlight = new HashSet<>();
+    private boolean stopped = true;
+    //dueRecognitions 조회는 한 번에 하나만 한다. 조회하는 동안 kick되면 끝난 뒤에 한 번 더 조회한다.
+    private boolean polling;
+    private boolean pollAgain;
+
+    private final Runnable poll = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+        }
+    };
+
+    SttJobQueue(Store store, Recognizer recognizer, Listener listener) {
+        this(store, recognizer, listener, new MainThreadScheduler(), new Random());
+    }
+
+    SttJobQueue(Store store, Recognizer recognizer, Listener listener, Scheduler scheduler, Random random) {
+        this.store = store;
+        this.recognizer = recognizer;
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.random = random;
+    }
+
+    void start() {
+        stopped = false;
+        kick();
+    }
+
+    /**
+     * 더 이상 새로 보내지 않는다. 보내는 중인 것의 결과는 그대로 저장한다.
+     */
+    void stop() {
+        stopped = true;
+        scheduler.removeCallbacks(poll);
+    }
+
+    /**
+     * 보낼 것이 있는지 바로 다시 확인한다.
+     */
+    void kick() {
+        if (stopped) {
+            return;
+        }
+        scheduler.removeCallbacks(poll);
+        scheduler.postDelayed(poll, 0);
+    }
+
+    /**
+     * 녹음이 끝나면 목록에 넣는다.
+     */
+    void enqueue(final String fileName, AudioTrim trim) {
+        store.enqueueRecognition(fileName, trim, new ReminderRepository.ErrorCallback<Long>() {
+            @Override
+            public void onResult(Long id) {
+                kick();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Could not enqueue " + fileName, e);
+            }
+        });
+    }
+
+    /**
+     * 녹음하면서 스트리밍으로 보낸 녹음을 큐가 다시 보내지 않도록 잡아둔다.
+     * 스트리밍 인식이 실패하면 실패 횟수를 세지 않고 놓아주므로, 큐가 바로 파일로 다시 보낸다.
+     */
+    Outcome track(final String fileName) {
+        inFlight.add(fileName);
+        return new Outcome() {
+            @Override
+            public void onRecognized(final String text) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        complete(fileName, text);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailed(Throwable t) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        release(fileName);
+                    }
+                });
+            }
+        };
+    }
+
+    private void poll() {
+        if (stopped || !recognizer.isReady()) {
+            return;
+        }
+        if (polling) {
+            pollAgain = true;
+            return;
+        }
+        if (inFlight.size() >= MAX_IN_FLIGHT) {
+            //보내는 중인 것이 끝나면 다시 확인한다.
+            return;
+        }
+        polling = true;
+        //보내는 중인 것도 결과에 섞여 나오므로 그만큼 더 읽는다.
+        store.dueRecognitions(scheduler.now(), MAX_IN_FLIGHT + inFlight.size(),
+                new ReminderRepository.ErrorCallback<List<SttJob>>() {
+                    @Override
+                    public void onError(Exception e) {
+                        polling = false;
+                        pollAgain = false;
+                        pollLater();
+                    }
+
+                    @Override
+                    public void onResult(List<SttJob> jobs) {
+                        polling = false;
+                        //조회하는 동안 track이나 다른 결과로 inFlight가 바뀌었을 수 있으므로 지금 남은 자리만큼만 보낸다.
+                        for (SttJob job : jobs) {
+                            if (stopped || inFlight.size() >= MAX_IN_FLIGHT) {
+                                break;
+                            }
+                            if (inFlight.contains(job.fileName)) {
+                                continue;
+                            }
+                            run(job);
+                        }
+                        if (pollAgain) {
+                            pollAgain = false;
+                            kick();
+                        }
+                        scheduleNext();
+                    }
+                });
+    }
+
+    /**
+     * 아직 때가 되지 않은 것 중 가장 빠른 것에 맞춰 다시 확인한다.
+     * 이미 때가 된 것은 보내는 중인 것이 끝나거나 새로 들어올 때 kick으로 확인한다.
+     */
+    private void scheduleNext() {
+        store.nextRecognitionAt(new ReminderRepository.ErrorCallback<Long>() {
+            @Override
+            public void onError(Exception e) {
+                pollLater();
+            }
+
+            @Override
+            public void onResult(Long at) {
+                long now = scheduler.now();
+                if (!stopped && at != null && at > now) {
+                    scheduler.removeCallbacks(poll);
+                    scheduler.postDelayed(poll, at - now);
+                }
+            }
+        });
+    }
+
+    /**
+     * 목록을 읽지 못했을 때 BASE_BACKOFF_MILLIS 뒤에 다시 확인한다.
+     */
+    private void pollLater() {
+        if (!stopped) {
+            scheduler.removeCallbacks(poll);
+            scheduler.postDelayed(poll, BASE_BACKOFF_MILLIS);
+        }
+    }
+
+    private void run(final SttJob job) {
+        inFlight.add(job.fileName);
+        recognizer.recognize(job, new Outcome() {
+            @Override
+            public void onRecognized(final String text) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        complete(job.fileName, text);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailed(final Throwable t) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        retry(job, t);
+                    }
+                });
+            }
+        });
+    }
+
+    private void complete(final String fileName, final String text) {
+        if (text.isEmpty()) {
+            store.dropRecognition(fileName, new Releasing<Integer>(fileName) {
+                @Override
+                public void onResult(Integer deleted) {
+                    listener.onRecognized(fileName, text, null);
+                    release(fileName);
+                }
+            });
+            return;
+        }
+        store.completeRecognition(fileName, text, new Releasing<ReminderRecord>(fileName) {
+            @Override
+            public void onResult(ReminderRecord record) {
+                listener.onRecognized(fileName, text, record);
+                release(fileName);
+            }
+        });
+    }
+
+    private void retry(final SttJob job, Throwable t) {
+        int attempts = job.attempts + 1;
+        if (!isRetryable(t) || (attempts >= MAX_ATTEMPTS && !isTransient(t))) {
+            Log.w(TAG, "Giving up " + job.fileName + " after " + attempts + " attempts", t);
+            store.abandonRecognition(job.fileName, new Releasing<ReminderRecord>(job.fileName) {
+                @Override
+                public void onResult(ReminderRecord record) {
+                    release(job.fileName);
+                }
+            });
+            return;
+        }
+        long delay = backoffMillis(attempts, random);
+        Log.w(TAG, "Recognition of " + job.fileName + " failed, retrying in " + delay + "ms", t);
+        store.retryRecognition(job.id, attempts, scheduler.now() + delay, String.valueOf(t),
+                new Releasing<Integer>(job.fileName) {
+                    @Override
+                    public void onResult(Integer updated) {
+                        release(job.fileName);
+                    }
+                });
+    }
+
+    private void post(Runnable task) {
+        scheduler.postDelayed(task, 0);
+    }
+
+    private void release(String fileName) {
+        inFlight.remove(fileName);
+        kick();
+    }
+
+    /**
+     * 결과를 저장하는 콜백. 저장이 실패해도 자리를 놓아주되, 같은 녹음을 바로 다시 보내지 않도록 BASE_BACKOFF_MILLIS 뒤에 놓아준다.
+     */
+    private abstract class Releasing<T> implements ReminderRepository.ErrorCallback<T> {
+        private final String fileName;
+
+        Releasing(String fileName) {
+            this.fileName = fileName;
+        }
+
+        @Override
+        public void onError(Exception e) {
+            Log.e(TAG, "Could not save the result of " + fileName, e);
+            scheduler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    release(fileName);
+                }
+            }, BASE_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * attempts번 실패한 녹음을 다시 보내기까지 기다릴 시간
+     */
+    static long backoffMillis(int attempts, Random random) {
+        long delay = BASE_BACKOFF_MILLIS << Math.min(attempts - 1, 20);
+        delay = Math.min(delay, MAX_BACKOFF_MILLIS);
+        //여러 녹음이 같이 실패했을 때 한꺼번에 다시 보내지 않도록 최대 20%를 더한다.
+        return delay + (long) (delay * 0.2 * random.nextDouble());
+    }
+
+    static boolean isRetryable(Throwable t) {
+        if (t instanceof FileNotFoundException) {
+            return false;
+        }
+        Status.Code code = Status.fromThrowable(t).getCode();
+        return code != Status.Code.INVALID_ARGUMENT && code != Status.Code.OUT_OF_RANGE;
+    }
+
+    /**
+     * 네트워크가 끊겼거나 서버가 잠시 바쁜 것처럼 기다리면 나아지는 오류인지. 이런 오류로는 포기하지 않는다.
+     */
+    static boolean isTransient(Throwable t) {
+        if (t instanceof IOException) {
+            return !(t instanceof FileNotFoundException);
+        }
+        switch (Status.fromThrowable(t).getCode()) {
+            case UNAVAILABLE:
+            case DEADLINE_EXCEEDED:
+            case RESOURCE_EXHAUSTED:
+            case ABORTED:
+            case CANCELLED:
+            case UNAUTHENTICATED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static final class MainThreadScheduler implements Scheduler {
+
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            handler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+    }
+}
@@ -69,11 +69,23 @@ public class TimeAnalysis {
      * @return boolean 해당 정규식을 통해서 시간표현이 추출되었는지 여부
      */
     public String Analysis(String target) {
+        return Analysis(target, System.currentTimeMillis());
+    }
+
+    /** 현재 시각 대신 주어진 시각을 기준으로 시간 값을 계산한다.
+     * 예전에 녹음한 text를 다시 분석할 때 "내일" 같은 표현이 녹음한 날을 기준으로 계산되도록 녹음 시각을 넘긴다.
+     * 객체 하나가 계산 중인 값을 필드에 들고 있으므로 여러 스레드가 같이 쓰면 안 된다.
+     *
+     * @param target 사용자로 부터 입력받은 음성에서 텍스트를 변환한 String 값
+     * @param referenceMillis 기준 시각의 epoch millis
+     * @return yy:MM:dd:hh:mm 형식의 알람 시각. 시간 표현이 없으면 "note"
+     */
+    public String Analysis(String target, long referenceMillis) {
         isNextDay = false;
         isTime = false;
 
         Calendar cal = Calendar.getInstance();
-        Date date = new Date();
+        Date date = new Date(referenceMillis);
         SimpleDateFormat sdf = new SimpleDateFormat("yy:MM:dd:hh:mm:ss:a");
         String tempTime = sdf.format(date);
         String temp[] = tempTime.split(":");
@@ -0,0 +1,98 @@
+package com.google.cloud.android.reminderapp;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 삭제 표시(deleted_at)된 지 UNDO_WINDOW_MILLIS가 지난 행의 녹음 파일과 행을 실제로 지운다.
+ * 사용자가 삭제를 누를 때는 표시만 하고 바로 돌아가므로, 파일 시스템 작업은 여기서 BATCH_SIZE개씩 모아서 한다.
+ * 한 batch는 표시를 읽는 것부터 행을 지우는 것까지 쓰기 스레드에서 하므로, 그 사이에 restore가 끼어들어
+ * 되살린 행의 녹음 파일을 지우는 일은 없다.
+ * 파일을 먼저 지우고 행을 지우므로 중간에 앱이 꺼져도 다음 sweep에서 남은 것을 다시 지운다.
+ */
+final class TombstoneSweeper {
+
+    private static final String TAG = "TombstoneSweeper";
+
+    /** 삭제를 되돌릴 수 있는 시간 */
+    static final long UNDO_WINDOW_MILLIS = 30 * 1000;
+    static final int BATCH_SIZE = 100;
+
+    private final Context context;
+    private final DataBase db;
+    private final ExecutorService writer;
+
+    /**
+     * @param writer 다른 쓰기와 같은 쓰기 스레드. 한 batch씩 여기서 지운다.
+     */
+    TombstoneSweeper(Context context, DataBase db, ExecutorService writer) {
+        this.context = context.getApplicationContext();
+        this.db = db;
+        this.writer = writer;
+    }
+
+    /**
+     * 지울 수 있는 표시가 없어질 때까지 지운다. batch마다 쓰기 스레드에서 끝날 때까지 기다리므로
+     * 쓰기 스레드가 아닌 백그라운드 스레드에서 불러야 한다.
+     *
+     * @return 지운 행의 개수
+     */
+    int sweep() throws InterruptedException {
+        final long deletedBefore = System.currentTimeMillis() - UNDO_WINDOW_MILLIS;
+        int total = 0;
+        while (true) {
+            Future<Integer> batch = writer.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return sweepBatch(deletedBefore);
+                }
+            });
+            int purged;
+            try {
+                purged = batch.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Sweeping tombstones failed.", e.getCause());
+            }
+            if (purged == 0) {
+                break;
+            }
+            total += purged;
+        }
+        if (total > 0) {
+            Log.i(TAG, "Purged " + total + " records");
+        }
+        return total;
+    }
+
+    /**
+     * 쓰기 스레드에서 불린다. 표시된 행을 BATCH_SIZE개까지 읽어 녹음 파일과 행을 지운다.
+     *
+     * @return 지운 행의 개수. 더 지울 것이 없으면 0
+     */
+    private int sweepBatch(long deletedBefore) {
+        final List<ReminderRecord> tombstones = db.queryTombstones(deletedBefore, BATCH_SIZE);
+        for (ReminderRecord tombstone : tombstones) {
+            File file = new File(context.getFilesDir(), tombstone.getFileName());
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
+        }
+        final int[] purged = new int[1];
+        db.batch(new DataBase.Batch() {
+            @Override
+            public void run(DataBase db) {
+                for (ReminderRecord tombstone : tombstones) {
+                    purged[0] += db.purge(tombstone.getId());
+                }
+            }
+        });
+        return purged[0];
+    }
+}
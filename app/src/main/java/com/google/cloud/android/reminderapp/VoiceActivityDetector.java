@@ -0,0 +1,142 @@
+package com.google.cloud.android.reminderapp;
+
+/**
+ * 녹음 중인 16bit 모노 PCM에서 말이 시작되고 끝나는 것을 찾는다.
+ *
+ * 들어오는 버퍼를 FRAME_MILLIS 길이의 프레임으로 나눠 프레임마다 RMS(소리 크기)와 zero-crossing 비율을 계산한다.
+ * 버퍼 경계에 걸친 프레임은 다음 버퍼에서 이어서 계산하므로 따로 복사하지 않는다.
+ * 조용한 프레임의 RMS로 주변 소음 크기를 계속 추정하고, 그보다 충분히 크면서 zero-crossing이 너무 많지 않은(잡음이 아닌)
+ * 프레임을 말소리로 본다. 말소리 프레임이 이어지면 시작, 말한 뒤 silenceMillis 동안 조용하면 끝으로 판단한다.
+ * 처음 말이 시작된 위치와 마지막 말소리 프레임이 끝난 위치를 샘플 단위로 기억해, 녹음 앞뒤의 조용한 부분을 자를 때 쓴다.
+ * 녹음 스레드 하나에서만 쓴다.
+ */
+final class VoiceActivityDetector {
+
+    static final int EVENT_NONE = 0;
+    static final int EVENT_VOICE_START = 1;
+    static final int EVENT_VOICE_END = 2;
+
+    static final long DEFAULT_SILENCE_MILLIS = 1200;
+
+    private static final int FRAME_MILLIS = 20;
+    //말소리로 볼 최소 RMS(16bit 기준)
+    private static final double MIN_SPEECH_RMS = 500;
+    //주변 소음보다 이 배수 이상 커야 말소리로 본다.
+    private static final double NOISE_MULTIPLIER = 3;
+    //zero-crossing 비율이 이보다 높으면 바람 소리 같은 잡음으로 본다.
+    private static final double MAX_SPEECH_ZCR = 0.35;
+    //말이 시작되었다고 보는 연속된 말소리 프레임 수
+    private static final int START_FRAMES = 3;
+    //주변 소음 추정값을 따라가는 비율
+    private static final double NOISE_ALPHA = 0.05;
+
+    private final int frameSamples;
+    private final int silenceFrames;
+
+    private boolean inVoice;
+    private int speechRun;
+    private int silenceRun;
+    private double noiseRms = MIN_SPEECH_RMS / NOISE_MULTIPLIER;
+
+    //지금까지 처리한 샘플 수
+    private long samples;
+    private long voiceStartSample = -1;
+    private long voiceEndSample = -1;
+
+    //계산 중인 프레임
+    private int frameFill;
+    private double sumSquares;
+    private int zeroCrossings;
+    private int previousSample;
+
+    /**
+     * @param sampleRate    녹음 샘플 레이트
+     * @param silenceMillis 말이 끝났다고 판단할 때까지 기다릴 조용한 시간
+     */
+    VoiceActivityDetector(int sampleRate, long silenceMillis) {
+        frameSamples = sampleRate * FRAME_MILLIS / 1000;
+        silenceFrames = (int) Math.max(1, silenceMillis / FRAME_MILLIS);
+    }
+
+    boolean isInVoice() {
+        return inVoice;
+    }
+
+    /**
+     * @return 처음 말이 시작된 프레임의 첫 샘플 위치. 말소리를 찾지 못했으면 -1
+     */
+    long getVoiceStartSample() {
+        return voiceStartSample;
+    }
+
+    /**
+     * @return 마지막 말소리 프레임이 끝난 샘플 위치. 말소리를 찾지 못했으면 -1
+     */
+    long getVoiceEndSample() {
+        return voiceEndSample;
+    }
+
+    /**
+     * 읽어온 PCM 데이터를 넘긴다.
+     *
+     * @param data little-endian 16bit PCM
+     * @param size data에서 유효한 바이트 수
+     * @return 이번 데이터에서 일어난 일. 시작과 끝이 한 번에 모두 일어나면 끝(EVENT_VOICE_END)을 돌려준다.
+     */
+    int process(byte[] data, int size) {
+        int event = EVENT_NONE;
+        for (int i = 0; i + 1 < size; i += 2) {
+            int sample = (short) ((data[i] & 0xff) | (data[i + 1] << 8));
+            sumSquares += (double) sample * sample;
+            if (frameFill > 0 && (sample >= 0) != (previousSample >= 0)) {
+                zeroCrossings++;
+            }
+            previousSample = sample;
+            samples++;
+            if (++frameFill == frameSamples) {
+                int frameEvent = endFrame();
+                if (frameEvent != EVENT_NONE) {
+                    event = frameEvent;
+                }
+            }
+        }
+        return event;
+    }
+
+    private int endFrame() {
+        double rms = Math.sqrt(sumSquares / frameFill);
+        double zcr = (double) zeroCrossings / frameFill;
+        frameFill = 0;
+        sumSquares = 0;
+        zeroCrossings = 0;
+
+        boolean speech = rms >= Math.max(MIN_SPEECH_RMS, noiseRms * NOISE_MULTIPLIER) && zcr <= MAX_SPEECH_ZCR;
+        if (!speech) {
+            noiseRms += (rms - noiseRms) * NOISE_ALPHA;
+        }
+
+        if (!inVoice) {
+            speechRun = speech ? speechRun + 1 : 0;
+            if (speechRun >= START_FRAMES) {
+                inVoice = true;
+                silenceRun = 0;
+                if (voiceStartSample < 0) {
+                    voiceStartSample = samples - (long) START_FRAMES * frameSamples;
+                }
+                voiceEndSample = samples;
+                return EVENT_VOICE_START;
+            }
+        } else {
+            silenceRun = speech ? 0 : silenceRun + 1;
+            if (speech) {
+                voiceEndSample = samples;
+            }
+            if (silenceRun >= silenceFrames) {
+                inVoice = false;
+                speechRun = 0;
+                return EVENT_VOICE_END;
+            }
+        }
+        return EVENT_NONE;
+    }
+}
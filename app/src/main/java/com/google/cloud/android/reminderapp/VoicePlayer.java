@@ -15,6 +15,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * 이 클래스는 DB로부터 녹음된 파일명을 받아와 해당 파일을 재생하는 역할을 수행한다.
@@ -29,9 +30,17 @@ public class VoicePlayer {
     boolean mIsPlaying  = false;
     DataBase db;
 
+    /** startPlaying에 넘기면 가장 최근 녹음부터 재생한다. */
+    public static final long FROM_LATEST = Long.MAX_VALUE;
+    /** 재생할 녹음을 디비에서 한 번에 읽어오는 개수 */
+    private static final int PAGE_SIZE = 20;
+
     AudioTrack audioTrack;
     private Thread mPlayingThread = null;
-    int playCount, i = 0;
+    long startBeforeId;
+    int startPosition;
+    volatile ReminderRecord currentRecord;
+    volatile int currentPosition;
 
     VoicePlayer(Context c)
     {
@@ -46,10 +55,14 @@ public class VoicePlayer {
      *
      * @param SampleRate     녹음 시 사용된 sample rate(Hertz)
      * @param mBufferSize    재생 시 음성 파일에서 한 번에 읽어오는 음성 데이터의 최대 크기
+     * @param beforeId       이 _id보다 작은(이전에 녹음된) 녹음부터 최신순으로 재생한다. 처음부터 재생할 때는 FROM_LATEST
+     * @param listPosition   처음 재생할 녹음의 목록 위치(최신 녹음이 0). 목록의 하이라이트에 사용된다.
      */
-    public void startPlaying(final int SampleRate, final int mBufferSize, int position) {
+    public void startPlaying(final int SampleRate, final int mBufferSize, long beforeId, int listPosition) {
         // int minBufferSize = AudioTrack.getMinBufferSize(SampleRate, CHANNEL, ENCODING);
-        playCount = position;
+        startBeforeId = beforeId;
+        startPosition = listPosition;
+        currentPosition = listPosition;
         mIsPlaying = true;
         mPlayingThread = new Thread(new Runnable() {
 
@@ -65,12 +78,20 @@ public class VoicePlayer {
     /**
      * 이 메소드는 변수 playing을 false로 설정하여 재생을 중지한다.
      *
-     * @return int 현재 재생 중인 파일의 index
+     * @return int 현재 재생 중인 파일의 목록 위치(최신 녹음이 0)
      */
     public int stopPlaying()
     {
         mIsPlaying = false;
-        return i == -1 ? 0 : i;
+        return currentPosition;
+    }
+
+    /**
+     * @return 현재(혹은 마지막으로) 재생 중인 녹음. 아직 재생한 것이 없으면 null
+     */
+    public ReminderRecord getCurrentRecord()
+    {
+        return currentRecord;
     }
 
     /**
@@ -85,64 +106,70 @@ public class VoicePlayer {
      * @exeption IOException
      */
     public void playWaveFile(int SampleRate,int mBufferSize) {
-        String fileName[] = db.getAllFileName();
-        String alarmTime[] = db.getAllAlarmTime();
-        String contentValue[] = db.getAllContent();
-        int cnt = fileName.length; //목록에서 선택 시 playCount값이 변하기 때문에... 이렇게 따로 cnt에 저장해놓자.
-
-//       if(playCount == -1) //재생버튼을 눌러서 재생이 시작되는 경우 ( 이 외에는 목록의 파일을 클릭해서 재생 시작하는 경우임)
-//            playCount = fileName.length;
-//        int i; //전역변수로 선언하겠음 (stopPlayin에서 현재 재생 중인 파일의 위치를 return하기 위해서)
-        for(i=playCount-1;i>=0;i--){
-            int count = 0;
-            byte[] data = new byte[mBufferSize];
-
-            if(!mIsPlaying) {
-                break; //추가했음. - 아래 while문에 mIsPlaying는 없어도 될듯. - 아 재생 중간에 정지되려면 while문 안에 있어야 할지도..?
+        //녹음이 많아도 메모리를 일정하게 쓰도록, 재생할 녹음을 PAGE_SIZE개씩 _id 내림차순(keyset)으로 읽어온다.
+        long beforeId = startBeforeId;
+        int position = startPosition;
+        boolean finished = false;
+
+        playing:
+        while (mIsPlaying) {
+            List<ReminderRecord> page = db.queryPage(beforeId, PAGE_SIZE);
+            if (page.isEmpty()) {
+                finished = true;
+                break;
             }
+            for (ReminderRecord record : page) {
+                int count = 0;
+                byte[] data = new byte[mBufferSize];
 
-            Message message = MainActivity.vhandler.obtainMessage(1, alarmTime[i]+":"+contentValue[i] + ":" + i);
-            MainActivity.vhandler.sendMessage(message);
-
-//            Message message4 = MainActivity.phandler.obtainMessage(1, cnt - 1 - i);
-//            MainActivity.phandler.sendMessage(message3);
-
-            try {
-                //Toast.makeText(context.getApplicationContext(),"현재 재생중인 파일 " + fileName[i] +"",Toast.LENGTH_SHORT).show();
-                FileInputStream fis = context.openFileInput(fileName[i]);
-                DataInputStream dis = new DataInputStream(fis);
-                int minBufferSize = AudioTrack.getMinBufferSize(SampleRate, CHANNEL, ENCODING);
-                audioTrack = new AudioTrack(AudioManager.STREAM_VOICE_CALL, SampleRate, CHANNEL, ENCODING, minBufferSize, AudioTrack.MODE_STREAM);
-                audioTrack.play();
-
-                while (((count = dis.read(data, 0, mBufferSize)) > -1)&&mIsPlaying) {
-                    //재생 중인 파일 하이라이트하기 위해 position정보를 보낸다.(phandler이용)
-                    //여기다가 쓴 이유는 파일이 실행중일 때 목록버튼을 누르는 경우에도 하이라이트가 되도록 하기 위함이다.
-                    Message message3 = MainActivity.phandler.obtainMessage(1, cnt - 1 - i);
-                    MainActivity.phandler.sendMessage(message3);
-
-                    SharedPreferences preference = context.getSharedPreferences("volume", context.MODE_PRIVATE);
-                    float volume = preference.getFloat("volume", 1f);
-                    audioTrack.setVolume(volume);
-                    audioTrack.write(data, 0, count);
+                if(!mIsPlaying) {
+                    break playing; //추가했음. - 아래 while문에 mIsPlaying는 없어도 될듯. - 아 재생 중간에 정지되려면 while문 안에 있어야 할지도..?
                 }
-                audioTrack.stop();
-                audioTrack.release();
-                dis.close();
-                fis.close();
-
-                if(!mIsPlaying) break;
-
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
+                currentRecord = record;
+                currentPosition = position;
+
+                Message message = MainActivity.vhandler.obtainMessage(1, record.getAlarmTime()+":"+record.getText() + ":" + position);
+                MainActivity.vhandler.sendMessage(message);
+
+                try {
+                    //Toast.makeText(context.getApplicationContext(),"현재 재생중인 파일 " + record.getFileName() +"",Toast.LENGTH_SHORT).show();
+                    FileInputStream fis = context.openFileInput(record.getFileName());
+                    //ADPCM으로 저장된 파일은 풀면서 읽고, 이전 .pcm 파일은 그대로 읽는다.
+                    DataInputStream dis = new DataInputStream(ImaAdpcm.openPcm(fis));
+                    int minBufferSize = AudioTrack.getMinBufferSize(SampleRate, CHANNEL, ENCODING);
+                    audioTrack = new AudioTrack(AudioManager.STREAM_VOICE_CALL, SampleRate, CHANNEL, ENCODING, minBufferSize, AudioTrack.MODE_STREAM);
+                    audioTrack.play();
+
+                    while (((count = dis.read(data, 0, mBufferSize)) > -1)&&mIsPlaying) {
+                        //재생 중인 파일 하이라이트하기 위해 position정보를 보낸다.(phandler이용)
+                        //여기다가 쓴 이유는 파일이 실행중일 때 목록버튼을 누르는 경우에도 하이라이트가 되도록 하기 위함이다.
+                        Message message3 = MainActivity.phandler.obtainMessage(1, position);
+                        MainActivity.phandler.sendMessage(message3);
+
+                        SharedPreferences preference = context.getSharedPreferences("volume", context.MODE_PRIVATE);
+                        float volume = preference.getFloat("volume", 1f);
+                        audioTrack.setVolume(volume);
+                        audioTrack.write(data, 0, count);
+                    }
+                    audioTrack.stop();
+                    audioTrack.release();
+                    dis.close();
+                    fis.close();
+
+                    if(!mIsPlaying) break playing;
+
+                } catch (FileNotFoundException e) {
+                    e.printStackTrace();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                position++;
             }
+            beforeId = page.get(page.size() - 1).getId();
         }
 
-        if(i == -1) {
+        if(finished) {
             //mIsPlaying = false;
-            System.out.println("play count : " + playCount);
             Message message2 = MainActivity.vhandler.obtainMessage(1, "stop");
             MainActivity.vhandler.sendMessage(message2);
         }
@@ -191,7 +218,7 @@ public class VoicePlayer {
 
             try {
                 FileInputStream fis = context.openFileInput(filename);
-                DataInputStream dis = new DataInputStream(fis);
+                DataInputStream dis = new DataInputStream(ImaAdpcm.openPcm(fis));
                 int minBufferSize = AudioTrack.getMinBufferSize(SampleRate, CHANNEL, ENCODING);
                 audioTrack = new AudioTrack(AudioManager.STREAM_VOICE_CALL, SampleRate, CHANNEL, ENCODING, minBufferSize, AudioTrack.MODE_STREAM);
                 audioTrack.play();
@@ -5,13 +5,21 @@ import android.content.Context;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
+import android.util.Log;
 
 import android.support.annotation.NonNull;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Continuously records audio and notifies the {@link VoiceRecorder.Callback} when voice (or any
@@ -24,18 +32,27 @@ import java.util.Date;
 
 public class VoiceRecorder {
 
+    private static final String TAG = "VoiceRecorder";
     private final int mBufferSize = 1024;
     private final int mBytesPerElement = 2;
+    //녹음 스레드와 파일 쓰기 스레드 사이의 링 버퍼 크기. 16kHz 16bit 모노로 약 2초 분량이다.
+    private static final int RING_CAPACITY = 64 * 1024;
+    //파일 쓰기 스레드가 버퍼가 비었을 때 기다리는 최대 시간
+    private static final long WRITER_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    //앞뒤 조용한 부분을 자를 때 말소리 앞뒤로 남겨둘 시간. 첫 음절과 끝 음절이 잘리지 않게 한다.
+    private static final long TRIM_GUARD_MILLIS = 300;
 
     private int mSampleRate;
     private short mAudioFormat;
     private short mChannelConfig;
 
-//   private final Callback mCallback;
-//
-    private AudioRecord mRecorder = null;
-    private Thread mRecordingThread = null;
-    boolean mIsRecording = false;
+    private final Callback mCallback;
+    //말이 끝난 뒤 이만큼 조용하면 onVoiceEnd를 부른다.
+    private volatile long mSilenceMillis = VoiceActivityDetector.DEFAULT_SILENCE_MILLIS;
+
+    //지금 녹음 중인 것. 메인 스레드에서만 바꾼다.
+    private Recording mRecording = null;
+    volatile boolean mIsRecording = false;
 
     DataBase db;
     Context context;
@@ -47,52 +64,118 @@ public class VoiceRecorder {
     public VoiceRecorder(Context c, @NonNull Callback callback)
     {
         context =c;
-//        mCallback = callback;
+        mCallback = callback;
       db = MainActivity.getDBInstance();
     }
 
+    /**
+     * 녹음 한 번의 상태이다. stopRecording은 파일 쓰기가 끝나기를 기다리지 않으므로 이전 녹음의 파일 쓰기 스레드가
+     * 도는 중에 다음 녹음이 시작될 수 있다. 그래서 두 스레드가 쓰는 값은 필드가 아니라 녹음마다 따로 가진다.
+     */
+    private static final class Recording {
+        final String fileName;
+        final AudioRecord recorder;
+        final AudioRingBuffer ringBuffer = new AudioRingBuffer(RING_CAPACITY);
+        Thread captureThread;
+        Thread writerThread;
+        volatile boolean recording = true;
+        volatile boolean captureDone;
+        //녹음 스레드가 끝날 때 적어두는 말소리 구간(샘플 위치). 말소리가 없었으면 -1
+        volatile long voiceStartSample = -1;
+        volatile long voiceEndSample = -1;
+        //링 버퍼가 가득 차서 버린 조각마다 {녹음 스레드의 샘플 위치, 샘플 수}. 녹음 스레드만 쓰고 captureDone 뒤에 읽는다.
+        final List<long[]> drops = new ArrayList<>();
+
+        Recording(String fileName, AudioRecord recorder) {
+            this.fileName = fileName;
+            this.recorder = recorder;
+        }
+    }
+
     /**
      * 녹음을 시작할 때 불려지며
-     * 녹음을 시작하고 WriteAudioDataToFile 함수로 가 녹음파일을 즉시 저장한다.
+     * 녹음 스레드(captureAudioData)와 파일 쓰기 스레드(writeAudioDataToFile)를 따로 시작한다.
+     * 두 스레드는 링 버퍼로 데이터를 주고받으므로 파일 쓰기가 늦어져도 녹음 스레드는 멈추지 않는다.
      */
     public void startRecording() {
         System.out.println("녹음 시작");
-        mRecorder = null;
-        mRecorder = findAudioRecord();
-        mRecorder.startRecording();
+        final String fileName = newFileName();
+        MainActivity.fileName = fileName;//db.insert(fileName); //db에 fileName, alarmTime 둘 다 넣어야 함.
+        final Recording recording = new Recording(fileName, findAudioRecord());
+
+        recording.recorder.startRecording();
+        mRecording = recording;
         mIsRecording = true;
-        mRecordingThread = new Thread(new Runnable() {
+        recording.writerThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                writeAudioDataToFile(recording);
+            }
+        }, "AudioWriter Thread");
+        recording.captureThread = new Thread(new Runnable() {
 
             @Override
             public void run() {
-                writeAudioDataToFile();
+                captureAudioData(recording);
             }
         }, "AudioRecorder Thread");
-        mRecordingThread.start();
+        recording.writerThread.start();
+        recording.captureThread.start();
+    }
+
+    /**
+     * 말이 끝난 뒤 얼마나 조용해야 onVoiceEnd를 부를지 정한다. 다음 녹음부터 적용된다.
+     */
+    public void setSilenceMillis(long silenceMillis) {
+        mSilenceMillis = silenceMillis;
     }
 
+    /**
+     * 녹음 스레드에서 불린다(onAudio, onRecordingSaved는 파일 쓰기 스레드). UI를 바꾸려면 메인 스레드로 넘겨야 한다.
+     */
     public static abstract class Callback {
-//
-//        /**
-//         * Called when the recorder starts hearing voice.
-//         */
-//        public void onVoiceStart() {
-//        }
-//
-//        /**
-//         * Called when the recorder is hearing voice.
-//         *
-//         * @param data The audio data in {@link AudioFormat#ENCODING_PCM_16BIT}.
-//         * @param size The size of the actual data in {@code data}.
-//         */
-//        public void onVoice(byte[] data, int size) {
-//        }
-//
-//        /**
-//         * Called when the recorder stops hearing voice.
-//         */
-//        public void onVoiceEnd() {
-//        }
+
+        /**
+         * 파일에 쓰기 전의 음성을 조용한 부분까지 모두 넘겨준다. 파일 쓰기 스레드에서 불리므로 녹음 스레드를 막지 않는다.
+         * data는 돌아온 뒤 다시 쓰이므로 남겨두려면 복사해야 한다.
+         *
+         * @param data The audio data in {@link AudioFormat#ENCODING_PCM_16BIT}.
+         * @param size The size of the actual data in {@code data}.
+         */
+        public void onAudio(byte[] data, int size) {
+        }
+
+        /**
+         * Called when the recorder starts hearing voice.
+         */
+        public void onVoiceStart() {
+        }
+
+        /**
+         * Called when the recorder is hearing voice.
+         *
+         * @param data The audio data in {@link AudioFormat#ENCODING_PCM_16BIT}.
+         * @param size The size of the actual data in {@code data}.
+         */
+        public void onVoice(byte[] data, int size) {
+        }
+
+        /**
+         * Called when the recorder stops hearing voice.
+         */
+        public void onVoiceEnd() {
+        }
+
+        /**
+         * stopRecording 뒤에 남은 데이터를 모두 쓰고 앞뒤를 잘라낸 다음 파일을 닫았을 때 불린다.
+         * 이때부터 파일을 읽어도 되므로, 녹음을 음성 인식으로 보내는 일은 여기서 시작한다.
+         *
+         * @param fileName 녹음 파일의 이름
+         * @param trim     앞뒤를 잘라낸 결과. 파일 저장에 실패했으면 null
+         */
+        public void onRecordingSaved(String fileName, AudioTrim trim) {
+        }
     }
 
     /**
@@ -123,17 +206,11 @@ public class VoiceRecorder {
     }
 
     /**
-     * 음성을 녹음 파일로 저장시켜주는 일을 한다.
-     * 이곳에서 파일이 다 저장되기 전에 DB에 파일 이름이 들어간다.
-     *
-     * @exception FileNotFoundException 저장된 파일을 찾지 못할 수 있으므로 발생 가능하다.
-     * @exception IOException
+     * 녹음 시각으로 파일 이름(yy-MM-dd HH:mm:ss.pcm)을 만든다.
+     * 내용은 ImaAdpcm 형식이지만, 파일 이름이 디비와 알람에 저장되고 AlarmTime.parseFileName이 이 형식을 읽으므로
+     * 확장자는 이전 버전과 같은 .pcm을 쓴다.
      */
-    //TODO 음성 녹음이 시작된 후, 중지 버튼을 누르지 않으면 음성 녹음이 끝나지 않는 문제 개선 필요
-    private void writeAudioDataToFile() {
-
-        short sData[] = new short[mBufferSize];
-        FileOutputStream fos;
+    private String newFileName() {
         Date date = new Date();
         SimpleDateFormat sdf = new SimpleDateFormat("yy-MM-dd hh:mm:ss:a");
         String tempTime = sdf.format(date);
@@ -150,49 +227,210 @@ public class VoiceRecorder {
         String fileName = tempTime.substring(0, 17) + ".pcm";
 
         System.out.println("tempTime : " + tempTime + ", fileName : " + fileName);
+        return fileName;
+    }
 
-        MainActivity.fileName = fileName;//db.insert(fileName); //db에 fileName, alarmTime 둘 다 넣어야 함.
+    /**
+     * AudioRecord에서 읽은 음성을 링 버퍼에 넣기만 한다. 파일 I/O를 하지 않으므로 다음 read가 늦어지지 않는다.
+     * 읽는 배열은 하나만 만들어 계속 쓰고, 읽은 바이트 수만큼만 넘긴다.
+     * 같은 버퍼로 말소리를 찾아(VoiceActivityDetector) Callback에 알린다. 말이 끝났을 때 녹음을 멈추는 것은
+     * Callback을 받은 쪽이 한다.
+     */
+    private void captureAudioData(Recording recording) {
+        byte[] chunk = new byte[mBufferSize * mBytesPerElement];
+        VoiceActivityDetector vad = new VoiceActivityDetector(mSampleRate, mSilenceMillis);
+        long samples = 0;
+        while (recording.recording) {
+            int size = recording.recorder.read(chunk, 0, chunk.length); //7월 18일 commit에서 빠져서 녹음이 안됐음. 다시 추가.
+            if (size <= 0) {
+                continue; //녹음을 멈추는 중이면 에러 값이 돌아온다.
+            }
+            if (!recording.ringBuffer.offer(chunk, 0, size)) {
+                //VAD는 버린 조각도 세므로 파일 위치로 바꿀 때 빼야 한다.
+                recording.drops.add(new long[]{samples, size / mBytesPerElement});
+            }
+            samples += size / mBytesPerElement;
+            LockSupport.unpark(recording.writerThread);
+
+            int event = vad.process(chunk, size);
+            if (event == VoiceActivityDetector.EVENT_VOICE_START) {
+                mCallback.onVoiceStart();
+            }
+            if (vad.isInVoice() || event == VoiceActivityDetector.EVENT_VOICE_END) {
+                mCallback.onVoice(chunk, size);
+            }
+            if (event == VoiceActivityDetector.EVENT_VOICE_END) {
+                mCallback.onVoiceEnd();
+            }
+        }
+        //read가 끝난 뒤에 놓아야 하므로 stopRecording이 아니라 여기서 놓는다.
+        recording.recorder.release();
+        //captureDone보다 먼저 써야 파일 쓰기 스레드가 볼 수 있다.
+        recording.voiceStartSample = vad.getVoiceStartSample();
+        recording.voiceEndSample = vad.getVoiceEndSample();
+        recording.captureDone = true;
+        LockSupport.unpark(recording.writerThread);
+    }
+
+    /**
+     * 링 버퍼에 쌓인 음성을 꺼내 녹음 파일로 저장시켜주는 일을 한다.
+     * 이곳에서 파일이 다 저장되기 전에 DB에 파일 이름이 들어간다.
+     * 꺼낸 PCM은 Callback.onAudio로 넘긴 뒤 IMA ADPCM 블록으로 줄여(PCM의 1/4) FileChannel로 쓴다. 파일 맨 앞에는 ImaAdpcm 헤더를 쓴다.
+     * 녹음이 끝나면 남은 데이터를 모두 쓴 뒤 앞뒤의 조용한 부분을 잘라내고(trimSilence) 파일을 닫은 다음
+     * Callback.onRecordingSaved로 알린다.
+     *
+     * @exception FileNotFoundException 저장된 파일을 찾지 못할 수 있으므로 발생 가능하다.
+     * @exception IOException
+     */
+    private void writeAudioDataToFile(Recording recording) {
+        AudioRingBuffer ringBuffer = recording.ringBuffer;
+        String fileName = recording.fileName;
+        AudioTrim trim = null;
+        byte[] data = new byte[ringBuffer.capacity() / 4];
+        byte[] encoded = new byte[ImaAdpcm.maxEncodedBytes(data.length)];
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder();
+        RandomAccessFile file;
         try {
-            fos = context.openFileOutput(fileName,context.MODE_PRIVATE);
-            while (mIsRecording) {
-                int size = mRecorder.read(sData, 0, mBufferSize); //7월 18일 commit에서 빠져서 녹음이 안됐음. 다시 추가.
-                byte bData[] = short2byte(sData);
-                fos.write(bData, 0, mBufferSize * mBytesPerElement);
+            //자를 때 다시 읽어야 하므로 openFileOutput 대신 같은 위치(getFilesDir)에 읽고 쓸 수 있게 연다.
+            file = new RandomAccessFile(new File(context.getFilesDir(), fileName), "rw");
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            write(channel, ByteBuffer.wrap(ImaAdpcm.header(mSampleRate)));
+            while (true) {
+                int size = ringBuffer.poll(data, 0, data.length);
+                if (size == 0) {
+                    //녹음 스레드가 끝났고 남은 데이터도 없으면 끝낸다.
+                    if (recording.captureDone && ringBuffer.isEmpty()) {
+                        break;
+                    }
+                    LockSupport.parkNanos(WRITER_IDLE_NANOS);
+                    continue;
+                }
+                //같은 조각을 스트리밍 인식에도 넘긴다.
+                mCallback.onAudio(data, size);
+                int length = encoder.encode(data, 0, size, encoded);
+                if (length > 0) {
+                    buffer.position(0);
+                    buffer.limit(length);
+                    write(channel, buffer);
+                }
+            }
+            int length = encoder.flush(encoded);
+            if (length > 0) {
+                buffer.position(0);
+                buffer.limit(length);
+                write(channel, buffer);
             }
-            fos.close();
+            trim = trimSilence(recording, channel, encoder.getSamples(), buffer);
+            file.close();
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (ringBuffer.getOverruns() > 0) {
+            Log.w(TAG, "Dropped " + ringBuffer.getDroppedBytes() + " bytes in " + ringBuffer.getOverruns()
+                    + " overruns, high water " + ringBuffer.getHighWaterMark() + "/" + ringBuffer.capacity());
+        }
+        mCallback.onRecordingSaved(fileName, trim);
     }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
     /**
-     * short 어레이를 바이트 어레이로 고치기 위해 필요하다.
+     * 처음 말소리 앞과 마지막 말소리 뒤의 조용한 부분을 TRIM_GUARD_MILLIS만 남기고 잘라낸다.
+     * ADPCM 블록은 따로 풀 수 있으므로 블록 단위로 자른다(블록 하나는 약 32ms라 guard 안에 들어간다).
+     * 남길 블록들을 헤더 바로 뒤로 당겨 쓴 뒤(읽는 위치가 항상 쓰는 위치보다 뒤이므로 겹쳐도 괜찮다) 길이를 줄인다.
+     * 말소리를 찾지 못한 녹음은 자르지 않는다.
+     * VAD의 위치는 링 버퍼가 버린 조각까지 센 것이므로 toFileSample로 파일의 샘플 위치로 바꿔서 쓴다.
      *
-     * @return 바이트 어레이로 고친 값이 리턴된다.
+     * @param samples 인코더가 받은 샘플 수
+     * @param buffer  옮길 때 쓸 버퍼. BLOCK_BYTES 이상
+     * @return 원래 녹음에서 남긴 구간
      */
-    private byte[] short2byte(short[] sData) {
-        int shortArrsize = sData.length;
-        byte[] bytes = new byte[shortArrsize * 2];
-        for (int i = 0; i < shortArrsize; i++) {
-            bytes[i * 2] = (byte) (sData[i] & 0x00FF);
-            bytes[(i * 2) + 1] = (byte) (sData[i] >> 8);
-            sData[i] = 0;
+    private AudioTrim trimSilence(Recording recording, FileChannel channel, long samples, ByteBuffer buffer)
+            throws IOException {
+        long originalMillis = samplesToMillis(samples);
+        if (recording.voiceStartSample < 0) {
+            return new AudioTrim(0, originalMillis, originalMillis);
+        }
+        long voiceStart = toFileSample(recording.drops, recording.voiceStartSample);
+        long voiceEnd = toFileSample(recording.drops, recording.voiceEndSample);
+        long blocks = (samples + ImaAdpcm.SAMPLES_PER_BLOCK - 1) / ImaAdpcm.SAMPLES_PER_BLOCK;
+        long guard = millisToSamples(TRIM_GUARD_MILLIS);
+        long startBlock = Math.max(0, voiceStart - guard) / ImaAdpcm.SAMPLES_PER_BLOCK;
+        long endBlock = Math.min(blocks,
+                (voiceEnd + guard + ImaAdpcm.SAMPLES_PER_BLOCK - 1) / ImaAdpcm.SAMPLES_PER_BLOCK);
+        if (startBlock >= endBlock) {
+            return new AudioTrim(0, originalMillis, originalMillis);
+        }
+
+        long end = ImaAdpcm.HEADER_BYTES + endBlock * ImaAdpcm.BLOCK_BYTES;
+        if (startBlock > 0) {
+            long read = ImaAdpcm.HEADER_BYTES + startBlock * ImaAdpcm.BLOCK_BYTES;
+            long write = ImaAdpcm.HEADER_BYTES;
+            while (read < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - read));
+                int n = channel.read(buffer, read);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    write += channel.write(buffer, write);
+                }
+                read += n;
+            }
         }
-        return bytes;
+        channel.truncate(ImaAdpcm.HEADER_BYTES + (endBlock - startBlock) * ImaAdpcm.BLOCK_BYTES);
+        long keptEnd = Math.min(samples, endBlock * ImaAdpcm.SAMPLES_PER_BLOCK);
+        return new AudioTrim(samplesToMillis(startBlock * ImaAdpcm.SAMPLES_PER_BLOCK),
+                samplesToMillis(keptEnd), originalMillis);
+    }
+
+    /**
+     * 녹음 스레드가 센 샘플 위치를 파일의 샘플 위치로 바꾼다. 그 앞에서 버린 샘플만큼 당겨지고,
+     * 버린 조각 안의 위치는 그 조각이 빠진 자리가 된다.
+     */
+    static long toFileSample(List<long[]> drops, long captureSample) {
+        long dropped = 0;
+        for (long[] drop : drops) {
+            if (drop[0] >= captureSample) {
+                break;
+            }
+            dropped += Math.min(drop[1], captureSample - drop[0]);
+        }
+        return captureSample - dropped;
+    }
+
+    private long millisToSamples(long millis) {
+        return millis * mSampleRate / 1000;
+    }
+
+    private long samplesToMillis(long samples) {
+        return samples * 1000 / mSampleRate;
     }
 
     /**
      * 녹음을 멈추고 녹음 중 상태 값을 false로 변경한다.
-     *
+     * 남은 데이터를 쓰고 파일을 자르는 일은 파일 쓰기 스레드가 이어서 하므로 기다리지 않고 바로 돌아온다.
+     * 파일을 다 쓰면 Callback.onRecordingSaved가 불린다.
      */
 
     public void stopRecording() {
-        if (mRecorder != null) {
+        Recording recording = mRecording;
+        if (recording != null) {
+            mRecording = null;
             mIsRecording = false;
-            mRecorder.stop();
+            recording.recording = false;
+            recording.recorder.stop();
 //            mCallback.onVoiceEnd();
-         mRecorder.release();
         }
     }
 
@@ -206,7 +444,7 @@ public class VoiceRecorder {
      **/
 
     public int getSampleRate() {
-        return mRecorder.getSampleRate();
+        return mSampleRate;
     }
 
 
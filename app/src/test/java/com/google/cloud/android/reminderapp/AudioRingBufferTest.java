@@ -0,0 +1,154 @@
+package com.google.cloud.android.reminderapp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AudioRingBufferTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePowerOfTwo() {
+        new AudioRingBuffer(1000);
+    }
+
+    @Test
+    public void pollReturnsZeroWhenEmpty() {
+        AudioRingBuffer ring = new AudioRingBuffer(16);
+        assertTrue(ring.isEmpty());
+        assertEquals(0, ring.poll(new byte[4], 0, 4));
+    }
+
+    @Test
+    public void wrapsAroundTheEndOfTheArray() {
+        AudioRingBuffer ring = new AudioRingBuffer(16);
+        byte[] out = new byte[16];
+        assertTrue(ring.offer(sequence(0, 10), 0, 10));
+        assertEquals(10, ring.poll(out, 0, 16));
+
+        //head가 10에 있으므로 12바이트는 끝에서 6, 앞에서 6으로 나뉘어 들어간다.
+        assertTrue(ring.offer(sequence(10, 12), 0, 12));
+        assertEquals(12, ring.poll(out, 0, 16));
+        assertArrayEquals(sequence(10, 12), copy(out, 12));
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void pollReturnsAtMostLength() {
+        AudioRingBuffer ring = new AudioRingBuffer(16);
+        ring.offer(sequence(0, 8), 0, 8);
+        byte[] out = new byte[3];
+        assertEquals(3, ring.poll(out, 0, 3));
+        assertArrayEquals(sequence(0, 3), out);
+        assertEquals(3, ring.poll(out, 0, 3));
+        assertArrayEquals(sequence(3, 3), out);
+        assertEquals(2, ring.poll(out, 0, 3));
+    }
+
+    @Test
+    public void overrunDropsTheWholeChunkAndCountsIt() {
+        AudioRingBuffer ring = new AudioRingBuffer(16);
+        assertTrue(ring.offer(sequence(0, 12), 0, 12));
+        assertFalse(ring.offer(sequence(12, 5), 0, 5));
+        assertFalse(ring.offer(sequence(12, 7), 0, 7));
+        assertEquals(2, ring.getOverruns());
+        assertEquals(12, ring.getDroppedBytes());
+
+        //버린 조각은 하나도 들어가지 않는다.
+        byte[] out = new byte[16];
+        assertEquals(12, ring.poll(out, 0, 16));
+        assertArrayEquals(sequence(0, 12), copy(out, 12));
+
+        //꺼낸 뒤에는 다시 들어간다.
+        assertTrue(ring.offer(sequence(12, 4), 0, 4));
+        assertEquals(2, ring.getOverruns());
+    }
+
+    @Test
+    public void fillsToExactCapacity() {
+        AudioRingBuffer ring = new AudioRingBuffer(16);
+        assertTrue(ring.offer(sequence(0, 16), 0, 16));
+        assertFalse(ring.offer(sequence(0, 1), 0, 1));
+        assertEquals(16, ring.getHighWaterMark());
+    }
+
+    @Test
+    public void highWaterMarkKeepsTheLargestFill() {
+        AudioRingBuffer ring = new AudioRingBuffer(16);
+        byte[] out = new byte[16];
+        ring.offer(sequence(0, 6), 0, 6);
+        ring.offer(sequence(6, 4), 0, 4);
+        assertEquals(10, ring.getHighWaterMark());
+        ring.poll(out, 0, 16);
+        ring.offer(sequence(0, 3), 0, 3);
+        assertEquals(10, ring.getHighWaterMark());
+        //실패한 offer는 high water에 들어가지 않는다.
+        ring.offer(sequence(0, 14), 0, 14);
+        assertEquals(10, ring.getHighWaterMark());
+    }
+
+    @Test
+    public void producerAndConsumerThreadsSeeEveryAcceptedByteInOrder() throws InterruptedException {
+        final AudioRingBuffer ring = new AudioRingBuffer(1024);
+        final int chunks = 20000;
+        final long[] accepted = new long[1];
+        final boolean[] done = new boolean[1];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[100];
+                int next = 0;
+                for (int i = 0; i < chunks; i++) {
+                    for (int j = 0; j < chunk.length; j++) {
+                        chunk[j] = (byte) (next + j);
+                    }
+                    //받아들여진 조각만 다음 값으로 넘어가므로 소비자는 끊기지 않은 수열을 본다.
+                    if (ring.offer(chunk, 0, chunk.length)) {
+                        next += chunk.length;
+                        accepted[0] += chunk.length;
+                    }
+                }
+                synchronized (done) {
+                    done[0] = true;
+                }
+            }
+        });
+        producer.start();
+
+        byte[] out = new byte[77];
+        long received = 0;
+        while (true) {
+            int n = ring.poll(out, 0, out.length);
+            for (int i = 0; i < n; i++) {
+                assertEquals((byte) received, out[i]);
+                received++;
+            }
+            if (n == 0) {
+                synchronized (done) {
+                    if (done[0] && ring.isEmpty()) {
+                        break;
+                    }
+                }
+            }
+        }
+        producer.join();
+        assertEquals(accepted[0], received);
+        assertEquals((long) chunks * 100, received + ring.getDroppedBytes());
+    }
+
+    private static byte[] sequence(int from, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (from + i);
+        }
+        return data;
+    }
+
+    private static byte[] copy(byte[] data, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(data, 0, result, 0, length);
+        return result;
+    }
+}
@@ -0,0 +1,394 @@
+package com.google.cloud.android.reminderapp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Flac 인코더의 출력을 테스트 안의 작은 FLAC 디코더로 다시 풀어 원래 PCM과 같은지(무손실인지) 확인한다.
+ * 디코더는 인코더가 쓰는 것만 읽는다: STREAMINFO, 고정 블록 크기 모노 16bit 프레임,
+ * constant/verbatim/fixed 서브프레임, 4bit Rice 잔차. CRC-8과 CRC-16도 확인한다.
+ */
+public class FlacTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Test
+    public void speechLikeSignalRoundTrips() throws IOException {
+        short[] pcm = speechLike(Flac.BLOCK_SIZE * 3 + 123);
+        Decoded decoded = decode(encode(pcm, SAMPLE_RATE));
+        assertArrayEquals(pcm, decoded.samples);
+        assertEquals(4, decoded.frames);
+        assertTrue("fixed subframes", decoded.fixedSubframes > 0);
+    }
+
+    @Test
+    public void speechLikeSignalIsCompressed() throws IOException {
+        short[] pcm = speechLike(Flac.BLOCK_SIZE * 8);
+        byte[] flac = encode(pcm, SAMPLE_RATE);
+        assertTrue(flac.length + " bytes", flac.length < pcm.length * 2 * 0.8);
+    }
+
+    @Test
+    public void streamInfoCarriesTheSampleRate() throws IOException {
+        short[] pcm = speechLike(1000);
+        Decoded decoded = decode(encode(pcm, 22050));
+        assertEquals(22050, decoded.sampleRate);
+        assertArrayEquals(pcm, decoded.samples);
+    }
+
+    @Test
+    public void silenceUsesConstantSubframes() throws IOException {
+        short[] pcm = new short[Flac.BLOCK_SIZE * 2 + 7];
+        Arrays.fill(pcm, (short) -3);
+        byte[] flac = encode(pcm, SAMPLE_RATE);
+        Decoded decoded = decode(flac);
+        assertArrayEquals(pcm, decoded.samples);
+        assertEquals(3, decoded.constantSubframes);
+        assertTrue(flac.length < 100);
+    }
+
+    @Test
+    public void whiteNoiseFallsBackToVerbatim() throws IOException {
+        Random random = new Random(7);
+        short[] pcm = new short[Flac.BLOCK_SIZE + 10];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) random.nextInt();
+        }
+        byte[] flac = encode(pcm, SAMPLE_RATE);
+        Decoded decoded = decode(flac);
+        assertArrayEquals(pcm, decoded.samples);
+        assertEquals(2, decoded.verbatimSubframes);
+        //verbatim 프레임은 PCM에 헤더만 더해진다.
+        assertTrue(flac.length < pcm.length * 2 + 100);
+    }
+
+    @Test
+    public void extremeValuesRoundTrip() throws IOException {
+        short[] pcm = new short[Flac.BLOCK_SIZE];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (i / 50) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        pcm[1] = Short.MIN_VALUE;
+        pcm[2] = Short.MAX_VALUE;
+        assertArrayEquals(pcm, decode(encode(pcm, SAMPLE_RATE)).samples);
+    }
+
+    @Test
+    public void frameNumbersBeyondOneByteUseUtf8() throws IOException {
+        //프레임 번호가 127, 2047을 넘으면 UTF-8로 2, 3바이트가 된다.
+        short[] pcm = new short[Flac.BLOCK_SIZE * 2100];
+        for (int i = 0; i < pcm.length; i += Flac.BLOCK_SIZE) {
+            pcm[i] = (short) (i / Flac.BLOCK_SIZE);
+        }
+        Decoded decoded = decode(encode(pcm, SAMPLE_RATE));
+        assertEquals(2100, decoded.frames);
+        assertArrayEquals(pcm, decoded.samples);
+    }
+
+    @Test
+    public void trailingOddByteIsDropped() throws IOException {
+        short[] pcm = speechLike(501);
+        byte[] bytes = Arrays.copyOf(toBytes(pcm), pcm.length * 2 + 1);
+        assertArrayEquals(pcm, decode(readAll(Flac.encode(new ByteArrayInputStream(bytes), SAMPLE_RATE))).samples);
+    }
+
+    @Test
+    public void emptyInputIsOnlyTheStreamHeader() throws IOException {
+        byte[] flac = encode(new short[0], SAMPLE_RATE);
+        assertEquals(4 + 4 + 34, flac.length);
+        Decoded decoded = decode(flac);
+        assertEquals(0, decoded.samples.length);
+        assertEquals(0, decoded.frames);
+    }
+
+    @Test
+    public void byteByByteReadsMatchBulkReads() throws IOException {
+        short[] pcm = speechLike(Flac.BLOCK_SIZE + 300);
+        InputStream in = Flac.encode(new ByteArrayInputStream(toBytes(pcm)), SAMPLE_RATE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            out.write(b);
+        }
+        assertArrayEquals(encode(pcm, SAMPLE_RATE), out.toByteArray());
+    }
+
+    private static byte[] encode(short[] pcm, int sampleRate) throws IOException {
+        return readAll(Flac.encode(new ByteArrayInputStream(toBytes(pcm)), sampleRate));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] toBytes(short[] pcm) {
+        byte[] bytes = new byte[pcm.length * 2];
+        for (int i = 0; i < pcm.length; i++) {
+            bytes[2 * i] = (byte) pcm[i];
+            bytes[2 * i + 1] = (byte) (pcm[i] >> 8);
+        }
+        return bytes;
+    }
+
+    /**
+     * 음량이 바뀌는 두 사인파와 약간의 잡음
+     */
+    private static short[] speechLike(int samples) {
+        Random random = new Random(42);
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * i / 8000.0);
+            double value = envelope * (9000 * Math.sin(2 * Math.PI * 220 * i / SAMPLE_RATE)
+                    + 3000 * Math.sin(2 * Math.PI * 1300 * i / SAMPLE_RATE))
+                    + random.nextGaussian() * 100;
+            pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+        }
+        return pcm;
+    }
+
+    private static final class Decoded {
+        int sampleRate;
+        short[] samples;
+        int frames;
+        int constantSubframes;
+        int verbatimSubframes;
+        int fixedSubframes;
+    }
+
+    private static Decoded decode(byte[] flac) {
+        BitReader in = new BitReader(flac);
+        assertEquals('f', in.read(8));
+        assertEquals('L', in.read(8));
+        assertEquals('a', in.read(8));
+        assertEquals('C', in.read(8));
+        //마지막 메타데이터 블록인 STREAMINFO 하나
+        assertEquals(0x80, in.read(8));
+        assertEquals(34, in.read(24));
+        assertEquals(Flac.BLOCK_SIZE, in.read(16));
+        assertEquals(Flac.BLOCK_SIZE, in.read(16));
+        in.read(24);
+        in.read(24);
+        Decoded decoded = new Decoded();
+        decoded.sampleRate = in.read(20);
+        assertEquals("mono", 0, in.read(3));
+        assertEquals("16bit", 15, in.read(5));
+        in.skip(36 + 128);
+
+        short[] samples = new short[Flac.BLOCK_SIZE];
+        int count = 0;
+        while (!in.atEnd()) {
+            int start = in.bytePosition();
+            assertEquals("sync", 0xfff8, in.read(16));
+            assertEquals("block size from the end of the header", 7, in.read(4));
+            assertEquals("sample rate from STREAMINFO", 0, in.read(4));
+            assertEquals("mono", 0, in.read(4));
+            assertEquals("16bit", 4, in.read(3));
+            assertEquals(0, in.read(1));
+            assertEquals("frame number", decoded.frames, in.readUtf8());
+            int blockSize = in.read(16) + 1;
+            assertTrue(blockSize <= Flac.BLOCK_SIZE);
+            int headerCrc = crc8(flac, start, in.bytePosition());
+            assertEquals("CRC-8", headerCrc, in.read(8));
+
+            int[] x = new int[blockSize];
+            decodeSubframe(in, x, decoded);
+            in.alignToByte();
+            int frameCrc = crc16(flac, start, in.bytePosition());
+            assertEquals("CRC-16", frameCrc, in.read(16));
+
+            if (count + blockSize > samples.length) {
+                samples = Arrays.copyOf(samples, samples.length * 2 + blockSize);
+            }
+            for (int value : x) {
+                assertTrue(value >= Short.MIN_VALUE && value <= Short.MAX_VALUE);
+                samples[count++] = (short) value;
+            }
+            decoded.frames++;
+        }
+        decoded.samples = Arrays.copyOf(samples, count);
+        return decoded;
+    }
+
+    private static void decodeSubframe(BitReader in, int[] x, Decoded decoded) {
+        assertEquals("padding", 0, in.read(1));
+        int type = in.read(6);
+        assertEquals("wasted bits", 0, in.read(1));
+        if (type == 0) {
+            Arrays.fill(x, in.readSigned(16));
+            decoded.constantSubframes++;
+        } else if (type == 1) {
+            for (int i = 0; i < x.length; i++) {
+                x[i] = in.readSigned(16);
+            }
+            decoded.verbatimSubframes++;
+        } else if (type >= 8 && type <= 12) {
+            int order = type - 8;
+            for (int i = 0; i < order; i++) {
+                x[i] = in.readSigned(16);
+            }
+            decodeResidual(in, x, order);
+            restoreFixed(x, order);
+            decoded.fixedSubframes++;
+        } else {
+            throw new AssertionError("unexpected subframe type " + type);
+        }
+    }
+
+    private static void decodeResidual(BitReader in, int[] x, int order) {
+        assertEquals("4bit Rice", 0, in.read(2));
+        int partitionOrder = in.read(4);
+        int partitions = 1 << partitionOrder;
+        assertEquals(0, x.length % partitions);
+        int i = order;
+        for (int p = 0; p < partitions; p++) {
+            int end = (p + 1) * (x.length >> partitionOrder);
+            int k = in.read(4);
+            if (k == 15) {
+                int bits = in.read(5);
+                for (; i < end; i++) {
+                    x[i] = bits == 0 ? 0 : in.readSigned(bits);
+                }
+                continue;
+            }
+            for (; i < end; i++) {
+                int u = (in.readUnary() << k) | (k > 0 ? in.read(k) : 0);
+                x[i] = (u >>> 1) ^ -(u & 1);
+            }
+        }
+    }
+
+    /**
+     * 잔차가 들어 있는 x[order..]를 고정 예측으로 샘플로 되돌린다.
+     */
+    private static void restoreFixed(int[] x, int order) {
+        for (int i = order; i < x.length; i++) {
+            switch (order) {
+                case 0:
+                    break;
+                case 1:
+                    x[i] += x[i - 1];
+                    break;
+                case 2:
+                    x[i] += 2 * x[i - 1] - x[i - 2];
+                    break;
+                case 3:
+                    x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+                    break;
+                default:
+                    x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+                    break;
+            }
+        }
+    }
+
+    private static int crc8(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc ^= data[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xff : (crc << 1) & 0xff;
+            }
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc ^= (data[i] & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x8005) & 0xffff : (crc << 1) & 0xffff;
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * MSB부터 읽는 비트 리더
+     */
+    private static final class BitReader {
+
+        private final byte[] data;
+        private long position;
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        boolean atEnd() {
+            return position >= (long) data.length * 8;
+        }
+
+        int bytePosition() {
+            assertEquals("byte aligned", 0, position % 8);
+            return (int) (position / 8);
+        }
+
+        void alignToByte() {
+            while (position % 8 != 0) {
+                assertEquals("zero padding", 0, read(1));
+            }
+        }
+
+        void skip(int bits) {
+            position += bits;
+        }
+
+        int read(int bits) {
+            long value = 0;
+            for (int i = 0; i < bits; i++) {
+                assertTrue("read past the end", !atEnd());
+                int bit = (data[(int) (position >> 3)] >> (7 - (position & 7))) & 1;
+                value = (value << 1) | bit;
+                position++;
+            }
+            return (int) value;
+        }
+
+        int readSigned(int bits) {
+            int value = read(bits);
+            return (value << (32 - bits)) >> (32 - bits);
+        }
+
+        int readUnary() {
+            int zeros = 0;
+            while (read(1) == 0) {
+                zeros++;
+            }
+            return zeros;
+        }
+
+        int readUtf8() {
+            int first = read(8);
+            if ((first & 0x80) == 0) {
+                return first;
+            }
+            int bytes = Integer.numberOfLeadingZeros(~first << 24);
+            assertTrue(bytes >= 2 && bytes <= 6);
+            int value = first & (0x7f >> bytes);
+            for (int i = 1; i < bytes; i++) {
+                int next = read(8);
+                assertEquals("continuation byte", 0x80, next & 0xc0);
+                value = (value << 6) | (next & 0x3f);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.google.cloud.android.reminderapp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImaAdpcmTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Test
+    public void headerIsRecognized() {
+        byte[] header = ImaAdpcm.header(SAMPLE_RATE);
+        assertEquals(ImaAdpcm.HEADER_BYTES, header.length);
+        assertTrue(ImaAdpcm.isHeader(header, header.length));
+        assertFalse(ImaAdpcm.isHeader(header, header.length - 1));
+        assertFalse(ImaAdpcm.isHeader(new byte[ImaAdpcm.HEADER_BYTES], ImaAdpcm.HEADER_BYTES));
+    }
+
+    @Test
+    public void encodedSizeIsAQuarterOfPcm() throws IOException {
+        short[] pcm = speechLike(ImaAdpcm.SAMPLES_PER_BLOCK * 40);
+        byte[] file = encode(pcm, 4096);
+        assertEquals(ImaAdpcm.HEADER_BYTES + 40 * ImaAdpcm.BLOCK_BYTES, file.length);
+        assertTrue(file.length * 3.9 < pcm.length * 2);
+    }
+
+    @Test
+    public void roundTripStaysWithinTheQuantizationError() throws IOException {
+        short[] pcm = speechLike(ImaAdpcm.SAMPLES_PER_BLOCK * 40);
+        short[] decoded = decode(encode(pcm, 4096));
+        assertEquals(pcm.length, decoded.length);
+
+        double signal = 0;
+        double noise = 0;
+        for (int i = 0; i < pcm.length; i++) {
+            signal += (double) pcm[i] * pcm[i];
+            double error = pcm[i] - decoded[i];
+            noise += error * error;
+        }
+        double snr = 10 * Math.log10(signal / noise);
+        assertTrue("SNR " + snr, snr > 25);
+    }
+
+    @Test
+    public void firstSampleOfEveryBlockIsExact() throws IOException {
+        short[] pcm = speechLike(ImaAdpcm.SAMPLES_PER_BLOCK * 5);
+        short[] decoded = decode(encode(pcm, 4096));
+        for (int i = 0; i < pcm.length; i += ImaAdpcm.SAMPLES_PER_BLOCK) {
+            assertEquals(pcm[i], decoded[i]);
+        }
+    }
+
+    @Test
+    public void extremeValuesDoNotWrapAround() throws IOException {
+        short[] pcm = new short[ImaAdpcm.SAMPLES_PER_BLOCK * 2];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (i / 50) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        short[] decoded = decode(encode(pcm, 4096));
+        //ADPCM은 급한 변화를 몇 샘플에 걸쳐 따라가지만, 넘치는 값이 반대 부호로 바뀌지(wrap) 않고 끝까지 따라가야 한다.
+        for (int i = 49; i < pcm.length; i += 50) {
+            assertEquals("sample " + i, pcm[i] > 0, decoded[i] > 0);
+            assertTrue("sample " + i, Math.abs(decoded[i]) > 30000);
+        }
+    }
+
+    @Test
+    public void partialFinalBlockIsPaddedWithTheLastSample() throws IOException {
+        int samples = ImaAdpcm.SAMPLES_PER_BLOCK * 3 + 100;
+        short[] pcm = speechLike(samples);
+        byte[] file = encode(pcm, 4096);
+        assertEquals(ImaAdpcm.HEADER_BYTES + 4 * ImaAdpcm.BLOCK_BYTES, file.length);
+
+        short[] decoded = decode(file);
+        assertEquals(4 * ImaAdpcm.SAMPLES_PER_BLOCK, decoded.length);
+        //덧붙인 부분은 마지막 샘플 근처에 머문다.
+        short last = pcm[samples - 1];
+        for (int i = samples; i < decoded.length; i++) {
+            assertTrue("sample " + i, Math.abs(decoded[i] - last) < 2000);
+        }
+    }
+
+    @Test
+    public void chunkBoundariesDoNotChangeTheOutput() throws IOException {
+        short[] pcm = speechLike(ImaAdpcm.SAMPLES_PER_BLOCK * 7 + 3);
+        //홀수 바이트로 나누면 샘플 하나가 두 번의 encode에 걸친다.
+        assertArrayEquals(encode(pcm, 1 << 16), encode(pcm, 333));
+    }
+
+    @Test
+    public void truncatedTrailingBlockIsIgnored() throws IOException {
+        short[] pcm = speechLike(ImaAdpcm.SAMPLES_PER_BLOCK * 2);
+        byte[] file = encode(pcm, 4096);
+        byte[] truncated = new byte[file.length - 10];
+        System.arraycopy(file, 0, truncated, 0, truncated.length);
+        assertEquals(ImaAdpcm.SAMPLES_PER_BLOCK, decode(truncated).length);
+    }
+
+    @Test
+    public void headerlessLegacyFileIsReadAsRawPcm() throws IOException {
+        byte[] raw = toBytes(speechLike(1000));
+        assertArrayEquals(raw, readAll(ImaAdpcm.openPcm(new ByteArrayInputStream(raw))));
+    }
+
+    @Test
+    public void legacyFileShorterThanTheHeaderIsReadAsIs() throws IOException {
+        byte[] raw = {1, 2, 3, 4, 5};
+        assertArrayEquals(raw, readAll(ImaAdpcm.openPcm(new ByteArrayInputStream(raw))));
+        assertArrayEquals(new byte[0], readAll(ImaAdpcm.openPcm(new ByteArrayInputStream(new byte[0]))));
+    }
+
+    @Test
+    public void availableCountsDecodedBytes() throws IOException {
+        short[] pcm = speechLike(ImaAdpcm.SAMPLES_PER_BLOCK * 4);
+        InputStream in = ImaAdpcm.openPcm(new ByteArrayInputStream(encode(pcm, 4096)));
+        assertEquals(pcm.length * 2, in.available());
+    }
+
+    @Test
+    public void sampleRateComesFromTheHeader() throws IOException {
+        byte[] file = ImaAdpcm.header(44100);
+        assertEquals(44100, ImaAdpcm.sampleRate(file));
+        assertEquals(44100, ImaAdpcm.openPcm(new ByteArrayInputStream(file)).getSampleRate());
+        assertEquals(SAMPLE_RATE, ImaAdpcm.openPcm(new ByteArrayInputStream(encode(speechLike(10), 4096)))
+                .getSampleRate());
+    }
+
+    @Test
+    public void legacyFileUsesTheLegacySampleRate() throws IOException {
+        byte[] raw = toBytes(speechLike(1000));
+        ImaAdpcm.PcmInputStream in = ImaAdpcm.openPcm(new ByteArrayInputStream(raw));
+        assertEquals(ImaAdpcm.LEGACY_SAMPLE_RATE, in.getSampleRate());
+        assertEquals(raw.length, in.pcmBytes(raw.length));
+    }
+
+    @Test
+    public void pcmBytesMatchesWhatIsRead() throws IOException {
+        short[] pcm = speechLike(ImaAdpcm.SAMPLES_PER_BLOCK * 3);
+        byte[] file = encode(pcm, 4096);
+        byte[] truncated = new byte[file.length - 10];
+        System.arraycopy(file, 0, truncated, 0, truncated.length);
+
+        assertEquals(pcm.length * 2, ImaAdpcm.openPcm(new ByteArrayInputStream(file)).pcmBytes(file.length));
+        assertEquals(readAll(ImaAdpcm.openPcm(new ByteArrayInputStream(truncated))).length,
+                ImaAdpcm.openPcm(new ByteArrayInputStream(truncated)).pcmBytes(truncated.length));
+    }
+
+    /**
+     * VoiceRecorder처럼 헤더를 쓰고 chunkBytes씩 encode한 뒤 flush한다.
+     */
+    private static byte[] encode(short[] pcm, int chunkBytes) throws IOException {
+        byte[] bytes = toBytes(pcm);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(ImaAdpcm.header(SAMPLE_RATE));
+        ImaAdpcm.Encoder encoder = new ImaAdpcm.Encoder();
+        byte[] out = new byte[ImaAdpcm.maxEncodedBytes(chunkBytes)];
+        for (int offset = 0; offset < bytes.length; offset += chunkBytes) {
+            int length = Math.min(chunkBytes, bytes.length - offset);
+            file.write(out, 0, encoder.encode(bytes, offset, length, out));
+        }
+        file.write(out, 0, encoder.flush(out));
+        assertEquals(pcm.length, encoder.getSamples());
+        return file.toByteArray();
+    }
+
+    private static short[] decode(byte[] file) throws IOException {
+        byte[] bytes = readAll(ImaAdpcm.openPcm(new ByteArrayInputStream(file)));
+        short[] pcm = new short[bytes.length / 2];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) ((bytes[2 * i] & 0xff) | (bytes[2 * i + 1] << 8));
+        }
+        return pcm;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] toBytes(short[] pcm) {
+        byte[] bytes = new byte[pcm.length * 2];
+        for (int i = 0; i < pcm.length; i++) {
+            bytes[2 * i] = (byte) pcm[i];
+            bytes[2 * i + 1] = (byte) (pcm[i] >> 8);
+        }
+        return bytes;
+    }
+
+    /**
+     * 음량이 바뀌는 두 사인파와 약간의 잡음
+     */
+    private static short[] speechLike(int samples) {
+        Random random = new Random(42);
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * i / 8000.0);
+            double value = envelope * (9000 * Math.sin(2 * Math.PI * 220 * i / SAMPLE_RATE)
+                    + 3000 * Math.sin(2 * Math.PI * 1300 * i / SAMPLE_RATE))
+                    + random.nextGaussian() * 100;
+            pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+        }
+        return pcm;
+    }
+}
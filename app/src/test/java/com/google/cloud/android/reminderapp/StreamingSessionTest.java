@@ -0,0 +1,241 @@
+package com.google.cloud.android.reminderapp;
+
+import com.google.cloud.speech.v1.RecognitionConfig;
+import com.google.cloud.speech.v1.SpeechGrpc;
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 프로세스 안의 가짜 Speech 서버로 녹음 중 스트리밍 인식을 확인한다.
+ */
+public class StreamingSessionTest {
+
+    private static final String SERVER_NAME = "StreamingSessionTest";
+    private static final int SAMPLE_RATE = 16000;
+
+    private FakeSpeech speech;
+    private Server server;
+    private ManagedChannel channel;
+    private SpeechGrpc.SpeechStub api;
+
+    @Before
+    public void setUp() throws Exception {
+        speech = new FakeSpeech();
+        server = InProcessServerBuilder.forName(SERVER_NAME).directExecutor().addService(speech).build().start();
+        channel = InProcessChannelBuilder.forName(SERVER_NAME).directExecutor().build();
+        api = SpeechGrpc.newStub(channel);
+    }
+
+    @After
+    public void tearDown() {
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    @Test
+    public void partialThenFinalResultsReportOnlyFinalTranscript() throws Exception {
+        StreamingSession session = new StreamingSession();
+        session.start(api, SAMPLE_RATE);
+        session.send(new byte[]{1, 2, 3, 4}, 4);
+        session.send(new byte[]{5, 6, 7, 8, 9, 9}, 4);
+        RecordingOutcome outcome = new RecordingOutcome();
+        session.finish(outcome);
+
+        assertTrue(outcome.await());
+        assertEquals("내일 세시에 회의", outcome.text);
+        assertNull(outcome.failure);
+
+        StreamingRecognizeRequest config = speech.requests.get(0);
+        assertEquals(SAMPLE_RATE, config.getStreamingConfig().getConfig().getSampleRateHertz());
+        assertEquals(RecognitionConfig.AudioEncoding.LINEAR16, config.getStreamingConfig().getConfig().getEncoding());
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, speech.audio());
+    }
+
+    @Test
+    public void errorWhileRecordingFallsBackToTheQueue() throws Exception {
+        speech.failOnAudio = Status.UNAVAILABLE;
+        StreamingSession session = new StreamingSession();
+        session.start(api, SAMPLE_RATE);
+        session.send(new byte[]{1, 2}, 2);
+        assertTrue(speech.failed.await(5, TimeUnit.SECONDS));
+        //실패한 뒤의 음성은 보내지 않는다.
+        session.send(new byte[]{3, 4}, 2);
+        RecordingOutcome outcome = new RecordingOutcome();
+        session.finish(outcome);
+
+        assertTrue(outcome.await());
+        assertNull(outcome.text);
+        assertEquals(Status.Code.UNAVAILABLE, Status.fromThrowable(outcome.failure).getCode());
+        assertArrayEquals(new byte[]{1, 2}, speech.audio());
+    }
+
+    @Test
+    public void errorAfterFinishFallsBackToTheQueue() throws Exception {
+        speech.failOnCompleted = Status.DEADLINE_EXCEEDED;
+        StreamingSession session = new StreamingSession();
+        session.start(api, SAMPLE_RATE);
+        session.send(new byte[]{1, 2}, 2);
+        RecordingOutcome outcome = new RecordingOutcome();
+        session.finish(outcome);
+
+        assertTrue(outcome.await());
+        assertNull(outcome.text);
+        assertEquals(Status.Code.DEADLINE_EXCEEDED, Status.fromThrowable(outcome.failure).getCode());
+    }
+
+    @Test
+    public void serverClosingBeforeTheRecordingEndsFallsBackToTheQueue() throws Exception {
+        speech.completeOnAudio = true;
+        StreamingSession session = new StreamingSession();
+        session.start(api, SAMPLE_RATE);
+        session.send(new byte[]{1, 2}, 2);
+        RecordingOutcome outcome = new RecordingOutcome();
+        session.finish(outcome);
+
+        assertTrue(outcome.await());
+        assertNull(outcome.text);
+        assertEquals(Status.Code.UNAVAILABLE, Status.fromThrowable(outcome.failure).getCode());
+    }
+
+    @Test
+    public void cancelClosesTheCallWithoutResult() throws Exception {
+        StreamingSession session = new StreamingSession();
+        session.start(api, SAMPLE_RATE);
+        session.send(new byte[]{1, 2}, 2);
+        session.cancel();
+
+        assertTrue(speech.cancelled.await(5, TimeUnit.SECONDS));
+    }
+
+    private static StreamingRecognizeResponse result(String transcript, boolean isFinal) {
+        return StreamingRecognizeResponse.newBuilder()
+                .addResults(StreamingRecognitionResult.newBuilder()
+                        .addAlternatives(SpeechRecognitionAlternative.newBuilder().setTranscript(transcript))
+                        .setIsFinal(isFinal))
+                .build();
+    }
+
+    /**
+     * 첫 음성을 받으면 중간 결과 뒤에 최종 결과를 보내고, 클라이언트가 닫으면 마지막 최종 결과를 보내고 닫는다.
+     */
+    private static final class FakeSpeech extends SpeechGrpc.SpeechImplBase {
+
+        final List<StreamingRecognizeRequest> requests =
+                Collections.synchronizedList(new ArrayList<StreamingRecognizeRequest>());
+        final CountDownLatch failed = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        volatile Status failOnAudio;
+        volatile Status failOnCompleted;
+        volatile boolean completeOnAudio;
+
+        @Override
+        public StreamObserver<StreamingRecognizeRequest> streamingRecognize(
+                final StreamObserver<StreamingRecognizeResponse> responses) {
+            return new StreamObserver<StreamingRecognizeRequest>() {
+                private boolean answered;
+                private boolean closed;
+
+                @Override
+                public void onNext(StreamingRecognizeRequest request) {
+                    requests.add(request);
+                    if (closed || request.getAudioContent().isEmpty()) {
+                        return;
+                    }
+                    if (failOnAudio != null) {
+                        closed = true;
+                        responses.onError(failOnAudio.asException());
+                        failed.countDown();
+                        return;
+                    }
+                    if (!answered) {
+                        answered = true;
+                        responses.onNext(result("내일 세", false));
+                        responses.onNext(result("내일 세시에 ", true));
+                    }
+                    if (completeOnAudio) {
+                        closed = true;
+                        responses.onCompleted();
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    cancelled.countDown();
+                }
+
+                @Override
+                public void onCompleted() {
+                    if (closed) {
+                        return;
+                    }
+                    if (failOnCompleted != null) {
+                        responses.onError(failOnCompleted.asException());
+                        return;
+                    }
+                    responses.onNext(result("회의", false));
+                    responses.onNext(result("회의", true));
+                    responses.onCompleted();
+                }
+            };
+        }
+
+        byte[] audio() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            synchronized (requests) {
+                for (StreamingRecognizeRequest request : requests) {
+                    byte[] chunk = request.getAudioContent().toByteArray();
+                    out.write(chunk, 0, chunk.length);
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static final class RecordingOutcome implements SttJobQueue.Outcome {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        volatile String text;
+        volatile Throwable failure;
+
+        @Override
+        public void onRecognized(String text) {
+            this.text = text;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(Throwable t) {
+            failure = t;
+            done.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return done.await(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,568 @@
+package com.google.cloud.android.reminderapp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import io.grpc.Status;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 메모리 위의 stt_job 목록, 가짜 시계, 결과를 직접 정하는 가짜 Recognizer로 SttJobQueue를 확인한다.
+ */
+public class SttJobQueueTest {
+
+    private FakeScheduler scheduler;
+    private FakeStore store;
+    private FakeRecognizer recognizer;
+    private List<String> recognized;
+    private SttJobQueue queue;
+
+    @Before
+    public void setUp() {
+        scheduler = new FakeScheduler();
+        store = new FakeStore(scheduler);
+        recognizer = new FakeRecognizer();
+        recognized = new ArrayList<>();
+        queue = new SttJobQueue(store, recognizer, new SttJobQueue.Listener() {
+            @Override
+            public void onRecognized(String fileName, String text, ReminderRecord record) {
+                recognized.add(fileName + "=" + text);
+            }
+        }, scheduler, new Random(1));
+        queue.start();
+    }
+
+    @Test
+    public void backoffDoublesFromTheBaseDelay() {
+        for (int attempts = 1; attempts <= 5; attempts++) {
+            long base = SttJobQueue.BASE_BACKOFF_MILLIS << (attempts - 1);
+            assertEquals(base, SttJobQueue.backoffMillis(attempts, fixedJitter(0)));
+            assertEquals(base + base / 5, SttJobQueue.backoffMillis(attempts, fixedJitter(0.999999)), 1);
+        }
+    }
+
+    @Test
+    public void backoffIsCappedAtMaxBackoff() {
+        long max = SttJobQueue.MAX_BACKOFF_MILLIS;
+        assertEquals(max, SttJobQueue.backoffMillis(30, fixedJitter(0)));
+        assertEquals(max, SttJobQueue.backoffMillis(1000, fixedJitter(0)));
+        assertTrue(SttJobQueue.backoffMillis(1000, fixedJitter(0.999999)) <= max + max / 5);
+    }
+
+    @Test
+    public void retryableFailuresAreRescheduledWithGrowingDelays() {
+        store.add("a");
+        scheduler.runUntilIdle();
+
+        List<Long> delays = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, recognizer.pending.size());
+            long failedAt = scheduler.now();
+            recognizer.fail(0, Status.UNAVAILABLE.asException());
+            scheduler.runUntilIdle();
+            delays.add(store.job("a").nextAttemptAt - failedAt);
+            assertEquals(i + 1, store.job("a").attempts);
+        }
+        for (int i = 0; i < delays.size(); i++) {
+            long base = SttJobQueue.BASE_BACKOFF_MILLIS << i;
+            assertTrue(delays.get(i) >= base && delays.get(i) <= base + base / 5);
+        }
+        assertEquals(4, recognizer.calls);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttemptsAndKeepsTheRecording() {
+        store.add("a");
+        scheduler.runUntilIdle();
+        while (!recognizer.pending.isEmpty()) {
+            recognizer.fail(0, Status.INTERNAL.asException());
+            scheduler.runUntilIdle();
+        }
+
+        assertEquals(SttJobQueue.MAX_ATTEMPTS, recognizer.calls);
+        assertNull(store.job("a"));
+        assertTrue(store.abandoned.contains("a"));
+        assertTrue(store.dropped.isEmpty());
+        assertTrue(recognized.isEmpty());
+    }
+
+    @Test
+    public void keepsRetryingWhileOffline() {
+        store.add("a");
+        scheduler.runUntilIdle();
+        for (int i = 0; i < SttJobQueue.MAX_ATTEMPTS * 2; i++) {
+            assertEquals(1, recognizer.pending.size());
+            long failedAt = scheduler.now();
+            recognizer.fail(0, i % 2 == 0 ? Status.UNAVAILABLE.asException() : Status.DEADLINE_EXCEEDED.asException());
+            scheduler.runUntilIdle();
+            assertTrue(store.job("a").nextAttemptAt - failedAt <= SttJobQueue.MAX_BACKOFF_MILLIS * 6 / 5);
+        }
+        assertEquals(SttJobQueue.MAX_ATTEMPTS * 2, store.job("a").attempts);
+        assertTrue(store.abandoned.isEmpty());
+
+        recognizer.succeed(0, "다시 연결됨");
+        scheduler.runUntilIdle();
+        assertTrue(store.completed.contains("a"));
+    }
+
+    @Test
+    public void givesUpAtOnceWhenTheFailureIsNotRetryable() {
+        store.add("bad");
+        store.add("missing");
+        scheduler.runUntilIdle();
+        recognizer.fail(0, Status.INVALID_ARGUMENT.asException());
+        recognizer.fail(0, new FileNotFoundException("missing"));
+        scheduler.runUntilIdle();
+
+        assertEquals(2, recognizer.calls);
+        assertTrue(store.abandoned.contains("bad"));
+        assertTrue(store.abandoned.contains("missing"));
+        assertTrue(store.jobs.isEmpty());
+    }
+
+    @Test
+    public void sendsAtMostMaxInFlightAtOnce() {
+        for (int i = 0; i < 5; i++) {
+            store.add("job" + i);
+        }
+        scheduler.runUntilIdle();
+        assertEquals(SttJobQueue.MAX_IN_FLIGHT, recognizer.pending.size());
+
+        recognizer.succeed(0, "하나");
+        scheduler.runUntilIdle();
+        assertEquals(SttJobQueue.MAX_IN_FLIGHT, recognizer.pending.size());
+        assertEquals(SttJobQueue.MAX_IN_FLIGHT + 1, recognizer.calls);
+
+        while (!recognizer.pending.isEmpty()) {
+            recognizer.succeed(0, "말");
+            scheduler.runUntilIdle();
+            assertTrue(recognizer.pending.size() <= SttJobQueue.MAX_IN_FLIGHT);
+        }
+        assertEquals(5, recognizer.calls);
+        assertEquals(5, recognized.size());
+        assertTrue(store.jobs.isEmpty());
+    }
+
+    @Test
+    public void slowDueQueryAcrossAKickDoesNotExceedMaxInFlight() {
+        store.holdDueReplies = true;
+        for (int i = 0; i < 5; i++) {
+            store.add("job" + i);
+        }
+        scheduler.runUntilIdle();
+        queue.kick();
+        scheduler.runUntilIdle();
+        //조회 결과가 오기 전에 녹음 중 스트리밍이 자리 하나를 차지한다.
+        queue.track("live");
+        assertEquals(1, store.dueQueries);
+
+        store.releaseDueReplies();
+        scheduler.runUntilIdle();
+        assertEquals(SttJobQueue.MAX_IN_FLIGHT - 1, recognizer.pending.size());
+        assertEquals(SttJobQueue.MAX_IN_FLIGHT - 1, recognizer.calls);
+    }
+
+    @Test
+    public void failedSavesReleaseTheirSlots() {
+        store.failWrites = true;
+        store.add("a");
+        store.add("b");
+        store.add("c");
+        scheduler.runUntilIdle();
+        recognizer.succeed(0, "하나");
+        recognizer.fail(0, Status.UNAVAILABLE.asException());
+        scheduler.runUntilIdle();
+        //저장하지 못한 녹음도 자리를 놓아주고, stt_job이 남아 있으므로 다시 보낸다.
+        assertEquals(SttJobQueue.MAX_IN_FLIGHT, recognizer.pending.size());
+        assertEquals(SttJobQueue.MAX_IN_FLIGHT * 2, recognizer.calls);
+        assertTrue(recognized.isEmpty());
+
+        store.failWrites = false;
+        while (!recognizer.pending.isEmpty()) {
+            recognizer.succeed(0, "말");
+            scheduler.runUntilIdle();
+        }
+        assertEquals(3, recognized.size());
+        assertTrue(store.jobs.isEmpty());
+    }
+
+    @Test
+    public void failedDueQueryIsRetriedLater() {
+        store.failReads = true;
+        store.add("a");
+        scheduler.runFor(SttJobQueue.BASE_BACKOFF_MILLIS - 1);
+        assertEquals(0, recognizer.calls);
+
+        //kick하지 않아도 BASE_BACKOFF_MILLIS 뒤에 다시 읽는다.
+        store.failReads = false;
+        scheduler.runUntilIdle();
+        assertEquals(1, recognizer.calls);
+    }
+
+    @Test
+    public void trackedStreamingCountsTowardsMaxInFlight() {
+        queue.track("live");
+        queue.enqueue("live", null);
+        for (int i = 0; i < 3; i++) {
+            store.add("job" + i);
+        }
+        scheduler.runUntilIdle();
+
+        assertEquals(SttJobQueue.MAX_IN_FLIGHT - 1, recognizer.pending.size());
+        assertFalse(recognizer.sent.contains("live"));
+    }
+
+    @Test
+    public void trackedRecordingIsNotResent() {
+        SttJobQueue.Outcome outcome = queue.track("live");
+        queue.enqueue("live", null);
+        scheduler.runUntilIdle();
+        assertEquals(0, recognizer.calls);
+
+        outcome.onRecognized("내일 세시 회의");
+        scheduler.runUntilIdle();
+        assertEquals(0, recognizer.calls);
+        assertEquals("live=내일 세시 회의", recognized.get(0));
+        assertTrue(store.completed.contains("live"));
+        assertTrue(store.jobs.isEmpty());
+    }
+
+    @Test
+    public void failedTrackedRecordingIsResentAtOnceWithoutCountingAnAttempt() {
+        SttJobQueue.Outcome outcome = queue.track("live");
+        queue.enqueue("live", null);
+        scheduler.runUntilIdle();
+
+        outcome.onFailed(Status.UNAVAILABLE.asException());
+        scheduler.runUntilIdle();
+        assertEquals(1, recognizer.calls);
+        assertEquals("live", recognizer.sent.get(0));
+        assertEquals(0, store.job("live").attempts);
+    }
+
+    @Test
+    public void emptyTranscriptIsDropped() {
+        store.add("silent");
+        scheduler.runUntilIdle();
+        recognizer.succeed(0, "");
+        scheduler.runUntilIdle();
+
+        assertTrue(store.dropped.contains("silent"));
+        assertTrue(store.completed.isEmpty());
+        assertEquals("silent=", recognized.get(0));
+    }
+
+    @Test
+    public void waitsUntilTheRecognizerIsReady() {
+        recognizer.ready = false;
+        store.add("a");
+        scheduler.runUntilIdle();
+        assertEquals(0, recognizer.calls);
+
+        recognizer.ready = true;
+        queue.kick();
+        scheduler.runUntilIdle();
+        assertEquals(1, recognizer.calls);
+    }
+
+    private static Random fixedJitter(final double value) {
+        return new Random() {
+            @Override
+            public double nextDouble() {
+                return value;
+            }
+        };
+    }
+
+    /**
+     * 시각을 직접 움직이는 메인 스레드 대신. runUntilIdle은 남은 일이 없을 때까지 시각을 다음 일로 옮기며 실행한다.
+     */
+    private static final class FakeScheduler implements SttJobQueue.Scheduler {
+
+        private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+        private long now = 1000000;
+        private long sequence;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            tasks.add(new Task(now + delayMillis, sequence++, task));
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            List<Task> removed = new ArrayList<>();
+            for (Task t : tasks) {
+                if (t.runnable == task) {
+                    removed.add(t);
+                }
+            }
+            tasks.removeAll(removed);
+        }
+
+        /**
+         * 지금부터 millis 안에 할 일만 실행하고 시각을 그 끝으로 옮긴다.
+         */
+        void runFor(long millis) {
+            long until = now + millis;
+            while (!tasks.isEmpty() && tasks.peek().at <= until) {
+                Task task = tasks.poll();
+                now = Math.max(now, task.at);
+                task.runnable.run();
+            }
+            now = until;
+        }
+
+        void runUntilIdle() {
+            for (int i = 0; i < 10000 && !tasks.isEmpty(); i++) {
+                Task task = tasks.poll();
+                now = Math.max(now, task.at);
+                task.runnable.run();
+            }
+            assertTrue("scheduler did not settle", tasks.isEmpty());
+        }
+
+        private static final class Task implements Comparable<Task> {
+            final long at;
+            final long sequence;
+            final Runnable runnable;
+
+            Task(long at, long sequence, Runnable runnable) {
+                this.at = at;
+                this.sequence = sequence;
+                this.runnable = runnable;
+            }
+
+            @Override
+            public int compareTo(Task other) {
+                if (at != other.at) {
+                    return at < other.at ? -1 : 1;
+                }
+                return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+            }
+        }
+    }
+
+    /**
+     * stt_job 목록을 메모리에 둔다. ReminderRepository처럼 callback은 메인 스레드(scheduler)로 돌려준다.
+     */
+    private static final class FakeStore implements SttJobQueue.Store {
+
+        private final FakeScheduler scheduler;
+        final Map<String, StoredJob> jobs = new LinkedHashMap<>();
+        final List<String> completed = new ArrayList<>();
+        final List<String> dropped = new ArrayList<>();
+        final List<String> abandoned = new ArrayList<>();
+        private final List<Runnable> heldDueReplies = new ArrayList<>();
+        //true이면 dueRecognitions의 결과를 releaseDueReplies까지 돌려주지 않는다.
+        boolean holdDueReplies;
+        //true이면 결과를 저장하거나 목록을 읽는 대신 ErrorCallback.onError로 실패를 돌려준다.
+        boolean failWrites;
+        boolean failReads;
+        int dueQueries;
+        private long nextId = 1;
+
+        FakeStore(FakeScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        void add(String fileName) {
+            if (!jobs.containsKey(fileName)) {
+                jobs.put(fileName, new StoredJob(nextId++, fileName, scheduler.now()));
+            }
+        }
+
+        StoredJob job(String fileName) {
+            return jobs.get(fileName);
+        }
+
+        void releaseDueReplies() {
+            holdDueReplies = false;
+            for (Runnable reply : heldDueReplies) {
+                scheduler.postDelayed(reply, 0);
+            }
+            heldDueReplies.clear();
+        }
+
+        private <T> Runnable result(final ReminderRepository.Callback<T> callback, final T result) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    if (callback != null) {
+                        callback.onResult(result);
+                    }
+                }
+            };
+        }
+
+        private <T> void reply(ReminderRepository.Callback<T> callback, T result) {
+            scheduler.postDelayed(result(callback, result), 0);
+        }
+
+        /**
+         * @return 실패를 돌려주었으면 true
+         */
+        private boolean failed(final ReminderRepository.Callback<?> callback, boolean fail) {
+            if (!fail) {
+                return false;
+            }
+            scheduler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    ((ReminderRepository.ErrorCallback<?>) callback).onError(new IllegalStateException("disk I/O error"));
+                }
+            }, 0);
+            return true;
+        }
+
+        @Override
+        public void enqueueRecognition(String fileName, AudioTrim trim, ReminderRepository.Callback<Long> callback) {
+            add(fileName);
+            reply(callback, jobs.get(fileName).id);
+        }
+
+        @Override
+        public void completeRecognition(String fileName, String text,
+                                        ReminderRepository.Callback<ReminderRecord> callback) {
+            if (failed(callback, failWrites)) {
+                return;
+            }
+            if (jobs.remove(fileName) != null) {
+                completed.add(fileName);
+            }
+            reply(callback, (ReminderRecord) null);
+        }
+
+        @Override
+        public void dropRecognition(String fileName, ReminderRepository.Callback<Integer> callback) {
+            if (failed(callback, failWrites)) {
+                return;
+            }
+            int deleted = jobs.remove(fileName) != null ? 1 : 0;
+            dropped.add(fileName);
+            reply(callback, deleted);
+        }
+
+        @Override
+        public void abandonRecognition(String fileName, ReminderRepository.Callback<ReminderRecord> callback) {
+            if (failed(callback, failWrites)) {
+                return;
+            }
+            jobs.remove(fileName);
+            abandoned.add(fileName);
+            reply(callback, (ReminderRecord) null);
+        }
+
+        @Override
+        public void retryRecognition(long jobId, int attempts, long nextAttemptAt, String error,
+                                     ReminderRepository.Callback<Integer> callback) {
+            if (failed(callback, failWrites)) {
+                return;
+            }
+            int updated = 0;
+            for (StoredJob job : jobs.values()) {
+                if (job.id == jobId) {
+                    job.attempts = attempts;
+                    job.nextAttemptAt = nextAttemptAt;
+                    updated = 1;
+                }
+            }
+            reply(callback, updated);
+        }
+
+        @Override
+        public void dueRecognitions(long now, int limit, ReminderRepository.Callback<List<SttJob>> callback) {
+            if (failed(callback, failReads)) {
+                return;
+            }
+            List<SttJob> due = new ArrayList<>();
+            for (StoredJob job : jobs.values()) {
+                if (due.size() < limit && job.nextAttemptAt <= now) {
+                    due.add(new SttJob(job.id, job.fileName, job.createdAt, job.attempts, null));
+                }
+            }
+            dueQueries++;
+            if (holdDueReplies) {
+                heldDueReplies.add(result(callback, due));
+                return;
+            }
+            reply(callback, due);
+        }
+
+        @Override
+        public void nextRecognitionAt(ReminderRepository.Callback<Long> callback) {
+            if (failed(callback, failReads)) {
+                return;
+            }
+            Long next = null;
+            for (StoredJob job : jobs.values()) {
+                if (next == null || job.nextAttemptAt < next) {
+                    next = job.nextAttemptAt;
+                }
+            }
+            reply(callback, next);
+        }
+    }
+
+    private static final class StoredJob {
+        final long id;
+        final String fileName;
+        final long createdAt;
+        int attempts;
+        long nextAttemptAt;
+
+        StoredJob(long id, String fileName, long createdAt) {
+            this.id = id;
+            this.fileName = fileName;
+            this.createdAt = createdAt;
+            this.nextAttemptAt = createdAt;
+        }
+    }
+
+    /**
+     * 보낸 녹음의 Outcome을 잡아두고, 테스트가 성공이나 실패를 정한다.
+     */
+    private static final class FakeRecognizer implements SttJobQueue.Recognizer {
+
+        final List<SttJobQueue.Outcome> pending = new ArrayList<>();
+        final List<String> sent = new ArrayList<>();
+        boolean ready = true;
+        int calls;
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void recognize(SttJob job, SttJobQueue.Outcome outcome) {
+            calls++;
+            sent.add(job.fileName);
+            pending.add(outcome);
+        }
+
+        void succeed(int index, String text) {
+            pending.remove(index).onRecognized(text);
+        }
+
+        void fail(int index, Throwable t) {
+            pending.remove(index).onFailed(t);
+        }
+    }
+}
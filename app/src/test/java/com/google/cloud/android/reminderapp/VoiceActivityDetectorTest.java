@@ -0,0 +1,175 @@
+package com.google.cloud.android.reminderapp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VoiceActivityDetectorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    //VoiceActivityDetector의 FRAME_MILLIS(20ms)
+    private static final int FRAME = SAMPLE_RATE * 20 / 1000;
+    private static final long SILENCE_MILLIS = 200;
+    private static final int SILENCE_FRAMES = (int) (SILENCE_MILLIS / 20);
+
+    private VoiceActivityDetector vad;
+    private long position;
+
+    @Before
+    public void setUp() {
+        vad = new VoiceActivityDetector(SAMPLE_RATE, SILENCE_MILLIS);
+        position = 0;
+    }
+
+    @Test
+    public void silenceNeverStartsVoice() {
+        assertEquals(VoiceActivityDetector.EVENT_NONE, feed(silence(50)));
+        assertFalse(vad.isInVoice());
+        assertEquals(-1, vad.getVoiceStartSample());
+        assertEquals(-1, vad.getVoiceEndSample());
+    }
+
+    @Test
+    public void twoLoudFramesAreNotEnoughToStart() {
+        feed(silence(5));
+        assertEquals(VoiceActivityDetector.EVENT_NONE, feed(tone(2)));
+        assertEquals(VoiceActivityDetector.EVENT_NONE, feed(silence(5)));
+        assertEquals(VoiceActivityDetector.EVENT_NONE, feed(tone(2)));
+        assertFalse(vad.isInVoice());
+        assertEquals(-1, vad.getVoiceStartSample());
+    }
+
+    @Test
+    public void threeLoudFramesStartVoiceAtTheFirstOfThem() {
+        feed(silence(5));
+        assertEquals(VoiceActivityDetector.EVENT_NONE, feed(tone(2)));
+        assertEquals(VoiceActivityDetector.EVENT_VOICE_START, feed(tone(1)));
+        assertTrue(vad.isInVoice());
+        assertEquals(5 * FRAME, vad.getVoiceStartSample());
+        assertEquals(8 * FRAME, vad.getVoiceEndSample());
+    }
+
+    @Test
+    public void voiceEndsOnlyAfterTheSilenceTimeout() {
+        feed(silence(5));
+        feed(tone(10));
+        assertEquals(VoiceActivityDetector.EVENT_NONE, feed(silence(SILENCE_FRAMES - 1)));
+        assertTrue(vad.isInVoice());
+        assertEquals(VoiceActivityDetector.EVENT_VOICE_END, feed(silence(1)));
+        assertFalse(vad.isInVoice());
+        //끝 위치는 조용해진 때가 아니라 마지막 말소리 프레임의 끝이다.
+        assertEquals(15 * FRAME, vad.getVoiceEndSample());
+    }
+
+    @Test
+    public void shortPauseKeepsVoiceGoing() {
+        feed(silence(5));
+        feed(tone(5));
+        assertEquals(VoiceActivityDetector.EVENT_NONE, feed(silence(SILENCE_FRAMES - 1)));
+        assertEquals(VoiceActivityDetector.EVENT_NONE, feed(tone(5)));
+        assertTrue(vad.isInVoice());
+        assertEquals(5 * FRAME, vad.getVoiceStartSample());
+        assertEquals((5 + 5 + SILENCE_FRAMES - 1 + 5) * FRAME, vad.getVoiceEndSample());
+    }
+
+    @Test
+    public void secondUtteranceKeepsTheFirstStartAndMovesTheEnd() {
+        feed(silence(5));
+        feed(tone(5));
+        assertEquals(VoiceActivityDetector.EVENT_VOICE_END, feed(silence(SILENCE_FRAMES)));
+        assertEquals(VoiceActivityDetector.EVENT_VOICE_START, feed(tone(3)));
+        long end = position;
+        feed(silence(SILENCE_FRAMES));
+        assertEquals(5 * FRAME, vad.getVoiceStartSample());
+        assertEquals(end, vad.getVoiceEndSample());
+    }
+
+    @Test
+    public void loudHissIsNotSpeech() {
+        //부호가 매 샘플 바뀌는 소리는 zero-crossing 비율이 1에 가깝다.
+        byte[] hiss = new byte[20 * FRAME * 2];
+        for (int i = 0; i < hiss.length / 2; i++) {
+            put(hiss, i, i % 2 == 0 ? 8000 : -8000);
+        }
+        assertEquals(VoiceActivityDetector.EVENT_NONE, feed(hiss));
+        assertFalse(vad.isInVoice());
+    }
+
+    @Test
+    public void quietToneBelowTheMinimumIsNotSpeech() {
+        assertEquals(VoiceActivityDetector.EVENT_NONE, feed(tone(20, 300)));
+        assertFalse(vad.isInVoice());
+    }
+
+    @Test
+    public void framesSplitAcrossBuffersGiveTheSameResult() {
+        byte[] data = concat(silence(5), tone(10), silence(SILENCE_FRAMES));
+        int start = 0;
+        int event = VoiceActivityDetector.EVENT_NONE;
+        boolean started = false;
+        while (start < data.length) {
+            //333 샘플씩 나누면 프레임(320 샘플)이 두 버퍼에 걸친다.
+            int size = Math.min(333 * 2, data.length - start);
+            byte[] chunk = new byte[size];
+            System.arraycopy(data, start, chunk, 0, size);
+            int e = vad.process(chunk, size);
+            if (e == VoiceActivityDetector.EVENT_VOICE_START) {
+                started = true;
+            }
+            if (e != VoiceActivityDetector.EVENT_NONE) {
+                event = e;
+            }
+            start += size;
+        }
+        assertTrue(started);
+        assertEquals(VoiceActivityDetector.EVENT_VOICE_END, event);
+        assertEquals(5 * FRAME, vad.getVoiceStartSample());
+        assertEquals(15 * FRAME, vad.getVoiceEndSample());
+    }
+
+    private int feed(byte[] data) {
+        position += data.length / 2;
+        return vad.process(data, data.length);
+    }
+
+    private static byte[] silence(int frames) {
+        return new byte[frames * FRAME * 2];
+    }
+
+    private static byte[] tone(int frames) {
+        return tone(frames, 8000);
+    }
+
+    /**
+     * 200Hz 사인파. zero-crossing 비율이 낮아 말소리처럼 보인다.
+     */
+    private static byte[] tone(int frames, int amplitude) {
+        byte[] data = new byte[frames * FRAME * 2];
+        for (int i = 0; i < frames * FRAME; i++) {
+            put(data, i, (int) (amplitude * Math.sin(2 * Math.PI * 200 * i / SAMPLE_RATE)));
+        }
+        return data;
+    }
+
+    private static void put(byte[] data, int index, int sample) {
+        data[2 * index] = (byte) sample;
+        data[2 * index + 1] = (byte) (sample >> 8);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,38 @@
+package com.google.cloud.android.reminderapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class VoiceRecorderTest {
+
+    @Test
+    public void withoutDropsPositionsAreUnchanged() {
+        List<long[]> drops = new ArrayList<>();
+        assertEquals(0, VoiceRecorder.toFileSample(drops, 0));
+        assertEquals(12345, VoiceRecorder.toFileSample(drops, 12345));
+    }
+
+    @Test
+    public void dropsBeforeThePositionPullItBack() {
+        List<long[]> drops = new ArrayList<>();
+        drops.add(new long[]{1000, 1024});
+        drops.add(new long[]{5000, 1024});
+        assertEquals(999, VoiceRecorder.toFileSample(drops, 999));
+        assertEquals(1000, VoiceRecorder.toFileSample(drops, 1000));
+        assertEquals(4000 - 1024, VoiceRecorder.toFileSample(drops, 4000));
+        assertEquals(9000 - 2048, VoiceRecorder.toFileSample(drops, 9000));
+    }
+
+    @Test
+    public void positionInsideADroppedChunkMapsToWhereItWasCut() {
+        List<long[]> drops = new ArrayList<>();
+        drops.add(new long[]{1000, 1024});
+        assertEquals(1000, VoiceRecorder.toFileSample(drops, 1500));
+        assertEquals(1000, VoiceRecorder.toFileSample(drops, 2024));
+        assertEquals(1001, VoiceRecorder.toFileSample(drops, 2025));
+    }
+}